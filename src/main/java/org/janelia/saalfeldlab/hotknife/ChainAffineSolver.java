@@ -0,0 +1,418 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.InterpolatedAffineModel2D;
+import mpicbg.models.TileConfiguration;
+
+/**
+ * Global solver for a chain of 2D affine tiles, e.g. the stack of slabs in
+ * {@link SparkAlignAffineGlobal}, where tile k is connected only to tile
+ * k + 1 by matches with p in tile k and q in tile k + 1.  Replaces the
+ * iterative {@link TileConfiguration} optimization for this structure.
+ *
+ * All matches are reduced to their weighted moments in one pass, parallel
+ * over the connections.  Everything else operates on the moments:
+ *
+ * <ol>
+ * <li>The rigid solution is exact without iterations because a chain has
+ * no loops.  Each connection is fit independently by a rigid model and the
+ * tiles are the compositions of these relative transforms starting with
+ * the identity for tile 0.  This is what {@link TileConfiguration#preAlign()}
+ * followed by optimization with purely rigid models converges to.</li>
+ * <li>The regularized affine solution minimizes the sum of squared match
+ * residuals plus &mu; times the sum of squared residuals between each tile's
+ * affine and its closest rigid transform over the tile's matches, with
+ * &mu; = &lambda; / (1 - &lambda;) for the {@link InterpolatedAffineModel2D}
+ * regularizer &lambda;.  For fixed rigid targets, this is a block
+ * tridiagonal least-squares system with 3&times;3 blocks that is shared by
+ * the x and y rows of the affines.  It is factorized once and solved
+ * directly; only the rigid targets are updated between iterations.</li>
+ * </ol>
+ *
+ * Affines are stored as {m00, m01, m02, m10, m11, m12}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class ChainAffineSolver {
+
+	final private int numTiles;
+
+	/* per connection k: sum w P P^T, sum w Q Q^T, sum w P Q^T with P = (px, py, 1) */
+	final private double[][] spp;
+	final private double[][] sqq;
+	final private double[][] spq;
+
+	/* per tile: sum w P P^T over all its matches */
+	final private double[][] moments;
+
+	/**
+	 * @param matches matches.get(k) connects tile k and k + 1, p in tile k
+	 *     and q in tile k + 1, null if not connected
+	 * @param numThreads
+	 */
+	public ChainAffineSolver(final List<PackedPointMatches> matches, final int numThreads) {
+
+		numTiles = matches.size() + 1;
+		final int numConnections = matches.size();
+		spp = new double[numConnections][];
+		sqq = new double[numConnections][];
+		spq = new double[numConnections][];
+
+		final ArrayList<Runnable> chunks = new ArrayList<>();
+		final int numChunks = Math.max(1, Math.min(numThreads, numConnections));
+		for (int t = 0; t < numChunks; ++t) {
+			final int from = numConnections * t / numChunks;
+			final int to = numConnections * (t + 1) / numChunks;
+			chunks.add(() -> {
+				for (int k = from; k < to; ++k) {
+					spp[k] = new double[9];
+					sqq[k] = new double[9];
+					spq[k] = new double[9];
+					final PackedPointMatches m = matches.get(k);
+					if (m != null)
+						accumulate(m, spp[k], sqq[k], spq[k]);
+				}
+			});
+		}
+
+		if (chunks.size() == 1)
+			chunks.forEach(Runnable::run);
+		else {
+			final ForkJoinPool pool = new ForkJoinPool(chunks.size());
+			try {
+				final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+				for (final Runnable chunk : chunks)
+					tasks.add(pool.submit(chunk));
+				for (final ForkJoinTask<?> task : tasks)
+					task.join();
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		moments = new double[numTiles][9];
+		for (int k = 0; k < numConnections; ++k)
+			for (int i = 0; i < 9; ++i) {
+				moments[k][i] += spp[k][i];
+				moments[k + 1][i] += sqq[k][i];
+			}
+	}
+
+	private static void accumulate(
+			final PackedPointMatches m,
+			final double[] spp,
+			final double[] sqq,
+			final double[] spq) {
+
+		final double[] P = new double[3];
+		final double[] Q = new double[3];
+		P[2] = Q[2] = 1;
+		for (int i = 0; i < m.size(); ++i) {
+			final double w = m.getWeight(i);
+			P[0] = m.getP(0, i);
+			P[1] = m.getP(1, i);
+			Q[0] = m.getQ(0, i);
+			Q[1] = m.getQ(1, i);
+			for (int r = 0; r < 3; ++r) {
+				final double wp = w * P[r];
+				final double wq = w * Q[r];
+				for (int c = 0; c < 3; ++c) {
+					spp[3 * r + c] += wp * P[c];
+					sqq[3 * r + c] += wq * Q[c];
+					spq[3 * r + c] += wp * Q[c];
+				}
+			}
+		}
+	}
+
+	public int numTiles() {
+
+		return numTiles;
+	}
+
+	/**
+	 * Rigid transform that best maps the points with second moments
+	 * sourceMoments onto the points with second moments targetMoments
+	 * given their cross moments sum w S T^T.
+	 *
+	 * @return {m00, m01, m02, m10, m11, m12}, identity if there are no
+	 *     points
+	 */
+	private static double[] fitRigid(
+			final double[] sourceMoments,
+			final double[] targetMoments,
+			final double[] crossMoments) {
+
+		final double w = sourceMoments[8];
+		if (w <= 0)
+			return new double[]{1, 0, 0, 0, 1, 0};
+
+		final double sx = sourceMoments[2] / w;
+		final double sy = sourceMoments[5] / w;
+		final double tx = targetMoments[2] / w;
+		final double ty = targetMoments[5] / w;
+
+		/* centered cross covariance sum w (s - sc)(t - tc)^T */
+		final double h00 = crossMoments[0] - w * sx * tx;
+		final double h01 = crossMoments[1] - w * sx * ty;
+		final double h10 = crossMoments[3] - w * sy * tx;
+		final double h11 = crossMoments[4] - w * sy * ty;
+
+		final double angle = Math.atan2(h01 - h10, h00 + h11);
+		final double cos = Math.cos(angle);
+		final double sin = Math.sin(angle);
+
+		return new double[]{
+				cos, -sin, tx - cos * sx + sin * sy,
+				sin, cos, ty - sin * sx - cos * sy};
+	}
+
+	/**
+	 * Rigid transform closest to affine a over points with moments
+	 * {@code moments}, i.e. fit to the pairs (p, a p).
+	 */
+	private static double[] closestRigid(final double[] a, final double[] moments) {
+
+		final double w = moments[8];
+		if (w <= 0) {
+			final double angle = Math.atan2(a[3] - a[1], a[0] + a[4]);
+			final double cos = Math.cos(angle);
+			final double sin = Math.sin(angle);
+			return new double[]{cos, -sin, a[2], sin, cos, a[5]};
+		}
+
+		/* moments of the targets a p are not needed, only their sums and the cross moments */
+		final double[] targetMoments = new double[9];
+		final double[] crossMoments = new double[9];
+		for (int r = 0; r < 3; ++r) {
+			/* sum w P_r (a P)_c = sum_j moments[r][j] a[c][j] */
+			for (int c = 0; c < 2; ++c) {
+				double s = 0;
+				for (int j = 0; j < 3; ++j)
+					s += moments[3 * r + j] * a[3 * c + j];
+				crossMoments[3 * r + c] = s;
+			}
+		}
+		targetMoments[2] = crossMoments[6];
+		targetMoments[5] = crossMoments[7];
+		targetMoments[8] = w;
+
+		return fitRigid(moments, targetMoments, crossMoments);
+	}
+
+	/**
+	 * c = a b for affines.
+	 */
+	private static double[] concatenate(final double[] a, final double[] b) {
+
+		return new double[]{
+				a[0] * b[0] + a[1] * b[3], a[0] * b[1] + a[1] * b[4], a[0] * b[2] + a[1] * b[5] + a[2],
+				a[3] * b[0] + a[4] * b[3], a[3] * b[1] + a[4] * b[4], a[3] * b[2] + a[4] * b[5] + a[5]};
+	}
+
+	private static AffineModel2D toModel(final double[] a) {
+
+		final AffineModel2D model = new AffineModel2D();
+		model.set(a[0], a[3], a[1], a[4], a[2], a[5]);
+		return model;
+	}
+
+	private static double[] fromModel(final AffineModel2D model) {
+
+		final double[] m = new double[6];
+		model.toArray(m);
+		return new double[]{m[0], m[2], m[4], m[1], m[3], m[5]};
+	}
+
+	/**
+	 * Optimal rigid tiles with tile 0 fixed to the identity.  Unconnected
+	 * tiles keep the transform of their predecessor.
+	 *
+	 * @return
+	 */
+	public AffineModel2D[] solveRigid() {
+
+		final AffineModel2D[] models = new AffineModel2D[numTiles];
+		double[] a = new double[]{1, 0, 0, 0, 1, 0};
+		models[0] = toModel(a);
+		for (int k = 0; k < numTiles - 1; ++k) {
+			/* q in tile k + 1 to p in tile k, cross moments sum w Q P^T */
+			final double[] qp = new double[9];
+			for (int r = 0; r < 3; ++r)
+				for (int c = 0; c < 3; ++c)
+					qp[3 * r + c] = spq[k][3 * c + r];
+			a = concatenate(a, fitRigid(sqq[k], spp[k], qp));
+			models[k + 1] = toModel(a);
+		}
+
+		return models;
+	}
+
+	private static double[] inverse3(final double[] m) {
+
+		final double c00 = m[4] * m[8] - m[5] * m[7];
+		final double c01 = m[5] * m[6] - m[3] * m[8];
+		final double c02 = m[3] * m[7] - m[4] * m[6];
+		final double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+		if (det == 0)
+			throw new IllegalArgumentException("Singular block in chain system.");
+		final double s = 1.0 / det;
+
+		return new double[]{
+				c00 * s, (m[2] * m[7] - m[1] * m[8]) * s, (m[1] * m[5] - m[2] * m[4]) * s,
+				c01 * s, (m[0] * m[8] - m[2] * m[6]) * s, (m[2] * m[3] - m[0] * m[5]) * s,
+				c02 * s, (m[1] * m[6] - m[0] * m[7]) * s, (m[0] * m[4] - m[1] * m[3]) * s};
+	}
+
+	/**
+	 * Regularized affine tiles, starting from initial, e.g. the
+	 * {@link #solveRigid() rigid solution}.  Iterates until the weighted
+	 * RMS displacement of all tiles' matches between two iterations drops
+	 * below tolerance or for at most maxIterations.
+	 *
+	 * @param initial
+	 * @param lambda regularizer as in {@link InterpolatedAffineModel2D},
+	 *     1 is rigid
+	 * @param tolerance in pixels
+	 * @param maxIterations
+	 * @return
+	 */
+	public AffineModel2D[] solve(
+			final AffineModel2D[] initial,
+			final double lambda,
+			final double tolerance,
+			final int maxIterations) {
+
+		if (initial.length != numTiles)
+			throw new IllegalArgumentException("Expected " + numTiles + " initial models but got " + initial.length + ".");
+
+		final double[][] a = new double[numTiles][];
+		for (int k = 0; k < numTiles; ++k)
+			a[k] = fromModel(initial[k]);
+
+		if (lambda >= 1) {
+			final AffineModel2D[] models = new AffineModel2D[numTiles];
+			for (int k = 0; k < numTiles; ++k)
+				models[k] = toModel(closestRigid(a[k], moments[k]));
+			return models;
+		}
+
+		final double mu = lambda / (1.0 - lambda);
+
+		/* diagonal blocks (1 + mu) T_k + damping, the damping pulls tiles without matches to their rigid targets */
+		final double[] damping = new double[numTiles];
+		final double[][] diagonal = new double[numTiles][9];
+		for (int k = 0; k < numTiles; ++k) {
+			final double[] t = moments[k];
+			damping[k] = 1e-9 * Math.max(1.0, t[0] + t[4] + t[8]);
+			for (int i = 0; i < 9; ++i)
+				diagonal[k][i] = (1 + mu) * t[i];
+			diagonal[k][0] += damping[k];
+			diagonal[k][4] += damping[k];
+			diagonal[k][8] += damping[k];
+		}
+
+		/* block LU, upper blocks are -spq[k], lower blocks their transposes */
+		final double[][] inverses = new double[numTiles][];
+		final double[][] gains = new double[numTiles - 1][];
+		inverses[0] = inverse3(diagonal[0]);
+		for (int k = 1; k < numTiles; ++k) {
+			final double[] u = spq[k - 1];
+			/* g = D'^-1_{k-1} U_{k-1} with U = -spq */
+			final double[] inv = inverses[k - 1];
+			final double[] g = new double[9];
+			for (int r = 0; r < 3; ++r)
+				for (int c = 0; c < 3; ++c)
+					g[3 * r + c] = -(inv[3 * r] * u[c] + inv[3 * r + 1] * u[3 + c] + inv[3 * r + 2] * u[6 + c]);
+			gains[k - 1] = g;
+			/* D'_k = D_k - L_k g with L_k = U^T = -spq^T */
+			final double[] d = diagonal[k].clone();
+			for (int r = 0; r < 3; ++r)
+				for (int c = 0; c < 3; ++c)
+					d[3 * r + c] += u[r] * g[c] + u[3 + r] * g[3 + c] + u[6 + r] * g[6 + c];
+			inverses[k] = inverse3(d);
+		}
+
+		final double[][] y = new double[numTiles][6];
+		for (int i = 0; i < maxIterations; ++i) {
+
+			/* right hand sides mu T_k r_k + damping r_k, forward substitution */
+			for (int k = 0; k < numTiles; ++k) {
+				final double[] r = closestRigid(a[k], moments[k]);
+				final double[] t = moments[k];
+				final double[] b = new double[6];
+				for (int c = 0; c < 2; ++c)
+					for (int j = 0; j < 3; ++j)
+						b[3 * c + j] = mu * (t[3 * j] * r[3 * c] + t[3 * j + 1] * r[3 * c + 1] + t[3 * j + 2] * r[3 * c + 2]) + damping[k] * r[3 * c + j];
+				if (k > 0) {
+					/* b -= L_k y_{k-1} with L_k = -spq^T */
+					final double[] u = spq[k - 1];
+					final double[] yp = y[k - 1];
+					for (int c = 0; c < 2; ++c)
+						for (int j = 0; j < 3; ++j)
+							b[3 * c + j] += u[j] * yp[3 * c] + u[3 + j] * yp[3 * c + 1] + u[6 + j] * yp[3 * c + 2];
+				}
+				final double[] inv = inverses[k];
+				for (int c = 0; c < 2; ++c)
+					for (int j = 0; j < 3; ++j)
+						y[k][3 * c + j] = inv[3 * j] * b[3 * c] + inv[3 * j + 1] * b[3 * c + 1] + inv[3 * j + 2] * b[3 * c + 2];
+			}
+
+			/* back substitution */
+			double maxChange = 0;
+			final double[] x = new double[6];
+			for (int k = numTiles - 1; k >= 0; --k) {
+				System.arraycopy(y[k], 0, x, 0, 6);
+				if (k < numTiles - 1) {
+					final double[] g = gains[k];
+					final double[] xn = a[k + 1];
+					for (int c = 0; c < 2; ++c)
+						for (int j = 0; j < 3; ++j)
+							x[3 * c + j] -= g[3 * j] * xn[3 * c] + g[3 * j + 1] * xn[3 * c + 1] + g[3 * j + 2] * xn[3 * c + 2];
+				}
+
+				/* weighted mean square displacement of the tile's matches */
+				final double[] t = moments[k];
+				double sum = 0;
+				for (int c = 0; c < 2; ++c)
+					for (int j = 0; j < 3; ++j)
+						for (int l = 0; l < 3; ++l)
+							sum += (x[3 * c + j] - a[k][3 * c + j]) * t[3 * j + l] * (x[3 * c + l] - a[k][3 * c + l]);
+				if (t[8] > 0)
+					maxChange = Math.max(maxChange, Math.sqrt(Math.max(0, sum) / t[8]));
+
+				a[k] = x.clone();
+			}
+
+			if (maxChange < tolerance)
+				break;
+		}
+
+		final AffineModel2D[] models = new AffineModel2D[numTiles];
+		for (int k = 0; k < numTiles; ++k)
+			models[k] = toModel(a[k]);
+
+		return models;
+	}
+}
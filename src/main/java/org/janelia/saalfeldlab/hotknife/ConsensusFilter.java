@@ -31,4 +31,9 @@ public interface ConsensusFilter extends Serializable {
 
 	public ArrayList<PointMatch> filter(final List<PointMatch> candidates);
 
+	public default PackedPointMatches filter(final PackedPointMatches candidates) {
+
+		return PackedPointMatches.pack(filter(candidates.toPointMatches()), candidates.numDimensions());
+	}
+
 }
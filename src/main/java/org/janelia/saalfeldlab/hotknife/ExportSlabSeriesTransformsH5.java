@@ -22,10 +22,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.n5.N5;
 import org.janelia.saalfeldlab.n5.N5Reader;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -310,6 +309,25 @@ public class ExportSlabSeriesTransformsH5 {
 	}
 
 
+	/**
+	 * Block size of a saved position field, 1024 per dimension for affines.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	static protected int[] positionFieldBlockSize(
+			final N5Reader n5,
+			final String datasetName) throws IOException {
+
+		if (Transform.AFFINE_TYPE.equals(Transform.getTransformType(n5, datasetName)))
+			return new int[]{1024, 1024, 2};
+
+		return n5.getDatasetAttributes(datasetName).getBlockSize();
+	}
+
+
 	public static final void main(final String... args) throws IOException, InterruptedException, ExecutionException {
 
 		final Options options = new Options(args);
@@ -352,14 +370,12 @@ public class ExportSlabSeriesTransformsH5 {
 
 			System.out.printf( "Exporting '%s' and '%s' ...", topDatasetName, botDatasetName );
 
-			final RandomAccessibleInterval<DoubleType> topPositionField = N5Utils.open(n5, topDatasetName);
-			final RandomAccessibleInterval<DoubleType> botPositionField = N5Utils.open(n5, botDatasetName);
-
-			final DatasetAttributes topAttributes = n5.getDatasetAttributes(topDatasetName);
-			final DatasetAttributes botAttributes = n5.getDatasetAttributes(botDatasetName);
+			/* affines are rastered such that the export always contains position fields */
+			final RandomAccessibleInterval<DoubleType> topPositionField = Transform.openPositionField(n5, topDatasetName);
+			final RandomAccessibleInterval<DoubleType> botPositionField = Transform.openPositionField(n5, botDatasetName);
 
-			saveDouble(topPositionField, hdf5Writer, topDatasetName, topAttributes.getBlockSize());
-			saveDouble(botPositionField, hdf5Writer, botDatasetName, botAttributes.getBlockSize());
+			saveDouble(topPositionField, hdf5Writer, topDatasetName, positionFieldBlockSize(n5, topDatasetName));
+			saveDouble(botPositionField, hdf5Writer, botDatasetName, positionFieldBlockSize(n5, botDatasetName));
 
 			saveUint64Attribute(topOffsets.get(i), hdf5Writer, topDatasetName, "faceOffset");
 			saveUint64Attribute(botOffsets.get(i), hdf5Writer, botDatasetName, "faceOffset");
@@ -0,0 +1,403 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Block matching in the frequency domain for large search distances.
+ *
+ * Instead of evaluating the PMCC for every pixel and every offset in the
+ * search disk, the image is split into block windows on a lattice with a
+ * stride proportional to the block radius.  For each window, the normalized
+ * cross-correlation surface over all offsets is computed with a single
+ * complex FFT of size P &ge; 2(distance + blockRadius) + 1 that transforms
+ * the zero-mean template and the search region at once.  The best offset of
+ * a window is assigned to all pixels of its lattice cell.  The cost per
+ * radius is O((pixels / stride<sup>2</sup>) P<sup>2</sup> log P) instead of
+ * O(pixels distance<sup>2</sup>).
+ *
+ * Semantics follow {@link PMCCScaleSpaceBlockFlow#opticFlow}, i.e. the value
+ * for offset (xo, yo) at pixel p compares the block in ip1 at p - o with
+ * the block in ip2 at p and is the signed square of the correlation
+ * coefficient.  Unlike the integral image implementation, blocks are not
+ * clipped at the image boundary but border extended.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class FFTBlockPMCC {
+
+	/**
+	 * minimal lattice spacing of block windows, smaller block radii would
+	 * not pay off in the frequency domain
+	 */
+	final static public int MIN_STRIDE = 4;
+
+	final protected int width;
+	final protected int height;
+	final protected float[] ip1Pixels;
+	final protected float[] ip2Pixels;
+
+	public FFTBlockPMCC(final FloatProcessor ip1, final FloatProcessor ip2) {
+
+		width = ip1.getWidth();
+		height = ip1.getHeight();
+		ip1Pixels = (float[])ip1.getPixels();
+		ip2Pixels = (float[])ip2.getPixels();
+	}
+
+	public static int stride(final int blockRadius) {
+
+		return Math.max(MIN_STRIDE, blockRadius);
+	}
+
+	/**
+	 * Per worker FFT buffers.
+	 */
+	protected static class Workspace {
+
+		final int size;
+		final int log2Size;
+		final double[] re;
+		final double[] im;
+		final double[] productRe;
+		final double[] productIm;
+		final double[] lineRe;
+		final double[] lineIm;
+		final double[] cos;
+		final double[] sin;
+		final double[] sums;
+		final double[] sumsOfSquares;
+
+		Workspace(final int minSize) {
+
+			int s = 1;
+			int l = 0;
+			while (s < minSize) {
+				s <<= 1;
+				++l;
+			}
+			size = s;
+			log2Size = l;
+			re = new double[s * s];
+			im = new double[s * s];
+			productRe = new double[s * s];
+			productIm = new double[s * s];
+			lineRe = new double[s];
+			lineIm = new double[s];
+			cos = new double[s / 2 + 1];
+			sin = new double[s / 2 + 1];
+			for (int k = 0; k < cos.length; ++k) {
+				final double phi = -2.0 * Math.PI * k / s;
+				cos[k] = Math.cos(phi);
+				sin[k] = Math.sin(phi);
+			}
+			sums = new double[(s + 1) * (s + 1)];
+			sumsOfSquares = new double[(s + 1) * (s + 1)];
+		}
+
+		/**
+		 * In place iterative radix-2 forward FFT of one line.
+		 */
+		void fft(final double[] lre, final double[] lim) {
+
+			final int n = size;
+			for (int i = 1, j = 0; i < n; ++i) {
+				int bit = n >> 1;
+				for (; (j & bit) != 0; bit >>= 1)
+					j ^= bit;
+				j ^= bit;
+				if (i < j) {
+					final double tre = lre[i];
+					lre[i] = lre[j];
+					lre[j] = tre;
+					final double tim = lim[i];
+					lim[i] = lim[j];
+					lim[j] = tim;
+				}
+			}
+			for (int len = 2; len <= n; len <<= 1) {
+				final int half = len >> 1;
+				final int step = n / len;
+				for (int i = 0; i < n; i += len) {
+					for (int k = 0; k < half; ++k) {
+						final double wre = cos[k * step];
+						final double wim = sin[k * step];
+						final int a = i + k;
+						final int b = a + half;
+						final double xre = lre[b] * wre - lim[b] * wim;
+						final double xim = lre[b] * wim + lim[b] * wre;
+						lre[b] = lre[a] - xre;
+						lim[b] = lim[a] - xim;
+						lre[a] += xre;
+						lim[a] += xim;
+					}
+				}
+			}
+		}
+
+		/**
+		 * In place forward 2D FFT, rows then columns.
+		 */
+		void fft2D(final double[] dre, final double[] dim) {
+
+			final int n = size;
+			for (int y = 0; y < n; ++y) {
+				final int row = y * n;
+				System.arraycopy(dre, row, lineRe, 0, n);
+				System.arraycopy(dim, row, lineIm, 0, n);
+				fft(lineRe, lineIm);
+				System.arraycopy(lineRe, 0, dre, row, n);
+				System.arraycopy(lineIm, 0, dim, row, n);
+			}
+			for (int x = 0; x < n; ++x) {
+				for (int y = 0, i = x; y < n; ++y, i += n) {
+					lineRe[y] = dre[i];
+					lineIm[y] = dim[i];
+				}
+				fft(lineRe, lineIm);
+				for (int y = 0, i = x; y < n; ++y, i += n) {
+					dre[i] = lineRe[y];
+					dim[i] = lineIm[y];
+				}
+			}
+		}
+
+		/**
+		 * In place inverse 2D FFT via conjugation, not normalized.
+		 */
+		void inverseFFT2D(final double[] dre, final double[] dim) {
+
+			for (int i = 0; i < dim.length; ++i)
+				dim[i] = -dim[i];
+			fft2D(dre, dim);
+			for (int i = 0; i < dim.length; ++i)
+				dim[i] = -dim[i];
+		}
+	}
+
+	final protected float get(final float[] pixels, final int x, final int y) {
+
+		final int cx = x < 0 ? 0 : x >= width ? width - 1 : x;
+		final int cy = y < 0 ? 0 : y >= height ? height - 1 : y;
+		return pixels[cy * width + cx];
+	}
+
+	/**
+	 * Computes the best offset for the block window centered at (cx, cy) and
+	 * writes it into all pixels of the lattice cell [x0, x1) &times; [y0, y1).
+	 */
+	protected void processWindow(
+			final Workspace ws,
+			final int cx,
+			final int cy,
+			final int x0,
+			final int x1,
+			final int y0,
+			final int y1,
+			final int blockRadius,
+			final int distance,
+			final int[][] offsets,
+			final float[] rMax,
+			final short[] xShift,
+			final short[] yShift) {
+
+		final int p = ws.size;
+		final int blockSize = 2 * blockRadius + 1;
+		final int searchSize = 2 * (distance + blockRadius) + 1;
+		final double n = blockSize * blockSize;
+		final double[] re = ws.re;
+		final double[] im = ws.im;
+
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+
+		/* zero-mean template from ip2 into the real part */
+		double sumT = 0;
+		for (int vy = 0; vy < blockSize; ++vy)
+			for (int vx = 0; vx < blockSize; ++vx)
+				sumT += get(ip2Pixels, cx - blockRadius + vx, cy - blockRadius + vy);
+		final double meanT = sumT / n;
+		double varT = 0;
+		for (int vy = 0; vy < blockSize; ++vy) {
+			final int row = vy * p;
+			for (int vx = 0; vx < blockSize; ++vx) {
+				final double t = get(ip2Pixels, cx - blockRadius + vx, cy - blockRadius + vy) - meanT;
+				re[row + vx] = t;
+				varT += t * t;
+			}
+		}
+		if (!(varT > 0))
+			return;
+
+		/* search region from ip1 into the imaginary part, and its integral images */
+		final double[] sums = ws.sums;
+		final double[] sumsOfSquares = ws.sumsOfSquares;
+		final int sumsWidth = searchSize + 1;
+		for (int uy = 0; uy < searchSize; ++uy) {
+			final int row = uy * p;
+			final int sumsRow = (uy + 1) * sumsWidth;
+			double rowSum = 0;
+			double rowSumOfSquares = 0;
+			for (int ux = 0; ux < searchSize; ++ux) {
+				final double s = get(ip1Pixels, cx - distance - blockRadius + ux, cy - distance - blockRadius + uy);
+				im[row + ux] = s;
+				rowSum += s;
+				rowSumOfSquares += s * s;
+				sums[sumsRow + ux + 1] = sums[sumsRow - sumsWidth + ux + 1] + rowSum;
+				sumsOfSquares[sumsRow + ux + 1] = sumsOfSquares[sumsRow - sumsWidth + ux + 1] + rowSumOfSquares;
+			}
+		}
+
+		ws.fft2D(re, im);
+
+		/* separate both spectra and multiply conj(T) * S */
+		final double[] productRe = ws.productRe;
+		final double[] productIm = ws.productIm;
+		final int mask = p - 1;
+		for (int ky = 0; ky < p; ++ky) {
+			final int row = ky * p;
+			final int mirrorRow = ((p - ky) & mask) * p;
+			for (int kx = 0; kx < p; ++kx) {
+				final int i = row + kx;
+				final int j = mirrorRow + ((p - kx) & mask);
+				final double zre = re[i];
+				final double zim = im[i];
+				final double zjre = re[j];
+				final double zjim = -im[j];
+				/* T = (Z(k) + conj(Z(-k))) / 2, S = (Z(k) - conj(Z(-k))) / 2i */
+				final double tre = 0.5 * (zre + zjre);
+				final double tim = 0.5 * (zim + zjim);
+				final double sre = 0.5 * (zim - zjim);
+				final double sim = -0.5 * (zre - zjre);
+				productRe[i] = tre * sre + tim * sim;
+				productIm[i] = tre * sim - tim * sre;
+			}
+		}
+
+		ws.inverseFFT2D(productRe, productIm);
+		final double norm = 1.0 / ((double)p * p);
+
+		/* argmax over the search disk, first offset wins for equal values */
+		float best = -1;
+		int bestXo = 0;
+		int bestYo = 0;
+		for (final int[] offset : offsets) {
+			final int kx = distance - offset[0];
+			final int ky = distance - offset[1];
+			final int a = ky * sumsWidth + kx;
+			final int b = a + blockSize;
+			final int c = a + blockSize * sumsWidth;
+			final int d = c + blockSize;
+			final double sumS = sums[d] - sums[c] - sums[b] + sums[a];
+			final double sumSS = sumsOfSquares[d] - sumsOfSquares[c] - sumsOfSquares[b] + sumsOfSquares[a];
+			final double varS = sumSS - sumS * sumS / n;
+			if (!(varS > 0))
+				continue;
+			final double cov = productRe[ky * p + kx] * norm;
+			final float r = (float)(cov * Math.abs(cov) / (varT * varS));
+			if (r > best) {
+				best = r;
+				bestXo = offset[0];
+				bestYo = offset[1];
+			}
+		}
+
+		for (int y = y0; y < y1; ++y) {
+			final int row = y * width;
+			for (int x = x0; x < x1; ++x) {
+				final int i = row + x;
+				if (best > rMax[i]) {
+					rMax[i] = best;
+					xShift[i] = (short)bestXo;
+					yShift[i] = (short)bestYo;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the maximum signed square PMCC and the corresponding shifts of
+	 * all pixels in [distance, width - distance) &times; [distance,
+	 * height - distance) for one block radius.
+	 *
+	 * @param blockRadius
+	 * @param distance
+	 * @param rMax
+	 * @param xShift
+	 * @param yShift
+	 * @param foreground if not null, lattice cells that overlap no active
+	 * 		tile are skipped
+	 * @param pool if null, run in the calling thread
+	 * @param numTasks
+	 */
+	public void updateMaxima(
+			final int blockRadius,
+			final int distance,
+			final float[] rMax,
+			final short[] xShift,
+			final short[] yShift,
+			final ForegroundTiles foreground,
+			final ForkJoinPool pool,
+			final int numTasks) {
+
+		final int[][] offsets = PMCCScaleSpaceBlockFlow.searchOffsets(distance);
+		final int stride = stride(blockRadius);
+		final int searchSize = 2 * (distance + blockRadius) + 1;
+
+		final int xMax = width - distance;
+		final int yMax = height - distance;
+		final int numRows = Math.max(0, (yMax - distance + stride - 1) / stride);
+
+		final ArrayList<Runnable> chunks = new ArrayList<>();
+		final int numChunks = Math.max(1, Math.min(numTasks, numRows));
+		for (int t = 0; t < numChunks; ++t) {
+			final int fromRow = numRows * t / numChunks;
+			final int toRow = numRows * (t + 1) / numChunks;
+			chunks.add(() -> {
+				final Workspace ws = new Workspace(searchSize);
+				for (int row = fromRow; row < toRow; ++row) {
+					final int y0 = distance + row * stride;
+					final int y1 = Math.min(y0 + stride, yMax);
+					final int cy = (y0 + y1) / 2;
+					for (int x0 = distance; x0 < xMax; x0 += stride) {
+						final int x1 = Math.min(x0 + stride, xMax);
+						if (foreground != null && !foreground.isActive(x0, y0, x1, y1))
+							continue;
+						final int cx = (x0 + x1) / 2;
+						processWindow(ws, cx, cy, x0, x1, y0, y1, blockRadius, distance, offsets, rMax, xShift, yShift);
+					}
+				}
+			});
+		}
+
+		if (pool == null || chunks.size() == 1)
+			chunks.forEach(Runnable::run);
+		else {
+			final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (final Runnable chunk : chunks)
+				tasks.add(pool.submit(chunk));
+			for (final ForkJoinTask<?> task : tasks)
+				task.join();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Spatial grid of {@link Feature Features} for matching with a prior.  Each
+ * feature is compared only against the features within a radius around its
+ * predicted location and the ratio of distances test is applied to the
+ * nearest and second nearest descriptor among those.  Features are
+ * bucketed into square cells with at least the radius as edge length so
+ * that a query visits at most 3x3 cells.  Cells grow beyond the radius for
+ * sparse features to keep the number of cells in the order of the number
+ * of features.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class FeatureGrid {
+
+	final private List<Feature> features;
+	final private double radius;
+	final private double cellSize;
+	final private double minX;
+	final private double minY;
+	final private int width;
+	final private int height;
+
+	/* feature indices sorted by cell, cell i spans [cellStart[i], cellStart[i + 1]) */
+	final private int[] cellStart;
+	final private int[] index;
+
+	public FeatureGrid(final List<Feature> features, final double radius) {
+
+		if (!(radius > 0))
+			throw new IllegalArgumentException("radius must be positive, is " + radius);
+
+		this.features = features;
+		this.radius = radius;
+
+		final int n = features.size();
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (final Feature feature : features) {
+			minX = Math.min(minX, feature.location[0]);
+			minY = Math.min(minY, feature.location[1]);
+			maxX = Math.max(maxX, feature.location[0]);
+			maxY = Math.max(maxY, feature.location[1]);
+		}
+		if (n == 0)
+			minX = minY = maxX = maxY = 0;
+
+		this.minX = minX;
+		this.minY = minY;
+		cellSize = Math.max(
+				radius,
+				Math.max(
+						Math.sqrt((maxX - minX) * (maxY - minY) / Math.max(1, n)),
+						Math.max(maxX - minX, maxY - minY) / Math.max(1, n)));
+		width = (int)((maxX - minX) / cellSize) + 1;
+		height = (int)((maxY - minY) / cellSize) + 1;
+
+		/* counting sort by cell */
+		final int[] cells = new int[n];
+		cellStart = new int[width * height + 1];
+		for (int i = 0; i < n; ++i) {
+			final double[] l = features.get(i).location;
+			cells[i] = cell(l[0], l[1]);
+			++cellStart[cells[i] + 1];
+		}
+		for (int i = 1; i < cellStart.length; ++i)
+			cellStart[i] += cellStart[i - 1];
+		index = new int[n];
+		final int[] fill = new int[width * height];
+		for (int i = 0; i < n; ++i)
+			index[cellStart[cells[i]] + fill[cells[i]]++] = i;
+	}
+
+	private int cell(final double x, final double y) {
+
+		return (int)((y - minY) / cellSize) * width + (int)((x - minX) / cellSize);
+	}
+
+	public double getRadius() {
+
+		return radius;
+	}
+
+	/**
+	 * Match features against the features in this grid with the ratio of
+	 * distances test and remove ambiguous matches.  Feature locations are
+	 * mapped into the space of this grid by prior, null means identity.
+	 *
+	 * @param fs1
+	 * @param rod ratio of best and second best descriptor distance
+	 * @param prior
+	 * @return
+	 */
+	public ArrayList<PointMatch> matchFeatures(
+			final List<Feature> fs1,
+			final double rod,
+			final RealTransform prior) {
+
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		final double[] predicted = new double[2];
+		final double r2 = radius * radius;
+
+		for (final Feature f1 : fs1) {
+
+			if (prior == null) {
+				predicted[0] = f1.location[0];
+				predicted[1] = f1.location[1];
+			} else
+				prior.apply(f1.location, predicted);
+
+			final int x = (int)Math.floor((predicted[0] - minX) / cellSize);
+			final int y = (int)Math.floor((predicted[1] - minY) / cellSize);
+
+			Feature best = null;
+			double d1 = Double.MAX_VALUE, d2 = Double.MAX_VALUE;
+			for (int yi = Math.max(0, y - 1); yi <= Math.min(height - 1, y + 1); ++yi) {
+				for (int xi = Math.max(0, x - 1); xi <= Math.min(width - 1, x + 1); ++xi) {
+					final int c = yi * width + xi;
+					for (int i = cellStart[c]; i < cellStart[c + 1]; ++i) {
+						final Feature f2 = features.get(index[i]);
+						final double dx = f2.location[0] - predicted[0];
+						final double dy = f2.location[1] - predicted[1];
+						if (dx * dx + dy * dy > r2)
+							continue;
+						final double d = f1.descriptorDistance(f2);
+						if (d < d1) {
+							d2 = d1;
+							d1 = d;
+							best = f2;
+						} else if (d < d2)
+							d2 = d;
+					}
+				}
+			}
+
+			if (best != null && d2 < Double.MAX_VALUE && d1 / d2 < rod)
+				matches.add(
+						new PointMatch(
+								new Point(new double[]{f1.location[0], f1.location[1]}),
+								new Point(new double[]{best.location[0], best.location[1]})));
+		}
+
+		return FeatureKDTree.removeAmbiguousMatches(matches);
+	}
+}
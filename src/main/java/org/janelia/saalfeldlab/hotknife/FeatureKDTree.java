@@ -0,0 +1,547 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Forest of KD-trees over {@link Feature} descriptors for ratio of distances matching
+ * as in {@link mpicbg.ij.FeatureTransform#matchFeatures(java.util.Collection, java.util.Collection, List, double)}
+ * without comparing all pairs.
+ *
+ * Searches visit leaves of all trees in the order of their exact lower
+ * distance bound (priority search).  The approximation is controlled by epsilon and
+ * maxChecks.  Leaves whose lower bound, multiplied by (1 + epsilon), is
+ * not closer than the current second nearest neighbor are skipped, i.e.
+ * the reported second nearest distance is at most (1 + epsilon) times the
+ * true one.  Search stops after maxChecks descriptors were compared.  With
+ * epsilon = 0 and maxChecks = 0, the search is exact and matching
+ * reproduces the brute force result.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class FeatureKDTree {
+
+	final static public int DEFAULT_LEAF_SIZE = 8;
+
+	/* number of elements sampled to pick a split dimension */
+	final static private int SAMPLE_SIZE = 128;
+
+	/* number of largest spread dimensions that randomized trees pick from */
+	final static public int RANDOM_DIMENSIONS = 5;
+
+	/**
+	 * Binary min-heap of nodes keyed by their lower distance bound.
+	 */
+	final static private class Queue {
+
+		private int[] nodes = new int[64];
+		private double[] bounds = new double[64];
+		private int size = 0;
+
+		/* stamps of features compared in the current search */
+		private int[] stamps = new int[0];
+		private int stamp = 0;
+
+		int[] nextStamp(final int n) {
+
+			if (stamps.length < n || stamp == Integer.MAX_VALUE) {
+				stamps = new int[n];
+				stamp = 0;
+			}
+			++stamp;
+			return stamps;
+		}
+
+		void clear() {
+
+			size = 0;
+		}
+
+		void push(final int node, final double bound) {
+
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+				bounds = Arrays.copyOf(bounds, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				final int parent = (i - 1) >> 1;
+				if (bounds[parent] <= bound)
+					break;
+				nodes[i] = nodes[parent];
+				bounds[i] = bounds[parent];
+				i = parent;
+			}
+			nodes[i] = node;
+			bounds[i] = bound;
+		}
+
+		double topBound() {
+
+			return bounds[0];
+		}
+
+		int pop() {
+
+			final int top = nodes[0];
+			final int node = nodes[--size];
+			final double bound = bounds[size];
+			int i = 0;
+			for (int child = 1; child < size; child = 2 * i + 1) {
+				if (child + 1 < size && bounds[child + 1] < bounds[child])
+					++child;
+				if (bound <= bounds[child])
+					break;
+				nodes[i] = nodes[child];
+				bounds[i] = bounds[child];
+				i = child;
+			}
+			nodes[i] = node;
+			bounds[i] = bound;
+			return top;
+		}
+	}
+
+	final private List<Feature> features;
+	final private int n;
+	final private int d;
+	final private int leafSize;
+	final private Random random;
+
+	/* descriptors in feature order */
+	final private float[] data;
+	/* feature indices in tree order, numTrees consecutive blocks of n */
+	final private int[] index;
+	final private int[] roots;
+
+	/* nodes, split dimension is -1 for leaves which store start and end in left and right */
+	private int numNodes = 0;
+	private int[] dim;
+	private float[] split;
+	private float[] lo;
+	private float[] hi;
+	private int[] left;
+	private int[] right;
+
+	/**
+	 * Create a forest of numTrees randomized KD-trees.  The first tree splits
+	 * the dimension of largest spread, all others pick randomly from the
+	 * {@link #RANDOM_DIMENSIONS} dimensions with largest spread.  Searches
+	 * with a maxChecks budget find the true neighbors more often in a forest
+	 * than in a single tree.
+	 *
+	 * @param features
+	 * @param numTrees
+	 * @param leafSize
+	 * @param seed
+	 */
+	public FeatureKDTree(final List<Feature> features, final int numTrees, final int leafSize, final long seed) {
+
+		this.features = features;
+		this.leafSize = Math.max(1, leafSize);
+		random = new Random(seed);
+		n = features.size();
+		d = n == 0 ? 0 : features.get(0).descriptor.length;
+
+		data = new float[n * d];
+		for (int i = 0; i < n; ++i)
+			System.arraycopy(features.get(i).descriptor, 0, data, i * d, d);
+
+		final int t = Math.max(1, numTrees);
+		index = new int[t * n];
+		roots = new int[t];
+
+		final int capacity = Math.max(1, t * (4 * n / this.leafSize + 1));
+		dim = new int[capacity];
+		split = new float[capacity];
+		lo = new float[capacity];
+		hi = new float[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+
+		final float[] boxMin = new float[d];
+		final float[] boxMax = new float[d];
+		Arrays.fill(boxMin, Float.POSITIVE_INFINITY);
+		Arrays.fill(boxMax, Float.NEGATIVE_INFINITY);
+		for (int i = 0, o = 0; i < n; ++i) {
+			for (int k = 0; k < d; ++k, ++o) {
+				boxMin[k] = Math.min(boxMin[k], data[o]);
+				boxMax[k] = Math.max(boxMax[k], data[o]);
+			}
+		}
+
+		for (int j = 0; j < t; ++j) {
+			final int offset = j * n;
+			for (int i = 0; i < n; ++i)
+				index[offset + i] = i;
+			roots[j] = build(offset, offset + n, boxMin, boxMax, j > 0);
+		}
+	}
+
+	public FeatureKDTree(final List<Feature> features, final int numTrees) {
+
+		this(features, numTrees, DEFAULT_LEAF_SIZE, 0);
+	}
+
+	public FeatureKDTree(final List<Feature> features) {
+
+		this(features, 1);
+	}
+
+	public int size() {
+
+		return n;
+	}
+
+	public Feature get(final int i) {
+
+		return features.get(i);
+	}
+
+	private int addNode() {
+
+		if (numNodes == dim.length) {
+			final int capacity = numNodes * 2;
+			dim = Arrays.copyOf(dim, capacity);
+			split = Arrays.copyOf(split, capacity);
+			lo = Arrays.copyOf(lo, capacity);
+			hi = Arrays.copyOf(hi, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+		}
+		return numNodes++;
+	}
+
+	private float value(final int i, final int k) {
+
+		return data[index[i] * d + k];
+	}
+
+	/**
+	 * Partition index[start, end) such that the element at nth is in sorted
+	 * position along dimension k.
+	 */
+	private void select(int start, int end, final int nth, final int k) {
+
+		while (end - start > 1) {
+			final float pivot = value((start + end) >>> 1, k);
+			int i = start, j = end - 1;
+			while (i <= j) {
+				while (value(i, k) < pivot) ++i;
+				while (value(j, k) > pivot) --j;
+				if (i <= j) {
+					final int t = index[i];
+					index[i++] = index[j];
+					index[j--] = t;
+				}
+			}
+			if (nth <= j)
+				end = j + 1;
+			else if (nth >= i)
+				start = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Pick the split dimension from the spread of a sample of at most
+	 * {@link #SAMPLE_SIZE} elements of index[start, end).
+	 *
+	 * @return split dimension or -1 if all sampled elements are equal
+	 */
+	private int splitDimension(final int start, final int end, final boolean randomized) {
+
+		final int step = Math.max(1, (end - start) / SAMPLE_SIZE);
+		final int[] top = new int[randomized ? RANDOM_DIMENSIONS : 1];
+		final float[] topSpread = new float[top.length];
+		int numTop = 0;
+		for (int k = 0; k < d; ++k) {
+			float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+			for (int i = start; i < end; i += step) {
+				final float v = value(i, k);
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+			final float spread = max - min;
+			if (spread > 0 && (numTop < top.length || spread > topSpread[numTop - 1])) {
+				int l = numTop < top.length ? numTop++ : numTop - 1;
+				for (; l > 0 && topSpread[l - 1] < spread; --l) {
+					top[l] = top[l - 1];
+					topSpread[l] = topSpread[l - 1];
+				}
+				top[l] = k;
+				topSpread[l] = spread;
+			}
+		}
+		return numTop == 0 ? -1 : top[randomized ? random.nextInt(numTop) : 0];
+	}
+
+	private int build(final int start, final int end, final float[] boxMin, final float[] boxMax, final boolean randomized) {
+
+		final int node = addNode();
+
+		final int k = end - start > leafSize ? splitDimension(start, end, randomized) : -1;
+
+		if (k < 0) {
+			dim[node] = -1;
+			left[node] = start;
+			right[node] = end;
+			return node;
+		}
+
+		final int mid = (start + end) >>> 1;
+		select(start, end, mid, k);
+
+		final float s = value(mid, k);
+
+		dim[node] = k;
+		split[node] = s;
+		lo[node] = boxMin[k];
+		hi[node] = boxMax[k];
+
+		final float max = boxMax[k];
+		boxMax[k] = s;
+		final int leftNode = build(start, mid, boxMin, boxMax, randomized);
+		boxMax[k] = max;
+
+		final float min = boxMin[k];
+		boxMin[k] = s;
+		final int rightNode = build(mid, end, boxMin, boxMax, randomized);
+		boxMin[k] = min;
+
+		left[node] = leftNode;
+		right[node] = rightNode;
+
+		return node;
+	}
+
+	private int searchTwoNearest(
+			final float[] q,
+			final double epsilon,
+			final int maxChecks,
+			final Queue queue,
+			final int[] indices,
+			final double[] sqDistances) {
+
+		final double f = (1.0 + epsilon) * (1.0 + epsilon);
+		double d1 = Double.MAX_VALUE, d2 = Double.MAX_VALUE;
+		int i1 = -1, i2 = -1;
+		int checks = 0;
+
+		queue.clear();
+		if (n > 0)
+			for (final int root : roots)
+				queue.push(root, 0);
+		/* features compared in this search, only needed for more than one tree */
+		final int[] checked = roots.length > 1 ? queue.nextStamp(n) : null;
+		final int stamp = queue.stamp;
+
+		while (queue.size > 0) {
+			final double bound = queue.topBound();
+			if (bound * f >= d2)
+				break;
+			int node = queue.pop();
+
+			while (dim[node] >= 0) {
+				final int k = dim[node];
+				final float qk = q[k];
+				final float s = split[node];
+				final double off = qk < lo[node] ? lo[node] - qk : qk > hi[node] ? qk - hi[node] : 0;
+				final int near, far;
+				final double diff;
+				if (qk < s) {
+					near = left[node];
+					far = right[node];
+					diff = s - qk;
+				} else {
+					near = right[node];
+					far = left[node];
+					diff = qk - s;
+				}
+				final double farBound = bound - off * off + diff * diff;
+				if (farBound * f < d2)
+					queue.push(far, farBound);
+				node = near;
+			}
+
+			for (int i = left[node]; i < right[node]; ++i) {
+				final int j = index[i];
+				if (checked != null) {
+					if (checked[j] == stamp)
+						continue;
+					checked[j] = stamp;
+				}
+				/* stop summing once farther than the second nearest */
+				double sum = 0;
+				for (int l = 0, o = j * d; l < d && sum < d2; ++l, ++o) {
+					final double a = q[l] - data[o];
+					sum += a * a;
+				}
+				if (sum < d1) {
+					d2 = d1;
+					i2 = i1;
+					d1 = sum;
+					i1 = j;
+				} else if (sum < d2) {
+					d2 = sum;
+					i2 = j;
+				}
+				++checks;
+			}
+
+			if (maxChecks > 0 && checks >= maxChecks)
+				break;
+		}
+
+		sqDistances[0] = d1;
+		sqDistances[1] = d2;
+		indices[0] = i1;
+		indices[1] = i2;
+
+		return i1 < 0 ? 0 : i2 < 0 ? 1 : 2;
+	}
+
+	/**
+	 * Find the two nearest neighbors of a descriptor.
+	 *
+	 * @param q descriptor
+	 * @param epsilon approximation bound, 0 for exact
+	 * @param maxChecks maximum number of compared descriptors, 0 for unlimited
+	 * @param indices feature indices of the nearest and second nearest
+	 *     neighbor, -1 if not found
+	 * @param sqDistances squared descriptor distances of the nearest and
+	 *     second nearest neighbor
+	 * @return number of neighbors found
+	 */
+	public int searchTwoNearest(
+			final float[] q,
+			final double epsilon,
+			final int maxChecks,
+			final int[] indices,
+			final double[] sqDistances) {
+
+		return searchTwoNearest(q, epsilon, maxChecks, new Queue(), indices, sqDistances);
+	}
+
+	/**
+	 * Match features against the features in this tree with the ratio of
+	 * distances test and remove ambiguous matches.
+	 *
+	 * @param fs1
+	 * @param rod ratio of best and second best descriptor distance
+	 * @param epsilon approximation bound, 0 for exact
+	 * @param maxChecks maximum number of compared descriptors per feature,
+	 *     0 for unlimited
+	 * @return
+	 */
+	public ArrayList<PointMatch> matchFeatures(
+			final List<Feature> fs1,
+			final double rod,
+			final double epsilon,
+			final int maxChecks) {
+
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		final Queue queue = new Queue();
+		final int[] indices = new int[2];
+		final double[] sqDistances = new double[2];
+		final double rod2 = rod * rod;
+
+		for (final Feature f1 : fs1) {
+			if (searchTwoNearest(f1.descriptor, epsilon, maxChecks, queue, indices, sqDistances) == 2 &&
+					sqDistances[0] < rod2 * sqDistances[1]) {
+				final Feature best = features.get(indices[0]);
+				matches.add(
+						new PointMatch(
+								new Point(new double[]{f1.location[0], f1.location[1]}),
+								new Point(new double[]{best.location[0], best.location[1]})));
+			}
+		}
+
+		return removeAmbiguousMatches(matches);
+	}
+
+	/**
+	 * Flag the matches whose target location is shared with other matches.
+	 * Shared by {@link #removeAmbiguousMatches(List)} and
+	 * {@link QuantizedFeatures#matchFeatures(QuantizedFeatures, double)}.
+	 *
+	 * @param n number of matches
+	 * @param targetX x-coordinate of the target location of match i
+	 * @param targetY y-coordinate of the target location of match i
+	 * @return true for the ambiguous matches
+	 */
+	static boolean[] ambiguousMatches(
+			final int n,
+			final IntToDoubleFunction targetX,
+			final IntToDoubleFunction targetY) {
+
+		final Integer[] order = new Integer[n];
+		for (int i = 0; i < n; ++i)
+			order[i] = i;
+		final Comparator<Integer> byTarget = (a, b) -> {
+			final int c = Double.compare(targetX.applyAsDouble(a), targetX.applyAsDouble(b));
+			return c == 0 ? Double.compare(targetY.applyAsDouble(a), targetY.applyAsDouble(b)) : c;
+		};
+		Arrays.sort(order, byTarget);
+
+		final boolean[] ambiguous = new boolean[n];
+		for (int i = 0; i < n;) {
+			int j = i + 1;
+			while (j < n && byTarget.compare(order[i], order[j]) == 0)
+				++j;
+			if (j - i > 1)
+				for (int l = i; l < j; ++l)
+					ambiguous[order[l]] = true;
+			i = j;
+		}
+
+		return ambiguous;
+	}
+
+	/**
+	 * Remove all matches whose target location is shared with other matches,
+	 * preserving the order of the remaining matches.
+	 *
+	 * @param matches
+	 * @return
+	 */
+	public static ArrayList<PointMatch> removeAmbiguousMatches(final List<PointMatch> matches) {
+
+		final boolean[] ambiguous = ambiguousMatches(
+				matches.size(),
+				i -> matches.get(i).getP2().getL()[0],
+				i -> matches.get(i).getP2().getL()[1]);
+
+		final ArrayList<PointMatch> unique = new ArrayList<>();
+		for (int i = 0; i < ambiguous.length; ++i)
+			if (!ambiguous[i])
+				unique.add(matches.get(i));
+
+		return unique;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+/**
+ * Inner loops of the block flow search.  Implementations must produce
+ * bit-identical results, {@link FlowKernels#getInstance()} picks the
+ * fastest one available on the running JVM.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public interface FlowKernel {
+
+	/**
+	 * For all i in [fromIndex, toIndex), if r[i] &gt; rMax[i], set rMax[i] to
+	 * r[i], xShift[i] to xo, and yShift[i] to yo.  NaN never wins.
+	 */
+	public void updateMaxima(
+			final float[] r,
+			final float[] rMax,
+			final short[] xShift,
+			final short[] yShift,
+			final int fromIndex,
+			final int toIndex,
+			final short xo,
+			final short yo);
+
+	/**
+	 * Signed square PMCC of length consecutive blocks of constant size from
+	 * integral images.  For block k, the sum of an integral image S with
+	 * top row start a and bottom row start b is
+	 *
+	 * S[b + k + blockWidth] - S[b + k] - S[a + k + blockWidth] + S[a + k].
+	 *
+	 * X and XX share the indices aX, bX, Y and YY share aY, bY.  Blocks with
+	 * zero variance in X or Y are NaN.
+	 */
+	public void rSignedSquare(
+			final long[] sumsX,
+			final long[] sumsXX,
+			final int aX,
+			final int bX,
+			final long[] sumsY,
+			final long[] sumsYY,
+			final int aY,
+			final int bY,
+			final long[] sumsXY,
+			final int aXY,
+			final int bXY,
+			final int blockWidth,
+			final double n,
+			final float[] r,
+			final int rOffset,
+			final int length);
+}
@@ -0,0 +1,52 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+/**
+ * Selects the {@link FlowKernel} for the running JVM.  On Java 17+ with
+ * <code>--add-modules jdk.incubator.vector</code>, the multi-release jar
+ * provides a Vector API implementation, otherwise, or if the system
+ * property <code>hotknife.flowKernel=scalar</code> is set, the
+ * {@link ScalarFlowKernel} is used.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class FlowKernels {
+
+	final static private String VECTOR_KERNEL_CLASS_NAME = "org.janelia.saalfeldlab.hotknife.VectorFlowKernel";
+
+	final static private FlowKernel instance = createInstance();
+
+	private FlowKernels() {}
+
+	static private FlowKernel createInstance() {
+
+		if (!"scalar".equals(System.getProperty("hotknife.flowKernel"))) {
+			try {
+				return (FlowKernel)Class.forName(VECTOR_KERNEL_CLASS_NAME).getDeclaredConstructor().newInstance();
+			} catch (final ReflectiveOperationException | LinkageError e) {
+				/* no vector support in this JVM */
+			}
+		}
+		return new ScalarFlowKernel();
+	}
+
+	static public FlowKernel getInstance() {
+
+		return instance;
+	}
+}
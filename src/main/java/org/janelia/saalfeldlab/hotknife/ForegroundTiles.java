@@ -0,0 +1,160 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Coarse tiling of a foreground mask.  A tile is active if any foreground
+ * pixel is within halo pixels of it (approximated conservatively on the tile
+ * grid).  Pixels in inactive tiles are pure background and can be skipped
+ * entirely when estimating flow because their weight is 0 anyway.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class ForegroundTiles {
+
+	final protected int width;
+	final protected int height;
+	final protected int tileSize;
+	final protected int numTilesX;
+	final protected int numTilesY;
+	final protected boolean[] active;
+	protected int numActiveTiles;
+	protected int activeMinX;
+	protected int activeMinY;
+	protected int activeMaxX;
+	protected int activeMaxY;
+
+	/**
+	 * @param mask foreground where != 0
+	 * @param tileSize
+	 * @param halo
+	 */
+	public ForegroundTiles(final ByteProcessor mask, final int tileSize, final int halo) {
+
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be positive (" + tileSize + ").");
+
+		width = mask.getWidth();
+		height = mask.getHeight();
+		this.tileSize = tileSize;
+		numTilesX = (width + tileSize - 1) / tileSize;
+		numTilesY = (height + tileSize - 1) / tileSize;
+
+		final byte[] maskPixels = (byte[])mask.getPixels();
+		final boolean[] foreground = new boolean[numTilesX * numTilesY];
+		for (int y = 0; y < height; ++y) {
+			final int row = y * width;
+			final int tileRow = y / tileSize * numTilesX;
+			for (int x = 0; x < width; ++x)
+				if (maskPixels[row + x] != 0)
+					foreground[tileRow + x / tileSize] = true;
+		}
+
+		/* dilate by the halo in tile units */
+		final int r = (Math.max(0, halo) + tileSize - 1) / tileSize;
+		active = new boolean[foreground.length];
+		for (int ty = 0; ty < numTilesY; ++ty) {
+			for (int tx = 0; tx < numTilesX; ++tx) {
+				if (!foreground[ty * numTilesX + tx])
+					continue;
+				for (int dy = Math.max(0, ty - r); dy <= Math.min(numTilesY - 1, ty + r); ++dy)
+					for (int dx = Math.max(0, tx - r); dx <= Math.min(numTilesX - 1, tx + r); ++dx)
+						active[dy * numTilesX + dx] = true;
+			}
+		}
+
+		activeMinX = width;
+		activeMinY = height;
+		activeMaxX = 0;
+		activeMaxY = 0;
+		for (int ty = 0; ty < numTilesY; ++ty) {
+			for (int tx = 0; tx < numTilesX; ++tx) {
+				if (active[ty * numTilesX + tx]) {
+					++numActiveTiles;
+					activeMinX = Math.min(activeMinX, tx * tileSize);
+					activeMinY = Math.min(activeMinY, ty * tileSize);
+					activeMaxX = Math.max(activeMaxX, Math.min(width, (tx + 1) * tileSize));
+					activeMaxY = Math.max(activeMaxY, Math.min(height, (ty + 1) * tileSize));
+				}
+			}
+		}
+	}
+
+	public int getTileSize() {
+
+		return tileSize;
+	}
+
+	public int getNumTiles() {
+
+		return active.length;
+	}
+
+	public int getNumActiveTiles() {
+
+		return numActiveTiles;
+	}
+
+	/**
+	 * Bounding box [minX, maxX) &times; [minY, maxY) of all active tiles
+	 * grown by halo and clipped to the mask, empty if no tile is active.
+	 *
+	 * @param halo
+	 * @return {minX, minY, maxX, maxY}
+	 */
+	public int[] activeBounds(final int halo) {
+
+		if (numActiveTiles == 0)
+			return new int[]{0, 0, 0, 0};
+
+		return new int[]{
+				Math.max(0, activeMinX - halo),
+				Math.max(0, activeMinY - halo),
+				Math.min(width, activeMaxX + halo),
+				Math.min(height, activeMaxY + halo)};
+	}
+
+	/**
+	 * @return true if the tile containing pixel (x, y) is active
+	 */
+	public boolean isActive(final int x, final int y) {
+
+		return active[y / tileSize * numTilesX + x / tileSize];
+	}
+
+	/**
+	 * @return true if any tile overlapping [x0, x1) &times; [y0, y1) is active
+	 */
+	public boolean isActive(final int x0, final int y0, final int x1, final int y1) {
+
+		for (int ty = y0 / tileSize; ty <= (y1 - 1) / tileSize; ++ty)
+			for (int tx = x0 / tileSize; tx <= (x1 - 1) / tileSize; ++tx)
+				if (active[ty * numTilesX + tx])
+					return true;
+		return false;
+	}
+
+	/**
+	 * @return the first x coordinate right of the tile containing x
+	 */
+	public int tileEnd(final int x) {
+
+		return (x / tileSize + 1) * tileSize;
+	}
+}
@@ -0,0 +1,335 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.Arrays;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Block PMCC over integral images like {@link mpicbg.ij.integral.BlockPMCC}
+ * but with the per image sums and sums of squares factored out into
+ * {@link Sums} such that they can be computed once for the fixed image and
+ * once per iteration for the moving image.  For each offset, only the
+ * integral image of the product of both images is calculated.
+ *
+ * Pixel values are quantized to fixed point such that all integral images
+ * are exact long sums.  Block statistics therefore do not depend on the
+ * region over which integral images are built.
+ *
+ * For offset (xo, yo), the value at pixel p compares the block of the
+ * fixed image X at p - o with the block of the moving image Y at p.  Blocks
+ * are clipped to the overlap of both images and the value is the signed
+ * square of the correlation coefficient, stored at p.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class IntegralBlockPMCC {
+
+	/**
+	 * Quantized pixels and integral images of the sums and sums of squares
+	 * of one image.
+	 */
+	static public class Sums {
+
+		final protected FloatProcessor ip;
+		final protected int width;
+		final protected int height;
+		final protected int[] pixels;
+		final protected long[] sums;
+		final protected long[] sumsOfSquares;
+
+		public Sums(final FloatProcessor ip) {
+
+			this(ip, 0, 0, ip.getWidth(), ip.getHeight());
+		}
+
+		/**
+		 * Quantize and integrate only [minX, maxX) &times; [minY, maxY).
+		 * Only blocks inside this region can be evaluated, pixels outside
+		 * are 0.  The fixed point scale is that of the whole image, so block
+		 * statistics inside the region are identical to those of
+		 * {@link #Sums(FloatProcessor)}.
+		 *
+		 * @param ip
+		 * @param minX
+		 * @param minY
+		 * @param maxX
+		 * @param maxY
+		 */
+		public Sums(
+				final FloatProcessor ip,
+				final int minX,
+				final int minY,
+				final int maxX,
+				final int maxY) {
+
+			this.ip = ip;
+			width = ip.getWidth();
+			height = ip.getHeight();
+
+			final float[] ipPixels = (float[])ip.getPixels();
+			final int n = ipPixels.length;
+			final int x0 = Math.max(0, minX);
+			final int y0 = Math.max(0, minY);
+			final int x1 = Math.min(width, maxX);
+			final int y1 = Math.min(height, maxY);
+
+			/* choose a power of two scale such that the sum of n squares fits into a long */
+			final int bits = Math.min(30, (62 - (64 - Long.numberOfLeadingZeros(Math.max(1, n - 1)))) / 2);
+			double maxAbs = 0;
+			for (final float v : ipPixels)
+				maxAbs = Math.max(maxAbs, Math.abs(v));
+			final int exponent = maxAbs > 0 ? bits - Math.getExponent(maxAbs) - 1 : 0;
+
+			pixels = new int[n];
+			for (int y = y0; y < y1; ++y)
+				for (int i = y * width + x0; i < y * width + x1; ++i)
+					pixels[i] = (int)Math.round(Math.scalb((double)ipPixels[i], exponent));
+
+			/* integrals are relative to (x0, y0), block differences inside
+			 * the region are exact */
+			final int stride = width + 1;
+			sums = new long[stride * (height + 1)];
+			sumsOfSquares = new long[sums.length];
+			for (int y = y0; y < y1; ++y) {
+				final int row = y * width;
+				final int sumsRow = (y + 1) * stride;
+				long rowSum = 0;
+				long rowSumOfSquares = 0;
+				for (int x = x0; x < x1; ++x) {
+					final long v = pixels[row + x];
+					rowSum += v;
+					rowSumOfSquares += v * v;
+					sums[sumsRow + x + 1] = sums[sumsRow - stride + x + 1] + rowSum;
+					sumsOfSquares[sumsRow + x + 1] = sumsOfSquares[sumsRow - stride + x + 1] + rowSumOfSquares;
+				}
+			}
+		}
+
+		public FloatProcessor getProcessor() {
+
+			return ip;
+		}
+
+		public int getWidth() {
+
+			return width;
+		}
+
+		public int getHeight() {
+
+			return height;
+		}
+	}
+
+	final protected int width;
+	final protected int height;
+	final protected int stride;
+	final protected Sums fixed;
+	final protected Sums moving;
+
+	/* integral image of X(p - o) * Y(p) over the overlap or a region of it, local coordinates */
+	final protected long[] sumsXY;
+	final protected float[] r;
+	final protected FloatProcessor fpR;
+
+	final protected FlowKernel kernel = FlowKernels.getInstance();
+
+	protected int offsetX;
+	protected int offsetY;
+	protected int overlapMinX;
+	protected int overlapMinY;
+	protected int overlapMaxX;
+	protected int overlapMaxY;
+	protected int xyMinX;
+	protected int xyMinY;
+	protected int xyStride;
+
+	public IntegralBlockPMCC(final Sums fixed, final Sums moving) {
+
+		if (fixed.width != moving.width || fixed.height != moving.height)
+			throw new IllegalArgumentException("Fixed and moving image must have the same size.");
+
+		this.fixed = fixed;
+		this.moving = moving;
+		width = fixed.width;
+		height = fixed.height;
+		stride = width + 1;
+		sumsXY = new long[stride * (height + 1)];
+		r = new float[width * height];
+		fpR = new FloatProcessor(width, height, r);
+		setOffset(0, 0);
+	}
+
+	/**
+	 * @return the signed square PMCC at the pixel positions of the moving
+	 * 		image, only pixels passed to {@link #rSignedSquare(int, int, int, int)}
+	 * 		are valid
+	 */
+	public FloatProcessor getTargetProcessor() {
+
+		return fpR;
+	}
+
+	public void setOffset(final int offsetX, final int offsetY) {
+
+		setOffset(offsetX, offsetY, 0, 0, width, height);
+	}
+
+	/**
+	 * Set the offset and integrate the product image only over the
+	 * intersection of the overlap and [minX, maxX) &times; [minY, maxY).
+	 * Only blocks inside this region can be evaluated until the next call.
+	 * Since all sums are exact, block statistics are identical to those
+	 * from integrating the full overlap.
+	 *
+	 * @param offsetX
+	 * @param offsetY
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	public void setOffset(
+			final int offsetX,
+			final int offsetY,
+			final int minX,
+			final int minY,
+			final int maxX,
+			final int maxY) {
+
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		overlapMinX = Math.max(0, offsetX);
+		overlapMinY = Math.max(0, offsetY);
+		overlapMaxX = Math.min(width, width + offsetX);
+		overlapMaxY = Math.min(height, height + offsetY);
+
+		xyMinX = Math.max(overlapMinX, minX);
+		xyMinY = Math.max(overlapMinY, minY);
+		final int xyMaxX = Math.min(overlapMaxX, maxX);
+		final int xyMaxY = Math.min(overlapMaxY, maxY);
+		final int xyWidth = Math.max(0, xyMaxX - xyMinX);
+		xyStride = xyWidth + 1;
+
+		final int[] xPixels = fixed.pixels;
+		final int[] yPixels = moving.pixels;
+
+		Arrays.fill(sumsXY, 0, xyStride, 0);
+		for (int y = xyMinY, ly = 0; y < xyMaxY; ++y, ++ly) {
+			final int row = y * width;
+			final int rowX = (y - offsetY) * width - offsetX;
+			final int sumsRow = (ly + 1) * xyStride;
+			sumsXY[sumsRow] = 0;
+			long rowSum = 0;
+			for (int lx = 0, x = xyMinX; lx < xyWidth; ++lx, ++x) {
+				rowSum += (long)xPixels[rowX + x] * yPixels[row + x];
+				sumsXY[sumsRow + lx + 1] = sumsXY[sumsRow - xyStride + lx + 1] + rowSum;
+			}
+		}
+	}
+
+	/**
+	 * Calculates the signed square PMCC for pixels [x0, x1) in row y of the
+	 * moving image.  All pixels must be inside the overlap for the current
+	 * offset and their blocks inside the region passed to
+	 * {@link #setOffset(int, int, int, int, int, int)}.
+	 *
+	 * @param blockRadius
+	 * @param y
+	 * @param x0
+	 * @param x1
+	 */
+	public void rSignedSquare(final int blockRadius, final int y, final int x0, final int x1) {
+
+		final int ya = Math.max(y - blockRadius, overlapMinY);
+		final int yb = Math.min(y + blockRadius + 1, overlapMaxY);
+
+		/* rows in the integral images of Y, X, and XY */
+		final int rowYA = ya * stride;
+		final int rowYB = yb * stride;
+		final int rowXA = (ya - offsetY) * stride - offsetX;
+		final int rowXB = (yb - offsetY) * stride - offsetX;
+		final int rowXYA = (ya - xyMinY) * xyStride - xyMinX;
+		final int rowXYB = (yb - xyMinY) * xyStride - xyMinX;
+
+		/* blocks that are not clipped horizontally have constant size */
+		final int xm0 = Math.max(x0, overlapMinX + blockRadius);
+		final int xm1 = Math.min(x1, overlapMaxX - blockRadius);
+		if (xm0 < xm1) {
+			rSignedSquareClipped(blockRadius, y, x0, xm0, ya, yb, rowYA, rowYB, rowXA, rowXB, rowXYA, rowXYB);
+			final int xa = xm0 - blockRadius;
+			final int blockWidth = 2 * blockRadius + 1;
+			kernel.rSignedSquare(
+					fixed.sums,
+					fixed.sumsOfSquares,
+					rowXA + xa,
+					rowXB + xa,
+					moving.sums,
+					moving.sumsOfSquares,
+					rowYA + xa,
+					rowYB + xa,
+					sumsXY,
+					rowXYA + xa,
+					rowXYB + xa,
+					blockWidth,
+					blockWidth * (yb - ya),
+					r,
+					y * width + xm0,
+					xm1 - xm0);
+			rSignedSquareClipped(blockRadius, y, xm1, x1, ya, yb, rowYA, rowYB, rowXA, rowXB, rowXYA, rowXYB);
+		} else
+			rSignedSquareClipped(blockRadius, y, x0, x1, ya, yb, rowYA, rowYB, rowXA, rowXB, rowXYA, rowXYB);
+	}
+
+	private void rSignedSquareClipped(
+			final int blockRadius,
+			final int y,
+			final int x0,
+			final int x1,
+			final int ya,
+			final int yb,
+			final int rowYA,
+			final int rowYB,
+			final int rowXA,
+			final int rowXB,
+			final int rowXYA,
+			final int rowXYB) {
+
+		final long[] sumsX = fixed.sums;
+		final long[] sumsXX = fixed.sumsOfSquares;
+		final long[] sumsY = moving.sums;
+		final long[] sumsYY = moving.sumsOfSquares;
+		final int bh = yb - ya;
+
+		final int row = y * width;
+		for (int x = x0; x < x1; ++x) {
+			final int xa = Math.max(x - blockRadius, overlapMinX);
+			final int xb = Math.min(x + blockRadius + 1, overlapMaxX);
+			final double n = (xb - xa) * bh;
+
+			final double sumY = sumsY[rowYB + xb] - sumsY[rowYB + xa] - sumsY[rowYA + xb] + sumsY[rowYA + xa];
+			final double sumYY = sumsYY[rowYB + xb] - sumsYY[rowYB + xa] - sumsYY[rowYA + xb] + sumsYY[rowYA + xa];
+			final double sumX = sumsX[rowXB + xb] - sumsX[rowXB + xa] - sumsX[rowXA + xb] + sumsX[rowXA + xa];
+			final double sumXX = sumsXX[rowXB + xb] - sumsXX[rowXB + xa] - sumsXX[rowXA + xb] + sumsXX[rowXA + xa];
+			final double sumXY = sumsXY[rowXYB + xb] - sumsXY[rowXYB + xa] - sumsXY[rowXYA + xb] + sumsXY[rowXYA + xa];
+
+			r[row + x] = ScalarFlowKernel.signedSquare(n, sumX, sumXX, sumY, sumYY, sumXY);
+		}
+	}
+}
@@ -17,67 +17,338 @@
 package org.janelia.saalfeldlab.hotknife;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
+import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.PointMatch;
 
 /**
+ * Finds multiple consensus sets in a list of candidate matches by
+ * repeated RANSAC, each followed by robust filtering, until no further
+ * consensus set is found.  Matches are processed as
+ * {@link PackedPointMatches} such that no {@link PointMatch} objects are
+ * created or modified.
  *
+ * Hypotheses are evaluated by numThreads parallel tasks.  With confidence
+ * &lt; 1, RANSAC stops as soon as the number of hypotheses tested suffices
+ * to have drawn an all inlier sample for the best consensus set found so
+ * far with that confidence, and numIterations is an upper bound.  With
+ * confidence = 1, numIterations hypotheses are always tested.
  *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
 public class MultiConsensusFilter<M extends Model<?>> implements ConsensusFilter {
 
+	final static private double MAX_TRUST = 4.0;
+
 	final private Supplier<M> modelSupplier;
 	final private int numIterations;
 	final private double maxEpsilon;
 	final private double minInlierRatio;
 	final private int minNumInliers;
+	final private int numThreads;
+	final private double confidence;
+
+	/**
+	 * Best consensus set shared by the RANSAC tasks.
+	 */
+	final static private class Consensus {
+
+		int[] inliers = new int[0];
+		int requiredIterations;
+
+		Consensus(final int requiredIterations) {
+
+			this.requiredIterations = requiredIterations;
+		}
+	}
 
 	public MultiConsensusFilter(
 			final Supplier<M> modelSupplier,
 			final int numIterations,
 			final double maxEpsilon,
 			final double minInlierRatio,
-			final int minNumInliers) {
+			final int minNumInliers,
+			final int numThreads,
+			final double confidence) {
 
 		this.modelSupplier = modelSupplier;
 		this.numIterations = numIterations;
 		this.maxEpsilon = maxEpsilon;
 		this.minInlierRatio = minInlierRatio;
 		this.minNumInliers = minNumInliers;
+		this.numThreads = Math.max(1, numThreads);
+		this.confidence = confidence;
 	}
 
-	public ArrayList<ArrayList<PointMatch>> filterMultiConsensusSets(final List<PointMatch> candidates) {
+	public MultiConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers) {
 
-		final ArrayList<ArrayList<PointMatch>> inliers = new ArrayList<>();
+		this(modelSupplier, numIterations, maxEpsilon, minInlierRatio, minNumInliers, 1, 1.0);
+	}
 
-		final Model<?> model = modelSupplier.get();
+	/**
+	 * Number of hypotheses required to draw at least one sample of
+	 * sampleSize inliers with the configured confidence.
+	 */
+	private int requiredIterations(final int numInliers, final int numCandidates, final int sampleSize) {
 
-		boolean modelFound = true;
-		do {
-			final ArrayList<PointMatch> modelInliers = new ArrayList<>();
+		if (confidence >= 1.0 || numInliers == 0)
+			return numIterations;
+
+		final double allInliers = Math.pow((double)numInliers / numCandidates, sampleSize);
+		if (allInliers >= 1.0)
+			return 1;
+
+		final double required = Math.ceil(Math.log(1.0 - confidence) / Math.log(1.0 - allInliers));
+		return (int)Math.max(1, Math.min(numIterations, required));
+	}
+
+	/**
+	 * Collect the indices in active whose match is closer than maxEpsilon
+	 * under model.
+	 *
+	 * @return number of inliers
+	 */
+	private int test(
+			final Model<?> model,
+			final PackedPointMatches candidates,
+			final int[] active,
+			final int numActive,
+			final double[] buffer,
+			final int[] inliers) {
+
+		final double maxEpsilon2 = maxEpsilon * maxEpsilon;
+		int numInliers = 0;
+		for (int i = 0; i < numActive; ++i)
+			if (candidates.squareDistance(model, active[i], buffer) < maxEpsilon2)
+				inliers[numInliers++] = active[i];
+		return numInliers;
+	}
+
+	/**
+	 * RANSAC task, tests hypotheses until the shared number of required
+	 * iterations is reached.
+	 */
+	private void ransac(
+			final PackedPointMatches candidates,
+			final int[] active,
+			final int numActive,
+			final AtomicInteger iteration,
+			final Consensus best,
+			final Random random) {
+
+		final M model = modelSupplier.get();
+		final int sampleSize = model.getMinNumMatches();
+		final int[] samplePositions = new int[sampleSize];
+		final int[] sample = new int[sampleSize];
+		final double[] buffer = new double[candidates.numDimensions()];
+		final int[] inliers = new int[numActive];
+
+		if (numActive < sampleSize)
+			return;
+
+		while (true) {
+			synchronized (best) {
+				if (iteration.get() >= best.requiredIterations)
+					return;
+			}
+			iteration.incrementAndGet();
+
+			/* draw a minimal sample without repetition */
+			for (int i = 0; i < sampleSize; ++i) {
+				int s;
+				do {
+					s = random.nextInt(numActive);
+				} while (Arrays.binarySearch(samplePositions, 0, i, s) >= 0);
+				int j = i;
+				for (; j > 0 && samplePositions[j - 1] > s; --j)
+					samplePositions[j] = samplePositions[j - 1];
+				samplePositions[j] = s;
+			}
+			for (int i = 0; i < sampleSize; ++i)
+				sample[i] = active[samplePositions[i]];
+
+			int numInliers;
 			try {
-				modelFound = model.filterRansac(
-						candidates,
-						modelInliers,
-						numIterations,
-						maxEpsilon,
-						minInlierRatio,
-						minNumInliers );
+				candidates.subset(sample, sampleSize).fit(model);
+				numInliers = test(model, candidates, active, numActive, buffer, inliers);
+
+				/* refit to the inliers while their number grows */
+				for (int previous = 0; numInliers > previous && numInliers >= sampleSize;) {
+					previous = numInliers;
+					candidates.subset(inliers, numInliers).fit(model);
+					numInliers = test(model, candidates, active, numActive, buffer, inliers);
+				}
+			} catch (final NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+				continue;
 			}
-			catch (final NotEnoughDataPointsException e) {
-				modelFound = false;
+
+			if (numInliers < minNumInliers || numInliers < minInlierRatio * numActive)
+				continue;
+
+			synchronized (best) {
+				if (numInliers > best.inliers.length) {
+					best.inliers = Arrays.copyOf(inliers, numInliers);
+					best.requiredIterations = requiredIterations(numInliers, numActive, sampleSize);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Iteratively fit a model to the matches and remove those whose residual
+	 * is larger than {@link #MAX_TRUST} times the median residual, as in
+	 * {@link Model#filter(java.util.Collection, java.util.Collection, double, int)}.
+	 *
+	 * @return indices of the remaining matches or null if fewer than
+	 *     minNumInliers remain
+	 */
+	private int[] filter(final PackedPointMatches candidates, int[] indices) {
+
+		final Model<?> model = modelSupplier.get();
+		final double[] buffer = new double[candidates.numDimensions()];
+		int numInliers;
+		do {
+			numInliers = indices.length;
+			try {
+				candidates.subset(indices, numInliers).fit(model);
+			} catch (final NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+				return null;
 			}
+			final double[] distances = new double[numInliers];
+			for (int i = 0; i < numInliers; ++i)
+				distances[i] = Math.sqrt(candidates.squareDistance(model, indices[i], buffer));
+			final double[] sorted = distances.clone();
+			Arrays.sort(sorted);
+			final double median = numInliers % 2 == 1 ?
+					sorted[numInliers / 2] :
+					0.5 * (sorted[numInliers / 2 - 1] + sorted[numInliers / 2]);
+			final double threshold = median * MAX_TRUST;
+
+			int n = 0;
+			final int[] kept = new int[numInliers];
+			for (int i = 0; i < numInliers; ++i)
+				if (distances[i] <= threshold)
+					kept[n++] = indices[i];
+			indices = Arrays.copyOf(kept, n);
+		} while (numInliers > indices.length);
+
+		return numInliers < minNumInliers ? null : indices;
+	}
+
+	/**
+	 * Find consensus sets until no further set is found.
+	 *
+	 * @param candidates
+	 * @return candidate indices of each consensus set
+	 */
+	public ArrayList<int[]> filterMultiConsensusSetIndices(final PackedPointMatches candidates) {
+
+		final ArrayList<int[]> inliers = new ArrayList<>();
+
+		final int numCandidates = candidates.size();
+		if (numCandidates == 0)
+			return inliers;
+
+		final BitSet removed = new BitSet(numCandidates);
+		final int[] active = new int[numCandidates];
+		final Random random = new Random(69997);
+
+		final ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+		try {
+			int[] modelInliers;
+			do {
+				modelInliers = null;
+
+				int numActive = 0;
+				for (int i = removed.nextClearBit(0); i < numCandidates; i = removed.nextClearBit(i + 1))
+					active[numActive++] = i;
+
+				final Consensus best = new Consensus(numIterations);
+				final AtomicInteger iteration = new AtomicInteger();
+				if (numActive >= minNumInliers && numActive > 0) {
+					final int numActiveFinal = numActive;
+					if (pool == null)
+						ransac(candidates, active, numActive, iteration, best, random);
+					else {
+						final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+						for (int t = 0; t < numThreads; ++t) {
+							final Random taskRandom = new Random(random.nextLong());
+							tasks.add(pool.submit(() -> ransac(candidates, active, numActiveFinal, iteration, best, taskRandom)));
+						}
+						for (final ForkJoinTask<?> task : tasks)
+							task.join();
+					}
+				}
+
+				if (best.inliers.length > 0) {
+					modelInliers = filter(candidates, best.inliers);
+					if (modelInliers != null) {
+						inliers.add(modelInliers);
+						for (final int i : modelInliers)
+							removed.set(i);
+					}
+				}
+			} while (modelInliers != null);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+
+		return inliers;
+	}
+
+	public ArrayList<PackedPointMatches> filterMultiConsensusSets(final PackedPointMatches candidates) {
 
-			if (modelFound) {
-				inliers.add(modelInliers);
-				candidates.removeAll(modelInliers);
+		final ArrayList<PackedPointMatches> inliers = new ArrayList<>();
+		for (final int[] indices : filterMultiConsensusSetIndices(candidates))
+			inliers.add(candidates.subset(indices, indices.length));
+		return inliers;
+	}
+
+	/**
+	 * Find consensus sets until no further set is found.  Matches that are
+	 * not in any consensus set remain in candidates.
+	 *
+	 * @param candidates
+	 * @return
+	 */
+	public ArrayList<ArrayList<PointMatch>> filterMultiConsensusSets(final List<PointMatch> candidates) {
+
+		final ArrayList<ArrayList<PointMatch>> inliers = new ArrayList<>();
+		final ArrayList<int[]> consensusSets = filterMultiConsensusSetIndices(PackedPointMatches.pack(candidates));
+		if (consensusSets.isEmpty())
+			return inliers;
+
+		final BitSet removed = new BitSet(candidates.size());
+		for (final int[] indices : consensusSets) {
+			final ArrayList<PointMatch> consensusSet = new ArrayList<>(indices.length);
+			for (final int i : indices) {
+				consensusSet.add(candidates.get(i));
+				removed.set(i);
 			}
-		} while (modelFound);
+			inliers.add(consensusSet);
+		}
+
+		final ArrayList<PointMatch> outliers = new ArrayList<>(candidates.size() - removed.cardinality());
+		for (int i = removed.nextClearBit(0); i < candidates.size(); i = removed.nextClearBit(i + 1))
+			outliers.add(candidates.get(i));
+		candidates.clear();
+		candidates.addAll(outliers);
 
 		return inliers;
 	}
@@ -95,4 +366,18 @@ public class MultiConsensusFilter<M extends Model<?>> implements ConsensusFilter
 
 		return inliers;
 	}
+
+	@Override
+	public PackedPointMatches filter(final PackedPointMatches candidates) {
+
+		final PackedPointMatches inliers = new PackedPointMatches(candidates.numDimensions());
+		final ArrayList<PackedPointMatches> multiConsensusSets = filterMultiConsensusSets(candidates);
+
+		System.out.printf("Found %d consensus sets.", multiConsensusSets.size());
+		System.out.println();
+
+		multiConsensusSets.stream().forEach(consensusSet -> inliers.addAll(consensusSet));
+
+		return inliers;
+	}
 }
@@ -0,0 +1,156 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.Arrays;
+
+/**
+ * Compact per pixel accumulator for block flow offset votes.  Each pixel
+ * keeps up to k (offset, count) candidates.  Offsets are packed into the
+ * (2d+1)<sup>2</sup> search window with x as the slower index, so that for
+ * equal counts, the smallest packed index is the one that the histogram scan
+ * in {@link PMCCScaleSpaceBlockFlow} would have picked.
+ *
+ * If k is smaller than the number of votes per pixel, candidates are
+ * replaced following the space-saving scheme, i.e. the least voted candidate
+ * is replaced and inherits its count.  Any offset that receives more than
+ * numVotes / k votes is guaranteed to be kept.  For k &ge; numVotes, the
+ * result is exact.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class OpticFlowVotes {
+
+	final protected int numPixels;
+	final protected int numCandidates;
+	final protected int distance;
+	final protected int windowWidth;
+
+	final protected char[] candidates;
+	final protected byte[] counts;
+
+	public OpticFlowVotes(
+			final int numPixels,
+			final int numCandidates,
+			final int distance) {
+
+		if (numCandidates < 1)
+			throw new IllegalArgumentException("At least one candidate per pixel is required.");
+
+		windowWidth = 2 * distance + 1;
+		if ((long)windowWidth * windowWidth > Character.MAX_VALUE + 1)
+			throw new IllegalArgumentException("Search distance " + distance + " is too large for packed votes.");
+
+		this.numPixels = numPixels;
+		this.numCandidates = numCandidates;
+		this.distance = distance;
+
+		candidates = new char[numPixels * numCandidates];
+		counts = new byte[numPixels * numCandidates];
+	}
+
+	public int getNumPixels() {
+
+		return numPixels;
+	}
+
+	public int getNumCandidates() {
+
+		return numCandidates;
+	}
+
+	public int getDistance() {
+
+		return distance;
+	}
+
+	public void clear() {
+
+		Arrays.fill(counts, (byte)0);
+	}
+
+	protected char pack(final int xo, final int yo) {
+
+		return (char)((xo + distance) * windowWidth + yo + distance);
+	}
+
+	/**
+	 * Adds a vote for offset (xo, yo) at pixel i.
+	 *
+	 * @param i
+	 * @param xo
+	 * @param yo
+	 */
+	public void vote(final int i, final int xo, final int yo) {
+
+		final char candidate = pack(xo, yo);
+		final int offset = i * numCandidates;
+		int minSlot = offset;
+		int minCount = Integer.MAX_VALUE;
+		for (int s = offset; s < offset + numCandidates; ++s) {
+			final int count = counts[s];
+			if (count == 0) {
+				candidates[s] = candidate;
+				counts[s] = 1;
+				return;
+			}
+			if (candidates[s] == candidate) {
+				counts[s] = (byte)(count + 1);
+				return;
+			}
+			if (count < minCount) {
+				minCount = count;
+				minSlot = s;
+			}
+		}
+		candidates[minSlot] = candidate;
+		counts[minSlot] = (byte)(minCount + 1);
+	}
+
+	/**
+	 * Find the offset with the most votes at pixel i.  For equal counts, the
+	 * offset with the smaller x, then smaller y wins.
+	 *
+	 * @param i
+	 * @param shift writes the best {xo, yo} into this array
+	 * @return the number of votes for the best offset
+	 */
+	public int best(final int i, final int[] shift) {
+
+		final int offset = i * numCandidates;
+		int bestCount = 0;
+		int bestCandidate = Integer.MAX_VALUE;
+		for (int s = offset; s < offset + numCandidates; ++s) {
+			final int count = counts[s];
+			if (count == 0)
+				break;
+			final int candidate = candidates[s];
+			if (count > bestCount || (count == bestCount && candidate < bestCandidate)) {
+				bestCount = count;
+				bestCandidate = candidate;
+			}
+		}
+		if (bestCount == 0) {
+			shift[0] = 0;
+			shift[1] = 0;
+		} else {
+			shift[0] = bestCandidate / windowWidth - distance;
+			shift[1] = bestCandidate % windowWidth - distance;
+		}
+		return bestCount;
+	}
+}
@@ -1,7 +1,11 @@
 package org.janelia.saalfeldlab.hotknife;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.hotknife.util.Util;
 
 import ij.ImageStack;
@@ -10,12 +14,12 @@ import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ShortProcessor;
-import mpicbg.ij.integral.BlockPMCC;
 import mpicbg.models.NotEnoughDataPointsException;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
@@ -44,6 +48,305 @@ import net.imglib2.view.Views;
  */
 public class PMCCScaleSpaceBlockFlow
 {
+	/**
+	 * Tuning parameters for the block flow engine.
+	 */
+	static public class Param implements Serializable
+	{
+		private static final long serialVersionUID = 2447810339452296530L;
+
+		/**
+		 * number of threads to split the search offsets over
+		 */
+		public int numThreads = 1;
+
+		/**
+		 * if &gt; 0, block radii are processed one at a time and their argmax
+		 * is folded into this many vote candidates per pixel, memory is then
+		 * O(pixels) instead of O(radii &times; pixels).  Votes are exact if
+		 * this is not smaller than the number of block radii.
+		 */
+		public int voteCandidates = 0;
+
+		/**
+		 * bake the composed position field into a displacement raster after
+		 * each iteration such that the per pixel cost of warping and
+		 * rendering the result does not grow with the number of iterations
+		 */
+		public boolean materializeFlow = false;
+
+		/**
+		 * if &gt; 0, search distances larger than this are evaluated with
+		 * {@link FFTBlockPMCC} on a lattice of block windows instead of
+		 * per pixel and offset.  This is an approximation, the flow is then
+		 * constant within {@link FFTBlockPMCC#stride(int)} lattice cells and
+		 * differs from the exact search, hence off by default.
+		 */
+		public int fftDistanceThreshold = 0;
+
+		/**
+		 * if &gt; 0, the background mask is tiled with this tile size and
+		 * tiles without foreground within the search distance are skipped,
+		 * integral images are built only over the bounding box of the active
+		 * tiles and the blocks reaching into them
+		 */
+		public int foregroundTileSize = 64;
+
+		/**
+		 * if &gt; 0, block radii up to a quarter of this size are searched
+		 * tile by tile over all offsets to stay in cache, e.g. 256, results
+		 * are identical
+		 */
+		public int flowTileSize = 0;
+
+		/**
+		 * if &gt; 0, stop refining once the weighted mean magnitude of the
+		 * flow update of an iteration falls below this tolerance in pixels
+		 */
+		public double convergenceTolerance = 0;
+
+		public Param() {}
+
+		public Param( final int numThreads )
+		{
+			this.numThreads = numThreads;
+		}
+
+		public boolean useFFT( final int distance )
+		{
+			return fftDistanceThreshold > 0 && distance > fftDistanceThreshold;
+		}
+
+		/**
+		 * @return parameters for the exact per pixel search with numThreads
+		 */
+		static protected Param exact( final int numThreads )
+		{
+			final Param param = new Param( numThreads );
+			param.fftDistanceThreshold = 0;
+			return param;
+		}
+	}
+
+	/**
+	 * Convergence report of {@link PMCCScaleSpaceBlockFlow#scaleSpaceOpticFlow}.
+	 */
+	static public class Statistics implements Serializable
+	{
+		private static final long serialVersionUID = -5419265340232926617L;
+
+		/**
+		 * number of iterations performed
+		 */
+		public int numIterations = 0;
+
+		/**
+		 * mean magnitude of the flow update of the last iteration in
+		 * pixels, weighted by the inlier ratio
+		 */
+		public double residual = 0;
+	}
+
+	/**
+	 * Generates all integer offsets inside the search disk of radius
+	 * distance, y-major, in the order in which they are visited by the
+	 * sequential implementation.
+	 *
+	 * @param distance
+	 * @return array of {xo, yo} pairs
+	 */
+	static protected int[][] searchOffsets( final int distance )
+	{
+		final ArrayList< int[] > offsets = new ArrayList<>();
+		for ( int yo = -distance; yo <= distance; ++yo )
+			for ( int xo = -distance; xo <= distance; ++xo )
+				if ( yo * yo + xo * xo <= distance * distance )
+					offsets.add( new int[]{ xo, yo } );
+
+		return offsets.toArray( new int[ offsets.size() ][] );
+	}
+
+	/**
+	 * Updates the maximum PMCC of one block radius and the corresponding
+	 * shifts for the current offset of bc in rows [y0, y1) and columns
+	 * [x0, x1).  Pixels in inactive foreground tiles are skipped.
+	 */
+	static protected void updateMaxima(
+			final IntegralBlockPMCC bc,
+			final FlowKernel kernel,
+			final int blockRadius,
+			final float[] ipRMaxPixels,
+			final short[] ipXPixels,
+			final short[] ipYPixels,
+			final short xo,
+			final short yo,
+			final int x0,
+			final int y0,
+			final int x1,
+			final int y1,
+			final ForegroundTiles foreground )
+	{
+		final FloatProcessor ipR = bc.getTargetProcessor();
+		final float[] ipRPixels = ( float[] )ipR.getPixels();
+		final int width = ipR.getWidth();
+
+		for ( int y = y0; y < y1; ++y )
+		{
+			final int row = y * width;
+			int xa = x0;
+			while ( xa < x1 )
+			{
+				final int xb = foreground == null ? x1 : Math.min( x1, foreground.tileEnd( xa ) );
+				if ( foreground == null || foreground.isActive( xa, y ) )
+				{
+					bc.rSignedSquare( blockRadius, y, xa, xb );
+					kernel.updateMaxima(
+							ipRPixels,
+							ipRMaxPixels,
+							ipXPixels,
+							ipYPixels,
+							row + xa,
+							row + xb,
+							xo,
+							yo );
+				}
+				xa = xb;
+			}
+		}
+	}
+
+	/**
+	 * Updates the per radius maximum PMCC and the corresponding shifts for
+	 * the offsets in [fromIndex, toIndex).  The maximum is only replaced if
+	 * it is strictly smaller than the new value, i.e. for equal values, the
+	 * first offset wins.  Pixels in inactive foreground tiles are skipped.
+	 *
+	 * If tileSize &gt; 0, block radii up to tileSize / 4 are processed tile by
+	 * tile over all offsets such that the product integral image, the
+	 * maxima, and the shifts of a tile stay in cache.  The halo of a tile is
+	 * the largest of these block radii.  Larger block radii are processed
+	 * in whole image sweeps.  Each pixel sees the offsets of each radius in
+	 * the same order and block sums are exact, so the result does not
+	 * depend on the tiling.
+	 */
+	static protected void updateMaxima(
+			final IntegralBlockPMCC bc,
+			final int[][] offsets,
+			final int fromIndex,
+			final int toIndex,
+			final int[] radii,
+			final float[][] rArrays,
+			final short[][] xShiftArrays,
+			final short[][] yShiftArrays,
+			final int distance,
+			final ForegroundTiles foreground,
+			final int tileSize )
+	{
+		final FlowKernel kernel = FlowKernels.getInstance();
+		final FloatProcessor ipR = bc.getTargetProcessor();
+
+		final int h = ipR.getHeight() - distance;
+		final int w = ipR.getWidth() - distance;
+
+		/* split into tiled and swept radii */
+		int halo = 0;
+		final boolean[] tiled = new boolean[ radii.length ];
+		for ( int ri = 0; ri < radii.length; ++ri )
+		{
+			tiled[ ri ] = tileSize > 0 && radii[ ri ] <= tileSize / 4;
+			if ( tiled[ ri ] )
+				halo = Math.max( halo, radii[ ri ] );
+		}
+
+		if ( tileSize > 0 )
+		{
+			for ( int ty = distance; ty < h; ty += tileSize )
+			{
+				final int ty1 = Math.min( h, ty + tileSize );
+				for ( int tx = distance; tx < w; tx += tileSize )
+				{
+					final int tx1 = Math.min( w, tx + tileSize );
+					if ( foreground != null && !foreground.isActive( tx, ty, tx1, ty1 ) )
+						continue;
+
+					for ( int oi = fromIndex; oi < toIndex; ++oi )
+					{
+						final short xo = ( short )offsets[ oi ][ 0 ];
+						final short yo = ( short )offsets[ oi ][ 1 ];
+
+						bc.setOffset( xo, yo, tx - halo, ty - halo, tx1 + halo, ty1 + halo );
+
+						for ( int ri = 0; ri < radii.length; ++ri )
+							if ( tiled[ ri ] )
+								updateMaxima(
+										bc,
+										kernel,
+										radii[ ri ],
+										rArrays[ ri ],
+										xShiftArrays[ ri ],
+										yShiftArrays[ ri ],
+										xo,
+										yo,
+										tx,
+										ty,
+										tx1,
+										ty1,
+										foreground );
+					}
+				}
+			}
+		}
+
+		boolean swept = false;
+		for ( final boolean t : tiled )
+			swept |= !t;
+		if ( !swept )
+			return;
+
+		/* integrate only over the active tiles and the blocks reaching into them */
+		int sweptHalo = 0;
+		for ( int ri = 0; ri < radii.length; ++ri )
+			if ( !tiled[ ri ] )
+				sweptHalo = Math.max( sweptHalo, radii[ ri ] );
+
+		int x0 = distance, y0 = distance, x1 = w, y1 = h;
+		if ( foreground != null )
+		{
+			final int[] bounds = foreground.activeBounds( 0 );
+			x0 = Math.max( x0, bounds[ 0 ] );
+			y0 = Math.max( y0, bounds[ 1 ] );
+			x1 = Math.min( x1, bounds[ 2 ] );
+			y1 = Math.min( y1, bounds[ 3 ] );
+			if ( x0 >= x1 || y0 >= y1 )
+				return;
+		}
+
+		for ( int oi = fromIndex; oi < toIndex; ++oi )
+		{
+			final short xo = ( short )offsets[ oi ][ 0 ];
+			final short yo = ( short )offsets[ oi ][ 1 ];
+
+			bc.setOffset( xo, yo, x0 - sweptHalo, y0 - sweptHalo, x1 + sweptHalo, y1 + sweptHalo );
+
+			for ( int ri = 0; ri < radii.length; ++ri )
+				if ( !tiled[ ri ] )
+					updateMaxima(
+							bc,
+							kernel,
+							radii[ ri ],
+							rArrays[ ri ],
+							xShiftArrays[ ri ],
+							yShiftArrays[ ri ],
+							xo,
+							yo,
+							x0,
+							y0,
+							x1,
+							y1,
+							foreground );
+		}
+	}
+
 	static public void opticFlow(
 			final FloatProcessor ip1,
 			final FloatProcessor ip2,
@@ -52,26 +355,242 @@ public class PMCCScaleSpaceBlockFlow
 			final ImageStack shiftVectors,
 			final double scaleFactor )
 	{
-		final BlockPMCC bc = new BlockPMCC( ip1.getWidth(), ip1.getHeight(), ip1, ip2 );
-		//final BlockPMCC bc = new BlockPMCC( ip1, ip2 );
-
-		final FloatProcessor ipR = bc.getTargetProcessor();
-		final float[] ipRPixels = ( float[] )ipR.getPixels();
+		opticFlow( ip1, ip2, distance, r, shiftVectors, scaleFactor, 1 );
+	}
 
+	/**
+	 * Block radii of the scale space, starting at 1 and growing by
+	 * scaleFactor up to a quarter of the image width.
+	 *
+	 * @param width
+	 * @param scaleFactor
+	 * @return
+	 */
+	static protected ArrayList< Double > blockRadii( final int width, final double scaleFactor )
+	{
 		final ArrayList< Double > radiusList = new ArrayList< Double >();
+		for ( double radius = 1; radius < width / 4; radius *= scaleFactor )
+			radiusList.add( radius );
+		return radiusList;
+	}
 
-		for ( double radius = 1; radius < r.getWidth() / 4; radius *= scaleFactor )
+	static protected int maxBlockRadius( final int[] radii )
+	{
+		int maxRadius = 0;
+		for ( final int radius : radii )
+			maxRadius = Math.max( maxRadius, radius );
+		return maxRadius;
+	}
+
+	/**
+	 * Region [minX, maxX) &times; [minY, maxY) that blocks of up to halo
+	 * radius around pixels in active foreground tiles cover, the whole
+	 * image if foreground is null.
+	 */
+	static protected int[] activeRegion(
+			final ForegroundTiles foreground,
+			final int halo,
+			final int width,
+			final int height )
+	{
+		return foreground == null ? new int[]{ 0, 0, width, height } : foreground.activeBounds( halo );
+	}
+
+	/**
+	 * Creates one {@link IntegralBlockPMCC} per worker, all sharing the sums
+	 * of the fixed and the moving image.  The sums of the moving image are
+	 * integrated only over region, see {@link #activeRegion}.
+	 */
+	static protected IntegralBlockPMCC[] createBlockPMCCs(
+			final IntegralBlockPMCC.Sums ip1Sums,
+			final FloatProcessor ip2,
+			final int numTasks,
+			final int[] region )
+	{
+		final IntegralBlockPMCC.Sums ip2Sums = new IntegralBlockPMCC.Sums( ip2, region[ 0 ], region[ 1 ], region[ 2 ], region[ 3 ] );
+		final IntegralBlockPMCC[] bcs = new IntegralBlockPMCC[ numTasks ];
+		for ( int t = 0; t < numTasks; ++t )
+			bcs[ t ] = new IntegralBlockPMCC( ip1Sums, ip2Sums );
+		return bcs;
+	}
+
+	/**
+	 * Search the per radius maximum PMCC over all offsets.  The offsets are
+	 * split into one contiguous chunk per {@link IntegralBlockPMCC}, chunks are
+	 * processed in parallel by the pool.  Each worker maintains its own per
+	 * radius max/argmax buffers that are reduced in chunk order which
+	 * reproduces the sequential result exactly.  The output arrays must be
+	 * initialized with -1 (max) and 0 (shifts).
+	 */
+	static protected void searchMaxima(
+			final IntegralBlockPMCC[] bcs,
+			final ForkJoinPool pool,
+			final int[][] offsets,
+			final int[] radii,
+			final float[][] rArrays,
+			final short[][] xShiftArrays,
+			final short[][] yShiftArrays,
+			final int distance,
+			final ForegroundTiles foreground,
+			final int tileSize )
+	{
+		final int numTasks = bcs.length;
+
+		if ( numTasks == 1 )
 		{
-			radiusList.add( radius );
+			updateMaxima(
+					bcs[ 0 ],
+					offsets,
+					0,
+					offsets.length,
+					radii,
+					rArrays,
+					xShiftArrays,
+					yShiftArrays,
+					distance,
+					foreground,
+					tileSize );
+			return;
+		}
+
+		final int n = rArrays[ 0 ].length;
+
+		/* the first chunk writes into the output, all others into their own buffers */
+		final float[][][] taskRArrays = new float[ numTasks ][][];
+		final short[][][] taskXShiftArrays = new short[ numTasks ][][];
+		final short[][][] taskYShiftArrays = new short[ numTasks ][][];
+		taskRArrays[ 0 ] = rArrays;
+		taskXShiftArrays[ 0 ] = xShiftArrays;
+		taskYShiftArrays[ 0 ] = yShiftArrays;
+
+		final ArrayList< ForkJoinTask< ? > > tasks = new ArrayList<>();
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int task = t;
+			final int fromIndex = ( int )( ( long )offsets.length * task / numTasks );
+			final int toIndex = ( int )( ( long )offsets.length * ( task + 1 ) / numTasks );
+			tasks.add( pool.submit( () -> {
+				if ( task > 0 )
+				{
+					taskRArrays[ task ] = new float[ radii.length ][ n ];
+					taskXShiftArrays[ task ] = new short[ radii.length ][ n ];
+					taskYShiftArrays[ task ] = new short[ radii.length ][ n ];
+					for ( final float[] rArray : taskRArrays[ task ] )
+						Arrays.fill( rArray, -1 );
+				}
+				updateMaxima(
+						bcs[ task ],
+						offsets,
+						fromIndex,
+						toIndex,
+						radii,
+						taskRArrays[ task ],
+						taskXShiftArrays[ task ],
+						taskYShiftArrays[ task ],
+						distance,
+						foreground,
+						tileSize );
+			} ) );
+		}
+		for ( final ForkJoinTask< ? > task : tasks )
+			task.join();
+		tasks.clear();
+
+		/* reduce in chunk order, parallel over radii */
+		for ( int ri = 0; ri < radii.length; ++ri )
+		{
+			final int radiusIndex = ri;
+			tasks.add( pool.submit( () -> {
+				final float[] rMax = rArrays[ radiusIndex ];
+				final short[] xShift = xShiftArrays[ radiusIndex ];
+				final short[] yShift = yShiftArrays[ radiusIndex ];
+				for ( int t = 1; t < numTasks; ++t )
+				{
+					final float[] taskRMax = taskRArrays[ t ][ radiusIndex ];
+					final short[] taskXShift = taskXShiftArrays[ t ][ radiusIndex ];
+					final short[] taskYShift = taskYShiftArrays[ t ][ radiusIndex ];
+					for ( int i = 0; i < n; ++i )
+					{
+						if ( taskRMax[ i ] > rMax[ i ] )
+						{
+							rMax[ i ] = taskRMax[ i ];
+							xShift[ i ] = taskXShift[ i ];
+							yShift[ i ] = taskYShift[ i ];
+						}
+					}
+				}
+			} ) );
+		}
+		for ( final ForkJoinTask< ? > task : tasks )
+			task.join();
+	}
 
-			final FloatProcessor ipRMax = new FloatProcessor( ipR.getWidth(), ipR.getHeight() );
+	/**
+	 * Calculates, for each block radius, the maximum PMCC and the offset at
+	 * which it occurs.  The search offsets are processed in parallel by a
+	 * fork-join pool with numThreads workers.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param distance
+	 * @param r
+	 * @param shiftVectors
+	 * @param scaleFactor
+	 * @param numThreads
+	 */
+	static public void opticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance,
+			final ImageStack r,
+			final ImageStack shiftVectors,
+			final double scaleFactor,
+			final int numThreads )
+	{
+		opticFlow( new IntegralBlockPMCC.Sums( ip1 ), ip2, distance, r, shiftVectors, scaleFactor, Param.exact( numThreads ), null );
+	}
+
+	/**
+	 * Calculates, for each block radius, the maximum PMCC and the offset at
+	 * which it occurs.  If {@link Param#useFFT(int)}, the PMCC surfaces are
+	 * calculated in the frequency domain by {@link FFTBlockPMCC}, the maxima
+	 * are then constant within lattice cells of
+	 * {@link FFTBlockPMCC#stride(int) stride} pixels.  Pixels in inactive
+	 * foreground tiles are skipped and keep a maximum of -1 and no shift.
+	 *
+	 * @param ip1Sums sums of the fixed image, can be reused over iterations
+	 * @param ip2
+	 * @param distance
+	 * @param r
+	 * @param shiftVectors
+	 * @param scaleFactor
+	 * @param param
+	 * @param foreground if null, all pixels are processed
+	 */
+	static public void opticFlow(
+			final IntegralBlockPMCC.Sums ip1Sums,
+			final FloatProcessor ip2,
+			final int distance,
+			final ImageStack r,
+			final ImageStack shiftVectors,
+			final double scaleFactor,
+			final Param param,
+			final ForegroundTiles foreground )
+	{
+		final boolean fft = param.useFFT( distance );
+		final FloatProcessor ip1 = ip1Sums.getProcessor();
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+
+		final ArrayList< Double > radiusList = blockRadii( r.getWidth(), scaleFactor );
+
+		for ( final double radius : radiusList )
+		{
+			final FloatProcessor ipRMax = new FloatProcessor( width, height );
 			final float[] ipRMaxPixels = ( float[] )ipRMax.getPixels();
-			{
-				for ( int i = 0; i < ipRMaxPixels.length; ++i )
-					ipRMaxPixels[ i ] = -1;
-			}
-			final ShortProcessor ipX = new ShortProcessor( ipR.getWidth(), ipR.getHeight() );
-			final ShortProcessor ipY = new ShortProcessor( ipR.getWidth(), ipR.getHeight() );
+			Arrays.fill( ipRMaxPixels, -1 );
+			final ShortProcessor ipX = new ShortProcessor( width, height );
+			final ShortProcessor ipY = new ShortProcessor( width, height );
 
 			r.addSlice( "" + radius, ipRMax );
 			shiftVectors.addSlice( "" + radius, ipX );
@@ -92,61 +611,174 @@ public class PMCCScaleSpaceBlockFlow
 			radii[ i ] = ( int )Math.round( radiusList.get( i ) );
 		}
 
-		for ( int yo = -distance; yo <= distance; ++yo )
+		final int[][] offsets = searchOffsets( distance );
+		final int numTasks = Math.max( 1, Math.min( param.numThreads, offsets.length ) );
+
+		final ForkJoinPool pool = new ForkJoinPool( numTasks );
+		try
 		{
-			for ( int xo = -distance; xo <= distance; ++xo )
+			if ( fft )
 			{
-				// continue if radius is larger than maxDistance
-				if ( yo * yo + xo * xo > distance * distance ) continue;
+				final FFTBlockPMCC fbc = new FFTBlockPMCC( ip1, ip2 );
+				for ( int i = 0; i < radii.length; ++i )
+					fbc.updateMaxima(
+							radii[ i ],
+							distance,
+							rArrays[ i ],
+							xShiftArrays[ i ],
+							yShiftArrays[ i ],
+							foreground,
+							pool,
+							numTasks );
+			}
+			else
+				searchMaxima(
+						createBlockPMCCs(
+								ip1Sums,
+								ip2,
+								numTasks,
+								activeRegion( foreground, maxBlockRadius( radii ), width, height ) ),
+						pool,
+						offsets,
+						radii,
+						rArrays,
+						xShiftArrays,
+						yShiftArrays,
+						distance,
+						foreground,
+						param.flowTileSize );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
 
-				bc.setOffset( xo, yo );
+	/**
+	 * Streaming variant of
+	 * {@link #opticFlow(FloatProcessor, FloatProcessor, int, ImageStack, ImageStack, double, int)}
+	 * that processes one block radius at a time and folds its argmax into
+	 * the compact per pixel votes right away.  Memory is independent of the
+	 * number of block radii, at the cost of one {@link IntegralBlockPMCC#setOffset}
+	 * per offset and radius instead of per offset.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param distance
+	 * @param scaleFactor
+	 * @param numThreads
+	 * @param votes
+	 * @return the number of votes per pixel, i.e. the number of block radii
+	 */
+	static public int opticFlowVotes(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance,
+			final double scaleFactor,
+			final int numThreads,
+			final OpticFlowVotes votes )
+	{
+		return opticFlowVotes( new IntegralBlockPMCC.Sums( ip1 ), ip2, distance, scaleFactor, Param.exact( numThreads ), null, votes );
+	}
 
-				for ( int ri = 0; ri < radii.length; ++ri )
-				{
-					final int blockRadius = radii[ ri ];
+	/**
+	 * Streaming variant of
+	 * {@link #opticFlow(IntegralBlockPMCC.Sums, FloatProcessor, int, ImageStack, ImageStack, double, Param, ForegroundTiles)}.
+	 * Pixels in inactive foreground tiles do not vote.
+	 *
+	 * @param ip1Sums sums of the fixed image, can be reused over iterations
+	 * @param ip2
+	 * @param distance
+	 * @param scaleFactor
+	 * @param param
+	 * @param foreground if null, all pixels are processed
+	 * @param votes
+	 * @return the number of votes per pixel, i.e. the number of block radii
+	 */
+	static public int opticFlowVotes(
+			final IntegralBlockPMCC.Sums ip1Sums,
+			final FloatProcessor ip2,
+			final int distance,
+			final double scaleFactor,
+			final Param param,
+			final ForegroundTiles foreground,
+			final OpticFlowVotes votes )
+	{
+		final boolean fft = param.useFFT( distance );
+		final FloatProcessor ip1 = ip1Sums.getProcessor();
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+		final int n = width * height;
 
-					bc.rSignedSquare( blockRadius );
+		final ArrayList< Double > radiusList = blockRadii( width, scaleFactor );
+		if ( radiusList.size() > Byte.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many block radii (" + radiusList.size() + ") for packed votes." );
 
-					final float[] ipRMaxPixels = rArrays[ ri ];
-					final short[] ipXPixels = xShiftArrays[ ri ];
-					final short[] ipYPixels = yShiftArrays[ ri ];
+		final float[][] rArrays = new float[ 1 ][ n ];
+		final short[][] xShiftArrays = new short[ 1 ][ n ];
+		final short[][] yShiftArrays = new short[ 1 ][ n ];
+		final float[] rArray = rArrays[ 0 ];
+		final short[] xShiftArray = xShiftArrays[ 0 ];
+		final short[] yShiftArray = yShiftArrays[ 0 ];
 
-					// update the translation fields
-					final int h = ipR.getHeight() - distance;
-					final int width = ipR.getWidth();
-					final int w = width - distance;
+		final int[][] offsets = searchOffsets( distance );
+		final int numTasks = Math.max( 1, Math.min( param.numThreads, offsets.length ) );
 
-					for ( int y = distance; y < h; ++y )
-					{
-						final int row = y * width;
-						final int rowR;
-						if ( yo < 0 )
-							rowR = row;
-						else
-							rowR = ( y - yo ) * width;
-						for ( int x = distance; x < w; ++x )
-						{
-							final int i = row + x;
-							final int iR;
-							if ( xo < 0 )
-								iR = rowR + x;
-							else
-								iR = rowR + ( x - xo );
-
-							final float ipRPixel = ipRPixels[ iR ];
-							final float ipRMaxPixel = ipRMaxPixels[ i ];
-
-							if ( ipRPixel > ipRMaxPixel )
-							{
-								ipRMaxPixels[ i ] = ipRPixel;
-								ipXPixels[ i ] = ( short )xo;
-								ipYPixels[ i ] = ( short )yo;
-							}
-						}
-					}
-				}
+		votes.clear();
+
+		final ForkJoinPool pool = new ForkJoinPool( numTasks );
+		try
+		{
+			final IntegralBlockPMCC[] bcs = fft ? null : createBlockPMCCs(
+					ip1Sums,
+					ip2,
+					numTasks,
+					activeRegion(
+							foreground,
+							radiusList.isEmpty() ? 0 : ( int )Math.round( radiusList.get( radiusList.size() - 1 ) ),
+							width,
+							height ) );
+			final FFTBlockPMCC fbc = fft ? new FFTBlockPMCC( ip1, ip2 ) : null;
+			for ( final double radius : radiusList )
+			{
+				Arrays.fill( rArray, -1 );
+				Arrays.fill( xShiftArray, ( short )0 );
+				Arrays.fill( yShiftArray, ( short )0 );
+
+				if ( fft )
+					fbc.updateMaxima(
+							( int )Math.round( radius ),
+							distance,
+							rArray,
+							xShiftArray,
+							yShiftArray,
+							foreground,
+							pool,
+							numTasks );
+				else
+					searchMaxima(
+							bcs,
+							pool,
+							offsets,
+							new int[]{ ( int )Math.round( radius ) },
+							rArrays,
+							xShiftArrays,
+							yShiftArrays,
+							distance,
+							foreground,
+							param.flowTileSize );
+
+				for ( int i = 0; i < n; ++i )
+					if ( foreground == null || foreground.isActive( i % width, i / width ) )
+						votes.vote( i, xShiftArray[ i ], yShiftArray[ i ] );
 			}
 		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		return radiusList.size();
 	}
 
 	private static final RandomAccessibleInterval< FloatType > createTransformedInterval(
@@ -172,7 +804,8 @@ public class PMCCScaleSpaceBlockFlow
 			final FloatProcessor shiftX,
 			final FloatProcessor shiftY,
 			final FloatProcessor inlierRatio,
-			final short distance ) throws NotEnoughDataPointsException
+			final short distance,
+			final ForegroundTiles foreground ) throws NotEnoughDataPointsException
 	{
 		/* assemble into typed arrays for quicker access */
 		/* TODO This is still inefficient because scale dimension is fastest but should be slowest
@@ -188,7 +821,8 @@ public class PMCCScaleSpaceBlockFlow
 			yShiftArrays[ i ] = ( short[] )shiftVectors.getImageArray()[ ( i << 1 ) | 1 ];
 		}
 
-		final int n = shiftVectors.getWidth() * shiftVectors.getHeight();
+		final int width = shiftVectors.getWidth();
+		final int n = width * shiftVectors.getHeight();
 		final int m = xShiftArrays.length;
 
 
@@ -199,6 +833,10 @@ public class PMCCScaleSpaceBlockFlow
 
 		for ( int i = 0; i < n; ++i )
 		{
+			/* pure background, leave shift and inlier ratio at 0 */
+			if ( foreground != null && !foreground.isActive( i % width, i / width ) )
+				continue;
+
 			Arrays.fill( countsArray, 0 );
 			for ( int j = 0; j < m; ++j )
 			{
@@ -238,6 +876,35 @@ public class PMCCScaleSpaceBlockFlow
 		}
 	}
 
+	/**
+	 * Same as {@link #filterOpticFlowScaleSpace} but reading the compact
+	 * votes accumulated by {@link #opticFlowVotes}.
+	 */
+	private final static void filterOpticFlowVotes(
+			final OpticFlowVotes votes,
+			final int numVotes,
+			final FloatProcessor shiftX,
+			final FloatProcessor shiftY,
+			final FloatProcessor inlierRatio,
+			final ForegroundTiles foreground )
+	{
+		final int[] shift = new int[ 2 ];
+		final int width = shiftX.getWidth();
+		final int n = votes.getNumPixels();
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( foreground != null && !foreground.isActive( i % width, i / width ) )
+				continue;
+
+			final int bestCount = votes.best( i, shift );
+
+			shiftX.setf( i, shift[ 0 ] );
+			shiftY.setf( i, shift[ 1 ] );
+
+			inlierRatio.setf( i, ( float )bestCount / numVotes );
+		}
+	}
+
 	private static final DeformationFieldTransform< DoubleType > createDeformationFieldTransform(
 			final FloatProcessor shiftX,
 			final FloatProcessor shiftY,
@@ -267,6 +934,49 @@ public class PMCCScaleSpaceBlockFlow
 		return createDeformationFieldTransform( shiftX, shiftY, new NLinearInterpolatorFactory<>() );
 	}
 
+	/**
+	 * Evaluates a (lazily composed) position field on the pixel grid of a
+	 * width &times; height raster and stores it as a displacement field.
+	 * Outside of the raster, the displacement is border extended which is
+	 * what the lazy composition of border extended deformation fields does,
+	 * too.
+	 *
+	 * @param xPositions
+	 * @param yPositions
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	private static final DeformationFieldTransform< DoubleType > materializeDeformationField(
+			final RealRandomAccessible< DoubleType > xPositions,
+			final RealRandomAccessible< DoubleType > yPositions,
+			final int width,
+			final int height )
+	{
+		final FloatProcessor shiftX = new FloatProcessor( width, height );
+		final FloatProcessor shiftY = new FloatProcessor( width, height );
+		final float[] shiftXPixels = ( float[] )shiftX.getPixels();
+		final float[] shiftYPixels = ( float[] )shiftY.getPixels();
+
+		final RealRandomAccess< DoubleType > xAccess = xPositions.realRandomAccess();
+		final RealRandomAccess< DoubleType > yAccess = yPositions.realRandomAccess();
+
+		for ( int y = 0, i = 0; y < height; ++y )
+		{
+			xAccess.setPosition( y, 1 );
+			yAccess.setPosition( y, 1 );
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				xAccess.setPosition( x, 0 );
+				yAccess.setPosition( x, 0 );
+				shiftXPixels[ i ] = ( float )( xAccess.get().get() - x );
+				shiftYPixels[ i ] = ( float )( yAccess.get().get() - y );
+			}
+		}
+
+		return createDeformationFieldTransform( shiftX, shiftY );
+	}
+
 
 	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
 			final FloatProcessor ip1,
@@ -274,6 +984,91 @@ public class PMCCScaleSpaceBlockFlow
 			final short radius,
 			final double sigma,
 			final int numIterations)
+	{
+		return scaleSpaceOpticFlow( ip1, ip2, radius, sigma, numIterations, new Param() );
+	}
+
+	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final Param param )
+	{
+		return scaleSpaceOpticFlow( ip1, ip2, radius, sigma, numIterations, param, null );
+	}
+
+	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final Param param,
+			final RealTransform initialTransform )
+	{
+		return scaleSpaceOpticFlow( ip1, ip2, radius, sigma, numIterations, param, initialTransform, null );
+	}
+
+	/**
+	 * Weighted mean magnitude of a flow update.
+	 *
+	 * @return 0 if all weights are 0
+	 */
+	private static final double weightedMeanMagnitude(
+			final FloatProcessor shiftX,
+			final FloatProcessor shiftY,
+			final FloatProcessor weights )
+	{
+		final float[] shiftXPixels = ( float[] )shiftX.getPixels();
+		final float[] shiftYPixels = ( float[] )shiftY.getPixels();
+		final float[] weightsPixels = ( float[] )weights.getPixels();
+
+		double sum = 0;
+		double sumOfWeights = 0;
+		for ( int i = 0; i < weightsPixels.length; ++i )
+		{
+			final double w = weightsPixels[ i ];
+			if ( w > 0 )
+			{
+				final double dx = shiftXPixels[ i ];
+				final double dy = shiftYPixels[ i ];
+				sum += w * Math.sqrt( dx * dx + dy * dy );
+				sumOfWeights += w;
+			}
+		}
+
+		return sumOfWeights > 0 ? sum / sumOfWeights : 0;
+	}
+
+	/**
+	 * Iteratively estimate the flow field that maps ip1 into ip2, starting
+	 * from an initial transform, e.g. the upsampled flow of a coarser scale
+	 * level.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param radius search radius in pixels
+	 * @param sigma smoothness of the flow field in pixels
+	 * @param numIterations
+	 * @param param
+	 * @param initialTransform maps ip1 coordinates into ip2 coordinates,
+	 * 		identity if null
+	 * @param statistics if not null, receives the number of iterations and
+	 * 		the residual of the last iteration, iterations stop early once
+	 * 		the residual drops below {@link Param#convergenceTolerance}
+	 * @return the transform and the inlier weights of the last iteration
+	 */
+	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final Param param,
+			final RealTransform initialTransform,
+			final Statistics statistics )
 	{
 		/* create background mask */
 		final ByteProcessor backgroundMask = new ByteProcessor( ip1.getWidth(), ip1.getHeight() );
@@ -284,19 +1079,63 @@ public class PMCCScaleSpaceBlockFlow
 			if ( !( ip1Pixels[ i ] == 0 || ip2Pixels[ i ] == 0 ) )
 				backgroundMaskPixels[ i ] = 1;
 
+		/* skip tiles without foreground in reach of the search */
+		final ForegroundTiles foreground = param.foregroundTileSize > 0 ?
+				new ForegroundTiles( backgroundMask, param.foregroundTileSize, radius ) :
+				null;
+
 		/* initialize composed weights */
 		FloatProcessor weights = null;
 
-		/* initialize position field with identity */
-		RealRandomAccessible< DoubleType > xPositions = new RealPositionRealRandomAccessible( 2, 0 );
-		RealRandomAccessible< DoubleType > yPositions = new RealPositionRealRandomAccessible( 2, 1 );
+		/* initialize position field with identity or the initial transform */
+		RealRandomAccessible< DoubleType > xPositions;
+		RealRandomAccessible< DoubleType > yPositions;
+		if ( initialTransform == null )
+		{
+			xPositions = new RealPositionRealRandomAccessible( 2, 0 );
+			yPositions = new RealPositionRealRandomAccessible( 2, 1 );
+		}
+		else
+		{
+			xPositions = Transform.createRealPositions( initialTransform, 0 );
+			yPositions = Transform.createRealPositions( initialTransform, 1 );
+
+			if ( param.materializeFlow )
+			{
+				final DeformationFieldTransform< DoubleType > initialField = materializeDeformationField(
+						xPositions,
+						yPositions,
+						ip1.getWidth(),
+						ip1.getHeight() );
+				xPositions = new RealTransformRandomAccessible<>(
+						new RealPositionRealRandomAccessible( 2, 0 ),
+						initialField );
+				yPositions = new RealTransformRandomAccessible<>(
+						new RealPositionRealRandomAccessible( 2, 1 ),
+						initialField );
+			}
+		}
+
+		/* mask saturated pixels with seeded noise, reproducible over runs */
+		final FloatProcessor ip1Filtered = Preprocessing.saturationToNoise( ip1, Preprocessing.DEFAULT_SEED, param.numThreads );
 
-		/* filters to mask saturated pixels with noise */
-		final ValueToNoise filter1 = new ValueToNoise( 0, 0, 255 );
-		final ValueToNoise filter2 = new ValueToNoise( 255, 0, 255 );
+		/* integral images of the fixed image are reused over all offsets and
+		 * iterations, only blocks of active pixels shifted by up to radius
+		 * are needed */
+		final ArrayList< Double > radiusList = blockRadii( ip1.getWidth(), 1.5 );
+		final int maxRadius = radiusList.isEmpty() ? 0 : ( int )Math.round( radiusList.get( radiusList.size() - 1 ) );
+		final int[] fixedRegion = activeRegion( foreground, maxRadius + radius, ip1.getWidth(), ip1.getHeight() );
+		final IntegralBlockPMCC.Sums ip1Sums = new IntegralBlockPMCC.Sums(
+				ip1Filtered,
+				fixedRegion[ 0 ],
+				fixedRegion[ 1 ],
+				fixedRegion[ 2 ],
+				fixedRegion[ 3 ] );
 
-		FloatProcessor ip1Filtered = filter1.process( ip1 ).convertToFloatProcessor();
-		ip1Filtered = filter2.process( ip1Filtered ).convertToFloatProcessor();
+		/* compact votes are reused over all iterations */
+		final OpticFlowVotes votes = param.voteCandidates > 0 ?
+				new OpticFlowVotes( ip1.getWidth() * ip1.getHeight(), param.voteCandidates, radius ) :
+				null;
 
 		/* repeat numIteration times for each scale */
 		for ( int j = 0; j < numIterations ; ++j )
@@ -311,35 +1150,60 @@ public class PMCCScaleSpaceBlockFlow
 										xPositions,
 										yPositions } ) ) );
 
-			ip2Transformed = filter1.process( ip2Transformed ).convertToFloatProcessor();
-			ip2Transformed = filter2.process( ip2Transformed ).convertToFloatProcessor();
-
-			final ImageStack seqR = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
-			final ImageStack seqFlowVectors = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
-
-			opticFlow(
-					ip1Filtered,
-					ip2Transformed,
-					radius,
-					seqR,
-					seqFlowVectors,
-					1.5 );
+			ip2Transformed = Preprocessing.saturationToNoise( ip2Transformed, Preprocessing.DEFAULT_SEED + j + 1, param.numThreads );
 
 			final FloatProcessor shiftXFloat = new FloatProcessor( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 			final FloatProcessor shiftYFloat = new FloatProcessor( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 			weights = new FloatProcessor( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
-			try
+
+			if ( votes != null )
 			{
-				filterOpticFlowScaleSpace(
-						seqFlowVectors,
+				final int numVotes = opticFlowVotes(
+						ip1Sums,
+						ip2Transformed,
+						radius,
+						1.5,
+						param,
+						foreground,
+						votes );
+
+				filterOpticFlowVotes(
+						votes,
+						numVotes,
 						shiftXFloat,
 						shiftYFloat,
 						weights,
-						radius );
+						foreground );
 			}
-			catch ( final NotEnoughDataPointsException e )
+			else
 			{
-				e.printStackTrace();
+				final ImageStack seqR = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
+				final ImageStack seqFlowVectors = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
+
+				opticFlow(
+						ip1Sums,
+						ip2Transformed,
+						radius,
+						seqR,
+						seqFlowVectors,
+						1.5,
+						param,
+						foreground );
+
+				try
+				{
+					filterOpticFlowScaleSpace(
+							seqFlowVectors,
+							shiftXFloat,
+							shiftYFloat,
+							weights,
+							radius,
+							foreground );
+				}
+				catch ( final NotEnoughDataPointsException e )
+				{
+					e.printStackTrace();
+				}
 			}
 
 			/* weight flow vectors by mask * max_R and Gaussian blur */
@@ -361,6 +1225,13 @@ public class PMCCScaleSpaceBlockFlow
 			shiftXFloat.copyBits( divisionWeights, 0, 0, Blitter.DIVIDE );
 			shiftYFloat.copyBits( divisionWeights, 0, 0, Blitter.DIVIDE );
 
+			final double residual = weightedMeanMagnitude( shiftXFloat, shiftYFloat, weights );
+			if ( statistics != null )
+			{
+				statistics.numIterations = j + 1;
+				statistics.residual = residual;
+			}
+
 			/* append deformation field to existing transformation */
 			final DeformationFieldTransform< DoubleType > deformationField = createDeformationFieldTransform(
 					shiftXFloat,
@@ -372,6 +1243,25 @@ public class PMCCScaleSpaceBlockFlow
 			yPositions = new RealTransformRandomAccessible<>(
 					yPositions,
 					deformationField );
+
+			/* bake the composition to keep lookups constant in the number of iterations */
+			if ( param.materializeFlow )
+			{
+				final DeformationFieldTransform< DoubleType > composedField = materializeDeformationField(
+						xPositions,
+						yPositions,
+						ip1.getWidth(),
+						ip1.getHeight() );
+				xPositions = new RealTransformRandomAccessible<>(
+						new RealPositionRealRandomAccessible( 2, 0 ),
+						composedField );
+				yPositions = new RealTransformRandomAccessible<>(
+						new RealPositionRealRandomAccessible( 2, 1 ),
+						composedField );
+			}
+
+			if ( param.convergenceTolerance > 0 && residual < param.convergenceTolerance )
+				break;
 		}
 
 		@SuppressWarnings( "unchecked" )
@@ -0,0 +1,251 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+
+/**
+ * Point matches as packed primitive arrays, one coordinate array per
+ * dimension for the source points p, the target points q and the weights.
+ * The layout is what {@link Model#fit(double[][], double[][], double[])}
+ * expects, so models can be fit without {@link PointMatch} objects, and
+ * serializes to a few arrays instead of an object graph per match.
+ * {@link PointMatch PointMatches} are created only where mpicbg needs them,
+ * e.g. to {@link #connect(Tile, Tile) connect} {@link Tile Tiles}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class PackedPointMatches implements Serializable {
+
+	private static final long serialVersionUID = 4183640245211467226L;
+
+	final private int numDimensions;
+	private int size = 0;
+	private double[][] p;
+	private double[][] q;
+	private double[] w;
+
+	public PackedPointMatches(final int numDimensions, final int capacity) {
+
+		this.numDimensions = numDimensions;
+		p = new double[numDimensions][capacity];
+		q = new double[numDimensions][capacity];
+		w = new double[capacity];
+	}
+
+	public PackedPointMatches(final int numDimensions) {
+
+		this(numDimensions, 16);
+	}
+
+	/**
+	 * Pack the local coordinates of p1 and the world coordinates of p2.
+	 *
+	 * @param matches
+	 * @param numDimensions
+	 * @return
+	 */
+	public static PackedPointMatches pack(final Collection<? extends PointMatch> matches, final int numDimensions) {
+
+		final PackedPointMatches packed = new PackedPointMatches(numDimensions, matches.size());
+		for (final PointMatch match : matches)
+			packed.add(match.getP1().getL(), match.getP2().getW(), match.getWeight());
+		return packed;
+	}
+
+	public static PackedPointMatches pack(final Collection<? extends PointMatch> matches) {
+
+		return pack(matches, matches.isEmpty() ? 2 : matches.iterator().next().getP1().getL().length);
+	}
+
+	public int size() {
+
+		return size;
+	}
+
+	public int numDimensions() {
+
+		return numDimensions;
+	}
+
+	public double getP(final int d, final int i) {
+
+		return p[d][i];
+	}
+
+	public double getQ(final int d, final int i) {
+
+		return q[d][i];
+	}
+
+	public double getWeight(final int i) {
+
+		return w[i];
+	}
+
+	private void ensureCapacity(final int capacity) {
+
+		if (capacity > w.length) {
+			final int newCapacity = Math.max(capacity, w.length * 2);
+			for (int d = 0; d < numDimensions; ++d) {
+				p[d] = Arrays.copyOf(p[d], newCapacity);
+				q[d] = Arrays.copyOf(q[d], newCapacity);
+			}
+			w = Arrays.copyOf(w, newCapacity);
+		}
+	}
+
+	public void add(final double[] pi, final double[] qi, final double wi) {
+
+		ensureCapacity(size + 1);
+		for (int d = 0; d < numDimensions; ++d) {
+			p[d][size] = pi[d];
+			q[d][size] = qi[d];
+		}
+		w[size++] = wi;
+	}
+
+	public void addAll(final PackedPointMatches matches) {
+
+		ensureCapacity(size + matches.size);
+		for (int d = 0; d < numDimensions; ++d) {
+			System.arraycopy(matches.p[d], 0, p[d], size, matches.size);
+			System.arraycopy(matches.q[d], 0, q[d], size, matches.size);
+		}
+		System.arraycopy(matches.w, 0, w, size, matches.size);
+		size += matches.size;
+	}
+
+	/**
+	 * @param indices
+	 * @param n number of indices to use
+	 * @return the matches at the first n indices
+	 */
+	public PackedPointMatches subset(final int[] indices, final int n) {
+
+		final PackedPointMatches subset = new PackedPointMatches(numDimensions, n);
+		for (int d = 0; d < numDimensions; ++d) {
+			final double[] pd = p[d], qd = q[d], spd = subset.p[d], sqd = subset.q[d];
+			for (int i = 0; i < n; ++i) {
+				spd[i] = pd[indices[i]];
+				sqd[i] = qd[indices[i]];
+			}
+		}
+		for (int i = 0; i < n; ++i)
+			subset.w[i] = w[indices[i]];
+		subset.size = n;
+		return subset;
+	}
+
+	/**
+	 * Scale all coordinates of p and q.
+	 *
+	 * @param scale
+	 */
+	public void scale(final double scale) {
+
+		for (int d = 0; d < numDimensions; ++d) {
+			final double[] pd = p[d], qd = q[d];
+			for (int i = 0; i < size; ++i) {
+				pd[i] *= scale;
+				qd[i] *= scale;
+			}
+		}
+	}
+
+	/**
+	 * Squared distance between the transformed p and q of match i.
+	 *
+	 * @param model
+	 * @param i
+	 * @param buffer of numDimensions length
+	 * @return
+	 */
+	public double squareDistance(final Model<?> model, final int i, final double[] buffer) {
+
+		for (int d = 0; d < numDimensions; ++d)
+			buffer[d] = p[d][i];
+		model.applyInPlace(buffer);
+		double sum = 0;
+		for (int d = 0; d < numDimensions; ++d) {
+			final double diff = buffer[d] - q[d][i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	private void trim() {
+
+		if (w.length > size) {
+			for (int d = 0; d < numDimensions; ++d) {
+				p[d] = Arrays.copyOf(p[d], size);
+				q[d] = Arrays.copyOf(q[d], size);
+			}
+			w = Arrays.copyOf(w, size);
+		}
+	}
+
+	/**
+	 * Fit a model to all matches.
+	 *
+	 * @param model
+	 * @throws NotEnoughDataPointsException
+	 * @throws IllDefinedDataPointsException
+	 */
+	public void fit(final Model<?> model) throws NotEnoughDataPointsException, IllDefinedDataPointsException {
+
+		trim();
+		model.fit(p, q, w);
+	}
+
+	public ArrayList<PointMatch> toPointMatches() {
+
+		final ArrayList<PointMatch> matches = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			final double[] pi = new double[numDimensions];
+			final double[] qi = new double[numDimensions];
+			for (int d = 0; d < numDimensions; ++d) {
+				pi[d] = p[d][i];
+				qi[d] = q[d][i];
+			}
+			matches.add(new PointMatch(new Point(pi), new Point(qi), w[i]));
+		}
+		return matches;
+	}
+
+	/**
+	 * Connect two {@link Tile Tiles} by these matches, p in a, q in b.
+	 *
+	 * @param a
+	 * @param b
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public void connect(final Tile a, final Tile b) {
+
+		a.connect(b, toPointMatches());
+	}
+}
@@ -0,0 +1,282 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Fused preprocessing of float pixel arrays shared by the SIFT and the flow
+ * paths.  Replaces the {@link ValueToNoise} and
+ * {@link NormalizeLocalContrast} passes on {@link FloatProcessor}s with
+ * single passes over a float[] that run in parallel over rows.
+ *
+ * Noise is drawn from a counter based generator, i.e. the value for pixel i
+ * is a hash of the seed and i.  Results are therefore reproducible and do
+ * not depend on the number of threads.
+ *
+ * Local mean and standard deviation are read from integral images of the
+ * sums and sums of squares over blocks that are clipped at the image
+ * boundary, like {@link mpicbg.ij.integral.BlockStatistics}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class Preprocessing {
+
+	final static public long DEFAULT_SEED = 0x5eed5eedL;
+
+	private Preprocessing() {}
+
+	/**
+	 * SplitMix64 finalizer.
+	 */
+	final static private long mix(long z) {
+
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Seed derived from {@link #DEFAULT_SEED} and a list of keys, e.g. the
+	 * dataset name, transform and grid offset of an image.  Images that are
+	 * noised with the seeds of different keys do not share noise even if
+	 * they have the same size.
+	 *
+	 * @param keys
+	 * @return
+	 */
+	final static public long seed(final Object... keys) {
+
+		long seed = DEFAULT_SEED;
+		for (final Object key : keys) {
+			final String string = String.valueOf(key);
+			for (int i = 0; i < string.length(); ++i)
+				seed = mix(seed + string.charAt(i) * 0x9e3779b97f4a7c15L);
+			/* separator such that ("ab", "c") and ("a", "bc") differ */
+			seed = mix(seed + 0x632be59bd9b4e019L);
+		}
+		return seed;
+	}
+
+	/**
+	 * Uniform random number in [0, 1) for a seed and a counter.
+	 *
+	 * @param seed
+	 * @param counter
+	 * @return
+	 */
+	final static public double uniform(final long seed, final long counter) {
+
+		return (mix(mix(seed) + counter * 0x9e3779b97f4a7c15L) >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Run numTasks row chunks [fromRow, toRow) in the pool, or in the
+	 * calling thread if there is only one.
+	 */
+	final static private void forEachRowChunk(
+			final int height,
+			final int numThreads,
+			final RowChunk chunk) {
+
+		final int numChunks = Math.max(1, Math.min(numThreads, height));
+		if (numChunks == 1) {
+			chunk.run(0, height);
+			return;
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(numChunks);
+		try {
+			final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int t = 0; t < numChunks; ++t) {
+				final int fromRow = height * t / numChunks;
+				final int toRow = height * (t + 1) / numChunks;
+				tasks.add(pool.submit(() -> chunk.run(fromRow, toRow)));
+			}
+			for (final ForkJoinTask<?> task : tasks)
+				task.join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@FunctionalInterface
+	static private interface RowChunk {
+
+		public void run(final int fromRow, final int toRow);
+	}
+
+	/**
+	 * Replace all pixels that are equal to value1 or value2 by uniform noise
+	 * in [min, max).
+	 *
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 * @param value1
+	 * @param value2
+	 * @param min
+	 * @param max
+	 * @param seed
+	 * @param numThreads
+	 * @return a new array, pixels is not modified
+	 */
+	public static float[] valuesToNoise(
+			final float[] pixels,
+			final int width,
+			final int height,
+			final float value1,
+			final float value2,
+			final double min,
+			final double max,
+			final long seed,
+			final int numThreads) {
+
+		final float[] output = new float[pixels.length];
+		final double scale = max - min;
+		forEachRowChunk(height, numThreads, (fromRow, toRow) -> {
+			for (int i = fromRow * width, n = toRow * width; i < n; ++i) {
+				final float v = pixels[i];
+				output[i] = (v == value1 || v == value2) ? (float)(uniform(seed, i) * scale + min) : v;
+			}
+		});
+
+		return output;
+	}
+
+	/**
+	 * Replace 0 and 255 by noise in [0, 255) and normalize local contrast
+	 * such that, for each pixel, mean &plusmn; stdDevs &times; standard
+	 * deviation of its block maps to [min, max].  Pixels in blocks of
+	 * constant intensity are set to (min + max) / 2.
+	 *
+	 * Noise and the row sums of the integral images are computed in one pass
+	 * parallel over rows, the column sums parallel over columns, and the
+	 * normalization parallel over rows.
+	 *
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 * @param blockRadiusX
+	 * @param blockRadiusY
+	 * @param stdDevs
+	 * @param min
+	 * @param max
+	 * @param seed
+	 * @param numThreads
+	 * @return a new array, pixels is not modified
+	 */
+	public static float[] noiseAndNormalizeLocalContrast(
+			final float[] pixels,
+			final int width,
+			final int height,
+			final int blockRadiusX,
+			final int blockRadiusY,
+			final float stdDevs,
+			final double min,
+			final double max,
+			final long seed,
+			final int numThreads) {
+
+		final float[] output = new float[pixels.length];
+		final int stride = width + 1;
+		final double[] sums = new double[stride * (height + 1)];
+		final double[] sumsOfSquares = new double[sums.length];
+
+		/* noise and row sums */
+		forEachRowChunk(height, numThreads, (fromRow, toRow) -> {
+			for (int y = fromRow; y < toRow; ++y) {
+				final int row = y * width;
+				final int integralRow = (y + 1) * stride + 1;
+				double s = 0, ss = 0;
+				for (int x = 0; x < width; ++x) {
+					final int i = row + x;
+					float v = pixels[i];
+					if (v == 0 || v == 255)
+						v = (float)(uniform(seed, i) * 255);
+					output[i] = v;
+					s += v;
+					ss += (double)v * v;
+					sums[integralRow + x] = s;
+					sumsOfSquares[integralRow + x] = ss;
+				}
+			}
+		});
+
+		/* column sums, the columns are the rows of this pass */
+		forEachRowChunk(stride, numThreads, (fromColumn, toColumn) -> {
+			for (int y = 2; y <= height; ++y) {
+				final int integralRow = y * stride;
+				for (int x = fromColumn; x < toColumn; ++x) {
+					final int i = integralRow + x;
+					sums[i] += sums[i - stride];
+					sumsOfSquares[i] += sumsOfSquares[i - stride];
+				}
+			}
+		});
+
+		/* normalize */
+		final double range = max - min;
+		final double center = 0.5 * (min + max);
+		forEachRowChunk(height, numThreads, (fromRow, toRow) -> {
+			for (int y = fromRow; y < toRow; ++y) {
+				final int y0 = Math.max(0, y - blockRadiusY) * stride;
+				final int y1 = Math.min(height, y + blockRadiusY + 1) * stride;
+				final int h = (y1 - y0) / stride;
+				final int row = y * width;
+				for (int x = 0; x < width; ++x) {
+					final int x0 = Math.max(0, x - blockRadiusX);
+					final int x1 = Math.min(width, x + blockRadiusX + 1);
+					final double n = (double)h * (x1 - x0);
+					final double s = sums[y1 + x1] - sums[y1 + x0] - sums[y0 + x1] + sums[y0 + x0];
+					final double ss = sumsOfSquares[y1 + x1] - sumsOfSquares[y1 + x0] - sumsOfSquares[y0 + x1] + sumsOfSquares[y0 + x0];
+					final double mean = s / n;
+					final double variance = ss / n - mean * mean;
+					final double d = stdDevs * Math.sqrt(Math.max(0, variance));
+					final int i = row + x;
+					output[i] = d > 0 ? (float)((output[i] - mean) / (2 * d) * range + center) : (float)center;
+				}
+			}
+		});
+
+		return output;
+	}
+
+	/**
+	 * {@link #valuesToNoise(float[], int, int, float, float, double, double, long, int)}
+	 * for 0 and 255 on a {@link FloatProcessor}.
+	 *
+	 * @param ip
+	 * @param seed
+	 * @param numThreads
+	 * @return a new {@link FloatProcessor}, ip is not modified
+	 */
+	public static FloatProcessor saturationToNoise(
+			final FloatProcessor ip,
+			final long seed,
+			final int numThreads) {
+
+		return new FloatProcessor(
+				ip.getWidth(),
+				ip.getHeight(),
+				valuesToNoise((float[])ip.getPixels(), ip.getWidth(), ip.getHeight(), 0, 255, 0, 255, seed, numThreads));
+	}
+}
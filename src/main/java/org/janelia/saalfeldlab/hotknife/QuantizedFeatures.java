@@ -0,0 +1,222 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.Serializable;
+import java.util.List;
+
+import mpicbg.imagefeatures.Feature;
+
+/**
+ * A set of SIFT {@link Feature Features} with 8-bit descriptors.  All
+ * descriptor components are quantized with one scale for the whole set,
+ * i.e. component = scale &times; q with q in [0, 255], such that a set
+ * serializes to one byte per component plus the locations, scales and
+ * orientations of its features.  Descriptor distances are computed from
+ * integer dot products and the integer norms of the quantized descriptors.
+ *
+ * SIFT descriptors are non-negative, negative components are rejected.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class QuantizedFeatures implements Serializable {
+
+	private static final long serialVersionUID = -2738212309876318476L;
+
+	final private int size;
+	final private int descriptorSize;
+	final private double scale;
+
+	/* x, y, scale, orientation per feature */
+	final private double[] locations;
+	final private byte[] descriptors;
+	final private int[] squareNorms;
+
+	private QuantizedFeatures(
+			final int size,
+			final int descriptorSize,
+			final double scale,
+			final double[] locations,
+			final byte[] descriptors) {
+
+		this.size = size;
+		this.descriptorSize = descriptorSize;
+		this.scale = scale;
+		this.locations = locations;
+		this.descriptors = descriptors;
+
+		squareNorms = new int[size];
+		for (int i = 0, k = 0; i < size; ++i) {
+			int s = 0;
+			for (int d = 0; d < descriptorSize; ++d, ++k) {
+				final int q = descriptors[k] & 0xff;
+				s += q * q;
+			}
+			squareNorms[i] = s;
+		}
+	}
+
+	/**
+	 * Quantize a list of features.
+	 *
+	 * @param features
+	 * @return
+	 */
+	public static QuantizedFeatures quantize(final List<Feature> features) {
+
+		final int size = features.size();
+		final int descriptorSize = size == 0 ? 0 : features.get(0).descriptor.length;
+
+		float max = 0;
+		for (final Feature f : features) {
+			if (f.descriptor.length != descriptorSize)
+				throw new IllegalArgumentException("Descriptors have different sizes.");
+			for (final float v : f.descriptor) {
+				if (v < 0)
+					throw new IllegalArgumentException("Cannot quantize negative descriptor component " + v + ".");
+				max = Math.max(max, v);
+			}
+		}
+		final double scale = max > 0 ? max / 255.0 : 1.0;
+
+		final double[] locations = new double[4 * size];
+		final byte[] descriptors = new byte[descriptorSize * size];
+		for (int i = 0, k = 0; i < size; ++i) {
+			final Feature f = features.get(i);
+			locations[4 * i] = f.location[0];
+			locations[4 * i + 1] = f.location[1];
+			locations[4 * i + 2] = f.scale;
+			locations[4 * i + 3] = f.orientation;
+			for (final float v : f.descriptor)
+				descriptors[k++] = (byte)Math.round(v / scale);
+		}
+
+		return new QuantizedFeatures(size, descriptorSize, scale, locations, descriptors);
+	}
+
+	public int size() {
+
+		return size;
+	}
+
+	public int getDescriptorSize() {
+
+		return descriptorSize;
+	}
+
+	/**
+	 * @return the length of one quantization step
+	 */
+	public double getScale() {
+
+		return scale;
+	}
+
+	/**
+	 * Create the i-th feature with its dequantized descriptor.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public Feature get(final int i) {
+
+		final float[] descriptor = new float[descriptorSize];
+		for (int d = 0, k = i * descriptorSize; d < descriptorSize; ++d, ++k)
+			descriptor[d] = (float)((descriptors[k] & 0xff) * scale);
+
+		return new Feature(
+				locations[4 * i + 2],
+				locations[4 * i + 3],
+				new double[]{locations[4 * i], locations[4 * i + 1]},
+				descriptor);
+	}
+
+	/**
+	 * Squared descriptor distance of feature i in this set and feature j
+	 * in other.
+	 */
+	final private double squareDistance(final int i, final QuantizedFeatures other, final int j) {
+
+		int dot = 0;
+		for (int d = 0, k = i * descriptorSize, l = j * descriptorSize; d < descriptorSize; ++d, ++k, ++l)
+			dot += (descriptors[k] & 0xff) * (other.descriptors[l] & 0xff);
+
+		return scale * scale * squareNorms[i] + other.scale * other.scale * other.squareNorms[j] - 2 * scale * other.scale * dot;
+	}
+
+	/**
+	 * Exhaustively match this set against other with the ratio of distances
+	 * test like {@link mpicbg.imagefeatures.FeatureTransform}, and remove
+	 * ambiguous matches whose target location is shared with other matches
+	 * with {@link FeatureKDTree#ambiguousMatches}.  Matches map
+	 * locations in this set to locations in other.
+	 *
+	 * @param other
+	 * @param rod ratio of best and second best descriptor distance
+	 * @return
+	 */
+	public PackedPointMatches matchFeatures(final QuantizedFeatures other, final double rod) {
+
+		if (other.descriptorSize != descriptorSize && other.size > 0 && size > 0)
+			throw new IllegalArgumentException("Descriptors have different sizes.");
+
+		final double rod2 = rod * rod;
+		final int[] sources = new int[size];
+		final int[] targets = new int[size];
+		int n = 0;
+		for (int i = 0; i < size; ++i) {
+			double best = Double.MAX_VALUE;
+			double secondBest = Double.MAX_VALUE;
+			int bestIndex = -1;
+			for (int j = 0; j < other.size; ++j) {
+				final double d = squareDistance(i, other, j);
+				if (d < best) {
+					secondBest = best;
+					best = d;
+					bestIndex = j;
+				} else if (d < secondBest)
+					secondBest = d;
+			}
+			if (bestIndex >= 0 && secondBest < Double.MAX_VALUE && best < rod2 * secondBest) {
+				sources[n] = i;
+				targets[n] = bestIndex;
+				++n;
+			}
+		}
+
+		/* remove matches with shared target locations */
+		final boolean[] ambiguous = FeatureKDTree.ambiguousMatches(
+				n,
+				i -> other.locations[4 * targets[i]],
+				i -> other.locations[4 * targets[i] + 1]);
+
+		final PackedPointMatches matches = new PackedPointMatches(2, n);
+		final double[] p = new double[2];
+		final double[] q = new double[2];
+		for (int i = 0; i < n; ++i) {
+			if (ambiguous[i])
+				continue;
+			p[0] = locations[4 * sources[i]];
+			p[1] = locations[4 * sources[i] + 1];
+			q[0] = other.locations[4 * targets[i]];
+			q[1] = other.locations[4 * targets[i] + 1];
+			matches.add(p, q, 1.0);
+		}
+
+		return matches;
+	}
+}
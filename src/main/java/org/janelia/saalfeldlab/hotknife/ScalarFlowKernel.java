@@ -0,0 +1,94 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+/**
+ * Scalar {@link FlowKernel}, available on all JVMs.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class ScalarFlowKernel implements FlowKernel {
+
+	@Override
+	public void updateMaxima(
+			final float[] r,
+			final float[] rMax,
+			final short[] xShift,
+			final short[] yShift,
+			final int fromIndex,
+			final int toIndex,
+			final short xo,
+			final short yo) {
+
+		for (int i = fromIndex; i < toIndex; ++i) {
+			final float ri = r[i];
+			if (ri > rMax[i]) {
+				rMax[i] = ri;
+				xShift[i] = xo;
+				yShift[i] = yo;
+			}
+		}
+	}
+
+	@Override
+	public void rSignedSquare(
+			final long[] sumsX,
+			final long[] sumsXX,
+			final int aX,
+			final int bX,
+			final long[] sumsY,
+			final long[] sumsYY,
+			final int aY,
+			final int bY,
+			final long[] sumsXY,
+			final int aXY,
+			final int bXY,
+			final int blockWidth,
+			final double n,
+			final float[] r,
+			final int rOffset,
+			final int length) {
+
+		for (int k = 0; k < length; ++k) {
+			final double sumX = sumsX[bX + k + blockWidth] - sumsX[bX + k] - sumsX[aX + k + blockWidth] + sumsX[aX + k];
+			final double sumXX = sumsXX[bX + k + blockWidth] - sumsXX[bX + k] - sumsXX[aX + k + blockWidth] + sumsXX[aX + k];
+			final double sumY = sumsY[bY + k + blockWidth] - sumsY[bY + k] - sumsY[aY + k + blockWidth] + sumsY[aY + k];
+			final double sumYY = sumsYY[bY + k + blockWidth] - sumsYY[bY + k] - sumsYY[aY + k + blockWidth] + sumsYY[aY + k];
+			final double sumXY = sumsXY[bXY + k + blockWidth] - sumsXY[bXY + k] - sumsXY[aXY + k + blockWidth] + sumsXY[aXY + k];
+
+			r[rOffset + k] = signedSquare(n, sumX, sumXX, sumY, sumYY, sumXY);
+		}
+	}
+
+	/**
+	 * Signed square correlation coefficient from block sums.
+	 */
+	static public float signedSquare(
+			final double n,
+			final double sumX,
+			final double sumXX,
+			final double sumY,
+			final double sumYY,
+			final double sumXY) {
+
+		final double a = n * sumXY - sumX * sumY;
+		final double b = n * sumXX - sumX * sumX;
+		final double c = n * sumYY - sumY * sumY;
+
+		return b > 0 && c > 0 ? (float)(a * Math.abs(a) / (b * c)) : Float.NaN;
+	}
+}
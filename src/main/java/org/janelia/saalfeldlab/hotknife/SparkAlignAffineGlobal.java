@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -32,6 +31,7 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.FeatureStore;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.hotknife.util.Util;
 import org.janelia.saalfeldlab.n5.N5;
@@ -49,7 +49,6 @@ import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.InterpolatedAffineModel2D;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.PointMatch;
 import mpicbg.models.RigidModel2D;
 import mpicbg.models.Tile;
 import mpicbg.models.TileConfiguration;
@@ -81,6 +80,30 @@ public class SparkAlignAffineGlobal {
 		@Option(name = "--scaleIndex", required = true, usage = "scale index, e.g. 4 (means scale = 1.0 / 2^4)")
 		private int scaleIndex = 0;
 
+		@Option(name = "--storeFeatures", required = false, usage = "store extracted features in the face groups and reuse them in later runs")
+		private boolean storeFeatures = false;
+
+		@Option(name = "--numThreads", required = false, usage = "number of threads per Spark task for feature preprocessing")
+		private int numThreads = 1;
+
+		@Option(name = "--matchTrees", required = false, usage = "number of randomized KD-trees for feature matching, 0 for exhaustive matching")
+		private int matchTrees = 0;
+
+		@Option(name = "--matchEpsilon", required = false, usage = "approximation bound for KD-tree feature matching, 0 for exact")
+		private double matchEpsilon = 0;
+
+		@Option(name = "--matchMaxChecks", required = false, usage = "maximum number of descriptors compared per feature in KD-tree matching, 0 for unlimited")
+		private int matchMaxChecks = 0;
+
+		@Option(name = "--quantizeDescriptors", required = false, usage = "match 8-bit quantized descriptors exhaustively, ignores the KD-tree options")
+		private boolean quantizeDescriptors = false;
+
+		@Option(name = "--chainSolver", required = false, usage = "solve the slab chain directly with ChainAffineSolver instead of iterating a TileConfiguration")
+		private boolean chainSolver = false;
+
+		@Option(name = "--solverThreads", required = false, usage = "number of threads for the chain solver")
+		private int solverThreads = Runtime.getRuntime().availableProcessors();
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -123,6 +146,62 @@ public class SparkAlignAffineGlobal {
 		public String getOutGroup() {
 			return outGroup;
 		}
+
+		/**
+		 * @return whether to store and reuse extracted features
+		 */
+		public boolean getStoreFeatures() {
+			return storeFeatures;
+		}
+
+		/**
+		 * @return the number of KD-trees for matching
+		 */
+		public int getMatchTrees() {
+			return matchTrees;
+		}
+
+		/**
+		 * @return the approximation bound for matching
+		 */
+		public double getMatchEpsilon() {
+			return matchEpsilon;
+		}
+
+		/**
+		 * @return the maximum number of checks for matching
+		 */
+		public int getMatchMaxChecks() {
+			return matchMaxChecks;
+		}
+
+		/**
+		 * @return whether to match quantized descriptors
+		 */
+		public boolean getQuantizeDescriptors() {
+			return quantizeDescriptors;
+		}
+
+		/**
+		 * @return the number of threads for feature preprocessing
+		 */
+		public int getNumThreads() {
+			return numThreads;
+		}
+
+		/**
+		 * @return whether to use the chain solver
+		 */
+		public boolean getChainSolver() {
+			return chainSolver;
+		}
+
+		/**
+		 * @return the number of threads for the chain solver
+		 */
+		public int getSolverThreads() {
+			return solverThreads;
+		}
 	}
 
 
@@ -132,19 +211,65 @@ public class SparkAlignAffineGlobal {
 			final List<String> datasetNames,
 			final int scaleIndex) throws IOException {
 
+		return extractFeatures(sc, n5Path, datasetNames, scaleIndex, false, 1);
+	}
+
+	/**
+	 * Extract features from each dataset at scaleIndex.  If storeFeatures is
+	 * set, features are loaded from a {@link FeatureStore} in the dataset's
+	 * group, and extracted and stored there only if missing or if the
+	 * source dataset changed since.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param datasetNames
+	 * @param scaleIndex
+	 * @param storeFeatures
+	 * @param numThreads threads for feature preprocessing per face
+	 * @return
+	 * @throws IOException
+	 */
+	static public JavaPairRDD<String, ArrayList<Feature>> extractFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetNames,
+			final int scaleIndex,
+			final boolean storeFeatures,
+			final int numThreads) throws IOException {
+
 		final JavaRDD<String> rdd = sc.parallelize(datasetNames);
 
 		final JavaPairRDD<String, ArrayList<Feature>> features =
 				rdd.mapToPair(inDatasetName -> {
 
 					final N5Reader n5Reader = N5.openFSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5Reader, inDatasetName + "/s" + scaleIndex);
+					final String sourceName = inDatasetName + "/s" + scaleIndex;
+					final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5Reader, sourceName);
+
+					final Supplier<ArrayList<Feature>> extractor = () -> {
 
-					System.out.println(inDatasetName + " : " + Arrays.toString(Intervals.dimensionsAsLongArray(source)) + " extracting features...");
+						System.out.println(inDatasetName + " : " + Arrays.toString(Intervals.dimensionsAsLongArray(source)) + " extracting features...");
 
-					final ArrayList<Feature> fs = Align.extractFeatures(source, 1.0, 0.5, 4);
+						final ArrayList<Feature> extracted = Align.extractFeatures(
+								source,
+								1.0,
+								0.5,
+								4,
+								Preprocessing.seed(sourceName),
+								numThreads);
 
-					System.out.println(inDatasetName + " : " + fs.size() + " features extracted.");
+						System.out.println(inDatasetName + " : " + extracted.size() + " features extracted.");
+
+						return extracted;
+					};
+
+					final ArrayList<Feature> fs = storeFeatures ?
+							FeatureStore.loadOrExtract(
+									n5Path,
+									inDatasetName + "/" + FeatureStore.FEATURES_GROUP + "/" + FeatureStore.featureSetName(scaleIndex, 1.0, 0.5, 4),
+									FeatureStore.fingerprint(n5Path, sourceName),
+									extractor) :
+							extractor.get();
 
 					return new Tuple2<String, ArrayList<Feature>>(inDatasetName, fs);
 				});
@@ -153,59 +278,166 @@ public class SparkAlignAffineGlobal {
 	}
 
 
-	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], ArrayList<PointMatch>> matchBlockFaces(
-			final JavaSparkContext sc,
+	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], PackedPointMatches> matchBlockFaces(
 			final List<String> datasetNames,
 			final JavaPairRDD<String, ArrayList<Feature>> features) {
 
-		final ArrayList<String[]> pairs = new ArrayList<>();
-		for (int i = 2; i < datasetNames.size(); i += 2)
-			pairs.add(new String[]{datasetNames.get(i - 1), datasetNames.get(i)});
+		return matchBlockFaces(datasetNames, features, 0, 0, 0);
+	}
 
-		final Map<String, ArrayList<Feature>> featuresMap = features.collectAsMap();
+	/**
+	 * Match the features of adjacent block faces, exhaustively or, if
+	 * numTrees &gt; 0, with a {@link FeatureKDTree} forest.
+	 *
+	 * @param datasetNames
+	 * @param features
+	 * @param numTrees
+	 * @param epsilon
+	 * @param maxChecks
+	 * @return
+	 */
+	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], PackedPointMatches> matchBlockFaces(
+			final List<String> datasetNames,
+			final JavaPairRDD<String, ArrayList<Feature>> features,
+			final int numTrees,
+			final double epsilon,
+			final int maxChecks) {
 
-		final ArrayList<Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>> tupleList = new ArrayList<>();
+		final JavaPairRDD<String[], PackedPointMatches> candidateMatches = joinAdjacentFaces(datasetNames, features).mapToPair(
+				tuple -> {
+					final PackedPointMatches candidates = PackedPointMatches.pack(
+							Align.matchFeatures(
+									tuple._2()._1(),
+									tuple._2()._2(),
+									0.92f,
+									numTrees,
+									epsilon,
+									maxChecks),
+							2);
+
+					System.out.println(Arrays.toString(tuple._1()) + " : " + candidates.size() + " matches found.");
+
+					return new Tuple2<String[], PackedPointMatches>(
+							tuple._1(),
+							candidates);
+				});
 
-		for (final String[] pair : pairs)
-			tupleList.add(
-					new Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>(
-							new Tuple2<String, ArrayList<Feature>>(pair[0], featuresMap.get(pair[0])),
-							new Tuple2<String, ArrayList<Feature>>(pair[1], featuresMap.get(pair[1]))));
+		return candidateMatches;
+	}
 
-		final JavaRDD<Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>> tuples = sc.parallelize(tupleList);
+	/**
+	 * Match the {@link QuantizedFeatures} of adjacent block faces
+	 * exhaustively.  Quantized descriptors take a quarter of the memory and
+	 * shuffle volume of {@link Feature Features}.
+	 *
+	 * @param datasetNames
+	 * @param features
+	 * @return
+	 */
+	static public JavaPairRDD<String[], PackedPointMatches> matchQuantizedBlockFaces(
+			final List<String> datasetNames,
+			final JavaPairRDD<String, QuantizedFeatures> features) {
 
-		final JavaPairRDD<String[], ArrayList<PointMatch>> candidateMatches = tuples.mapToPair(
+		final JavaPairRDD<String[], PackedPointMatches> candidateMatches = joinAdjacentFaces(datasetNames, features).mapToPair(
 				tuple -> {
-					final ArrayList<PointMatch> candidates = Align.matchFeatures(
-							tuple._1()._2(),
-							tuple._2()._2(),
-							0.92f);
+					final PackedPointMatches candidates = tuple._2()._1().matchFeatures(tuple._2()._2(), 0.92f);
 
-					final String[] key = new String[]{tuple._1()._1(), tuple._2()._1()};
+					System.out.println(Arrays.toString(tuple._1()) + " : " + candidates.size() + " matches found.");
 
-					System.out.println(Arrays.toString(key) + " : " + candidates.size() + " matches found.");
-
-					return new Tuple2<String[], ArrayList<PointMatch>>(
-							key,
+					return new Tuple2<String[], PackedPointMatches>(
+							tuple._1(),
 							candidates);
 				});
 
 		return candidateMatches;
 	}
 
+	/**
+	 * Pairs of the bottom face of one block and the top face of the next
+	 * block from a list of alternating top and bottom faces.
+	 *
+	 * @param datasetNames
+	 * @return
+	 */
+	static protected ArrayList<String[]> adjacentFacePairs(final List<String> datasetNames) {
 
-	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], ArrayList<PointMatch>> filterBlockFaceMatches(
-			final JavaPairRDD<String[], ArrayList<PointMatch>> candidateMatches,
+		final ArrayList<String[]> pairs = new ArrayList<>();
+		for (int i = 2; i < datasetNames.size(); i += 2)
+			pairs.add(new String[]{datasetNames.get(i - 1), datasetNames.get(i)});
+
+		return pairs;
+	}
+
+	/**
+	 * Pair the features of adjacent block faces on the executors by grouping
+	 * the bottom and top faces on the index of their
+	 * {@link #adjacentFacePairs(List) pair}.  Only the face names are sent
+	 * from the driver, the features are shuffled once between executors.
+	 * features is traversed once, so features that are extracted lazily
+	 * are extracted once per face.
+	 *
+	 * @param datasetNames
+	 * @param features
+	 * @return pairs of face names and their features
+	 */
+	static public <T> JavaPairRDD<String[], Tuple2<T, T>> joinAdjacentFaces(
+			final List<String> datasetNames,
+			final JavaPairRDD<String, T> features) {
+
+		final ArrayList<String[]> pairs = adjacentFacePairs(datasetNames);
+		final HashMap<String, Integer> firstFaces = new HashMap<>();
+		final HashMap<String, Integer> secondFaces = new HashMap<>();
+		for (int i = 0; i < pairs.size(); ++i) {
+			firstFaces.put(pairs.get(i)[0], i);
+			secondFaces.put(pairs.get(i)[1], i);
+		}
+
+		/* every face is the first or the second face of at most one pair */
+		final JavaPairRDD<Integer, Tuple2<String, T>> keyedFaces = features.flatMapToPair(
+				tuple -> {
+					final ArrayList<Tuple2<Integer, Tuple2<String, T>>> keyed = new ArrayList<>(1);
+					final Integer first = firstFaces.get(tuple._1());
+					final Integer second = secondFaces.get(tuple._1());
+					if (first != null)
+						keyed.add(new Tuple2<>(first, tuple));
+					else if (second != null)
+						keyed.add(new Tuple2<>(second, tuple));
+					return keyed.iterator();
+				});
+
+		return keyedFaces.groupByKey().flatMapToPair(
+				tuple -> {
+					Tuple2<String, T> first = null;
+					Tuple2<String, T> second = null;
+					for (final Tuple2<String, T> face : tuple._2()) {
+						if (firstFaces.containsKey(face._1()))
+							first = face;
+						else
+							second = face;
+					}
+					final ArrayList<Tuple2<String[], Tuple2<T, T>>> joined = new ArrayList<>(1);
+					if (first != null && second != null)
+						joined.add(
+								new Tuple2<>(
+										new String[]{first._1(), second._1()},
+										new Tuple2<>(first._2(), second._2())));
+					return joined.iterator();
+				});
+	}
+
+
+	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], PackedPointMatches> filterBlockFaceMatches(
+			final JavaPairRDD<String[], PackedPointMatches> candidateMatches,
 			final SA modelSupplier,
 			final int numIterations,
 			final double maxEpsilon,
 			final double minInlierRatio,
 			final int minNumInliers)
 	{
-		final JavaPairRDD<String[], ArrayList<PointMatch>> inlierMatches = candidateMatches.mapToPair(
+		final JavaPairRDD<String[], PackedPointMatches> inlierMatches = candidateMatches.mapToPair(
 				tuple -> {
 					@SuppressWarnings("unchecked")
-					final ArrayList<PointMatch> inliers =
+					final PackedPointMatches inliers =
 							new MultiConsensusFilter<>(
 									(Supplier<Model<?>>)modelSupplier,
 									numIterations,
@@ -238,16 +470,16 @@ public class SparkAlignAffineGlobal {
 	 */
 	public static ArrayList<Tile<?>> createConnectedTiles(
 			final List<String> datasetNames,
-			final JavaPairRDD<String[], ArrayList<PointMatch>> filteredMatches) {
+			final JavaPairRDD<String[], PackedPointMatches> filteredMatches) {
 
 		/* map matches to first slab-face */
-		final HashMap<String, ArrayList<PointMatch>> matchMap = new HashMap<>();
-		for (final Tuple2<String[], ArrayList<PointMatch>> entry : filteredMatches.collect())
+		final HashMap<String, PackedPointMatches> matchMap = new HashMap<>();
+		for (final Tuple2<String[], PackedPointMatches> entry : filteredMatches.collect())
 			matchMap.put(entry._1()[0], entry._2());
 
 		final ArrayList<Tile<?>> tiles = Align.connectStackTiles(
 				datasetNames,
-				matchMap,
+				matchMap::get,
 				new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
 						(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
 						(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
@@ -256,6 +488,30 @@ public class SparkAlignAffineGlobal {
 		return tiles;
 	}
 
+	/**
+	 * Collects the filtered matches of adjacent block faces as a list
+	 * that connects block i and block i + 1 at index i, null where not
+	 * connected, as expected by {@link ChainAffineSolver}.
+	 *
+	 * @param datasetNames
+	 * @param filteredMatches
+	 * @return
+	 */
+	public static ArrayList<PackedPointMatches> collectChainMatches(
+			final List<String> datasetNames,
+			final JavaPairRDD<String[], PackedPointMatches> filteredMatches) {
+
+		final HashMap<String, PackedPointMatches> matchMap = new HashMap<>();
+		for (final Tuple2<String[], PackedPointMatches> entry : filteredMatches.collect())
+			matchMap.put(entry._1()[0], entry._2());
+
+		final ArrayList<PackedPointMatches> matches = new ArrayList<>();
+		for (int i = 1; i < datasetNames.size() - 1; i += 2)
+			matches.add(matchMap.get(datasetNames.get(i)));
+
+		return matches;
+	}
+
 	public static void saveAffines(
 			final String n5Path,
 			final String outGroup,
@@ -302,20 +558,28 @@ public class SparkAlignAffineGlobal {
 				sc,
 				options.getN5Path(),
 				datasetNames,
-				options.getScaleIndex());
-
-		final JavaPairRDD<String[], ArrayList<PointMatch>> matches = matchBlockFaces(
-				sc,
-				datasetNames,
-				features);
-
-		final JavaPairRDD<String[], ArrayList<PointMatch>> scaledMatches = matches.mapToPair(
+				options.getScaleIndex(),
+				options.getStoreFeatures(),
+				options.getNumThreads());
+
+		final JavaPairRDD<String[], PackedPointMatches> matches = options.getQuantizeDescriptors() ?
+				matchQuantizedBlockFaces(
+						datasetNames,
+						features.mapValues(QuantizedFeatures::quantize)) :
+				matchBlockFaces(
+						datasetNames,
+						features,
+						options.getMatchTrees(),
+						options.getMatchEpsilon(),
+						options.getMatchMaxChecks());
+
+		final JavaPairRDD<String[], PackedPointMatches> scaledMatches = matches.mapToPair(
 				entry -> {
 					Align.unScalePointMatches(entry._2(), options.getScaleIndex());
 					return entry;
 				});
 
-		final JavaPairRDD<String[], ArrayList<PointMatch>> filteredMatches = filterBlockFaceMatches(
+		final JavaPairRDD<String[], PackedPointMatches> filteredMatches = filterBlockFaceMatches(
 				scaledMatches,
 				new Transform.InterpolatedAffineModel2DSupplier<>(
 						(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
@@ -326,32 +590,48 @@ public class SparkAlignAffineGlobal {
 				7);
 
 
-		final ArrayList<Tile<?>> tiles = createConnectedTiles(
-				datasetNames,
-				filteredMatches);
+		final ArrayList<Affine2D<?>> models = new ArrayList<>();
+		if (options.getChainSolver()) {
 
+			final ChainAffineSolver solver = new ChainAffineSolver(
+					collectChainMatches(datasetNames, filteredMatches),
+					options.getSolverThreads());
 
-		/* optimize */
-		/* feed all tiles that have connections into tile configuration, report those that are disconnected */
-		final TileConfiguration tc = new TileConfiguration();
-		tc.addTiles(tiles);
+			/* rigid first, then the desired model with low regularization */
+			final AffineModel2D[] rigid = solver.solveRigid();
+			models.addAll(Arrays.asList(solver.solve(rigid, 0.1, 0.01, 5000)));
 
-		/* three pass optimization, first using the regularizer exclusively ... */
-		try {
-			tc.preAlign();
-			tc.optimize(0.01, 5000, 200, 0.5);
-		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
-			e.printStackTrace();
-		}
+		} else {
+
+			final ArrayList<Tile<?>> tiles = createConnectedTiles(
+					datasetNames,
+					filteredMatches);
 
-		/* ... then using the desired model with low regularization ... */
-		tiles.forEach(
-				t -> ((InterpolatedAffineModel2D<?, ?>)t.getModel()).setLambda(0.1));
 
-		try {
-			tc.optimize(0.01, 5000, 200, 0.5);
-		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
-			e.printStackTrace();
+			/* optimize */
+			/* feed all tiles that have connections into tile configuration, report those that are disconnected */
+			final TileConfiguration tc = new TileConfiguration();
+			tc.addTiles(tiles);
+
+			/* three pass optimization, first using the regularizer exclusively ... */
+			try {
+				tc.preAlign();
+				tc.optimize(0.01, 5000, 200, 0.5);
+			} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+				e.printStackTrace();
+			}
+
+			/* ... then using the desired model with low regularization ... */
+			tiles.forEach(
+					t -> ((InterpolatedAffineModel2D<?, ?>)t.getModel()).setLambda(0.1));
+
+			try {
+				tc.optimize(0.01, 5000, 200, 0.5);
+			} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+				e.printStackTrace();
+			}
+
+			tiles.forEach(t -> models.add((Affine2D<?>)t.getModel()));
 		}
 
 //		/* ... then using the desired model with very low regularization.*/
@@ -367,9 +647,8 @@ public class SparkAlignAffineGlobal {
 
 		/* convert and invert transforms */
 		final ArrayList<AffineTransform2D> transforms = new ArrayList<>();
-		tiles.forEach(
-				t -> {
-					final Affine2D<?> tileTransform = (Affine2D<?>)t.getModel();
+		models.forEach(
+				tileTransform -> {
 					System.out.println(tileTransform.createAffine());
 					final double[] a = new double[6];
 					tileTransform.createInverse().toArray(a);
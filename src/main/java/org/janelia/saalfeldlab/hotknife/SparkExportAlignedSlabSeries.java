@@ -26,6 +26,8 @@ import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.GridApproximatedTransform;
+import org.janelia.saalfeldlab.hotknife.util.N5Cache;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.n5.CompressionType;
 import org.janelia.saalfeldlab.n5.DataType;
@@ -83,6 +85,9 @@ public class SparkExportAlignedSlabSeries {
 		@Option(name = "--blockSize", usage = "blockSize, e.g. 128,128,128")
 		private String blockSizeString = null;
 
+		@Option(name = "--maxTransformError", usage = "if > 0, render blocks with the transforms interpolated from a coarse lattice with at most this error in pixels, e.g. 0.05")
+		private double maxTransformError = 0;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -158,6 +163,14 @@ public class SparkExportAlignedSlabSeries {
 
 			return blockSizeString == null ? new int[]{128, 128, 128}: parseCSIntArray(blockSizeString);
 		}
+
+		/**
+		 * @return the maximum error of approximated transforms, 0 for exact
+		 */
+		public double getMaxTransformError() {
+
+			return maxTransformError;
+		}
 	}
 
 	private static void saveBlock(
@@ -173,10 +186,11 @@ public class SparkExportAlignedSlabSeries {
 			final long[] max,
 			final long[] dimensions,
 			final int[] blockSize,
-			final long[][] gridBlock) throws IOException {
+			final long[][] gridBlock,
+			final double maxTransformError) throws IOException {
 
-		final N5Reader n5Input = new N5FSReader(n5PathInput);
-		final N5Writer n5Output = new N5FSWriter(n5PathOutput);
+		final N5Reader n5Input = N5Cache.openFSReader(n5PathInput);
+		final N5Writer n5Output = N5Cache.openFSWriter(n5PathOutput);
 
 		final ArrayList<RandomAccessibleInterval<UnsignedByteType>> sources = new ArrayList<>();
 		long zOffset = 0;
@@ -189,8 +203,8 @@ public class SparkExportAlignedSlabSeries {
 			/* do not include blocks that do not intersect with the gridBlock */
 			if (!((gridBlock[0][2] > zOffset + depth) | (gridBlock[0][2] + gridBlock[1][2] < zOffset))) {
 
-				final RealTransform top = Transform.loadScaledTransform(n5Input, group + "/" + transformDatasetNames[i * 2]);
-				final RealTransform bot = Transform.loadScaledTransform(n5Input, group + "/" + transformDatasetNames[i * 2 + 1]);
+				final RealTransform top = N5Cache.loadScaledTransform(n5PathInput, group + "/" + transformDatasetNames[i * 2]);
+				final RealTransform bot = N5Cache.loadScaledTransform(n5PathInput, group + "/" + transformDatasetNames[i * 2 + 1]);
 				final RealTransform transition =
 						new ClippedTransitionRealTransform(
 								top,
@@ -205,13 +219,30 @@ public class SparkExportAlignedSlabSeries {
 						cropMin,
 						cropMax);
 
+				/* only the part of the crop that covers the grid block is rendered, approximate the transition there */
+				final long[] renderMin = new long[3];
+				final long[] renderMax = new long[3];
+				boolean isEmpty = false;
+				for (int d = 0; d < 3; ++d) {
+					final long shift = cropMin[d] - (d == 2 ? zOffset : 0);
+					renderMin[d] = Math.max(cropMin[d], gridBlock[0][d] + shift);
+					renderMax[d] = Math.min(cropMax[d], gridBlock[0][d] + gridBlock[1][d] - 1 + shift);
+					isEmpty |= renderMin[d] > renderMax[d];
+				}
+				final RealTransform renderTransition = isEmpty ?
+						transition :
+						GridApproximatedTransform.approximate(
+								transition,
+								new FinalInterval(renderMin, renderMax),
+								maxTransformError);
+
 				final String datasetName = datasetNames.get(i);
 				final RandomAccessibleInterval<UnsignedByteType> source = N5Utils.open(n5Input, datasetName);
 
 				final RandomAccessibleInterval<UnsignedByteType> transformedSource = Transform.createTransformedInterval(
 					Views.permute(source, 1, 2),
 					cropInterval,
-					transition,
+					renderTransition,
 					new UnsignedByteType(0));
 
 				final IntervalView<UnsignedByteType> extendedTransformedSource =
@@ -335,6 +366,7 @@ public class SparkExportAlignedSlabSeries {
 		final JavaRDD<long[][]> pGrid = sc.parallelize(grid);
 
 		final List<String> datasetNames = options.getInputDatasets();
+		final double maxTransformError = options.getMaxTransformError();
 
 		pGrid.foreach(
 				gridBlock -> {
@@ -351,7 +383,8 @@ public class SparkExportAlignedSlabSeries {
 							max,
 							dimensions,
 							blockSize,
-							gridBlock);
+							gridBlock,
+							maxTransformError);
 				});
 
 		sc.close();
@@ -20,7 +20,10 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.spark.SparkConf;
@@ -29,10 +32,10 @@ import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.GridApproximatedTransform;
+import org.janelia.saalfeldlab.hotknife.util.N5Cache;
 import org.janelia.saalfeldlab.hotknife.util.Spark;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
-import org.janelia.saalfeldlab.n5.CompressionType;
-import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -56,6 +59,7 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
+import scala.Tuple2;
 
 /**
  *
@@ -64,6 +68,43 @@ import net.imglib2.view.Views;
  */
 public class SparkPairAlignFlow {
 
+	/**
+	 * Flow refinement statistics of one grid cell with one entry per
+	 * pyramid level, coarse to fine.  Residuals are in pixels at the output
+	 * scale index, i.e. the residual measured at a level multiplied by that
+	 * level's downsampling factor, such that levels are comparable.
+	 */
+	public static class GridCellFlowStatistics implements Serializable {
+
+		private static final long serialVersionUID = 7300566424216437862L;
+
+		public final long[] offset;
+		public final ArrayList<Integer> levels = new ArrayList<>();
+		public final ArrayList<Integer> iterations = new ArrayList<>();
+		public final ArrayList<Double> residuals = new ArrayList<>();
+
+		public GridCellFlowStatistics(final long[] offset) {
+
+			this.offset = offset;
+		}
+
+		public void add(final int level, final PMCCScaleSpaceBlockFlow.Statistics statistics) {
+
+			levels.add(level);
+			iterations.add(statistics.numIterations);
+			residuals.add(statistics.residual * (1L << level));
+		}
+
+		@Override
+		public String toString() {
+
+			final StringBuilder string = new StringBuilder("Grid cell " + offset[0] + ", " + offset[1] + " :");
+			for (int i = 0; i < levels.size(); ++i)
+				string.append(String.format(" level %d %d iterations %.4fpx;", levels.get(i), iterations.get(i), residuals.get(i)));
+			return string.toString();
+		}
+	}
+
 	@SuppressWarnings("serial")
 	public static class Options extends AbstractOptions implements Serializable {
 
@@ -88,6 +129,39 @@ public class SparkPairAlignFlow {
 		@Option(name = "--sigma", required = false, usage = "smoothness filter of transform in scaled pixels")
 		private double sigma = 30.0;
 
+		@Option(name = "--numIterations", required = false, usage = "maximum number of flow refinement iterations per grid cell and pyramid level")
+		private int numIterations = 3;
+
+		@Option(name = "--convergenceTolerance", required = false, usage = "if > 0, stop refining once the weighted mean flow update is below this many scaled pixels, e.g. 0.1")
+		private double convergenceTolerance = 0;
+
+		@Option(name = "--numThreads", required = false, usage = "number of threads per Spark task for the block flow search")
+		private int numThreads = 1;
+
+		@Option(name = "--pyramidLevels", required = false, usage = "number of coarser scale levels to estimate and upsample the flow from, e.g. 3 starts at scaleIndex + 3, 0 (default) searches at scaleIndex only")
+		private int pyramidLevels = 0;
+
+		@Option(name = "--pyramidRadius", required = false, usage = "residual search radius in scaled pixels at all but the coarsest pyramid level")
+		private int pyramidRadius = 3;
+
+		@Option(name = "--materializeFlow", required = false, usage = "bake the composed flow field into a raster after each iteration")
+		private boolean materializeFlow = false;
+
+		@Option(name = "--voteCandidates", required = false, usage = "if > 0, process block radii one at a time and keep this many vote candidates per pixel to save memory, e.g. 4")
+		private int voteCandidates = 0;
+
+		@Option(name = "--fftDistanceThreshold", required = false, usage = "search distances larger than this are matched in the frequency domain on a lattice of block windows, approximate, the flow is constant per lattice cell, 0 (default) for the exact search")
+		private int fftDistanceThreshold = 0;
+
+		@Option(name = "--foregroundTileSize", required = false, usage = "tile size for skipping background regions during flow estimation, 0 to disable")
+		private int foregroundTileSize = 64;
+
+		@Option(name = "--flowTileSize", required = false, usage = "if > 0, search small block radii in cache sized tiles of this size, e.g. 256, results are identical")
+		private int flowTileSize = 0;
+
+		@Option(name = "--maxTransformError", required = false, usage = "if > 0, render grid cells with the transforms interpolated from a coarse lattice with at most this error in scaled pixels, e.g. 0.05")
+		private double maxTransformError = 0;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -152,6 +226,61 @@ public class SparkPairAlignFlow {
 
 			return sigma;
 		}
+
+		public int getNumThreads() {
+
+			return numThreads;
+		}
+
+		public int getVoteCandidates() {
+
+			return voteCandidates;
+		}
+
+		public int getNumIterations() {
+
+			return numIterations;
+		}
+
+		public double getConvergenceTolerance() {
+
+			return convergenceTolerance;
+		}
+
+		public int getFftDistanceThreshold() {
+
+			return fftDistanceThreshold;
+		}
+
+		public int getForegroundTileSize() {
+
+			return foregroundTileSize;
+		}
+
+		public int getFlowTileSize() {
+
+			return flowTileSize;
+		}
+
+		public boolean getMaterializeFlow() {
+
+			return materializeFlow;
+		}
+
+		public int getPyramidLevels() {
+
+			return pyramidLevels;
+		}
+
+		public int getPyramidRadius() {
+
+			return pyramidRadius;
+		}
+
+		public double getMaxTransformError() {
+
+			return maxTransformError;
+		}
 	}
 
 	/**
@@ -179,9 +308,9 @@ public class SparkPairAlignFlow {
 
 		final JavaRDD<long[]> gridCells = affines.map(
 				t -> {
-					final N5Writer n5 = N5.openFSWriter(n5Path);
-					final RealTransform priorTransform = Transform.loadScaledTransform(
-							n5,
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
+					final RealTransform priorTransform = N5Cache.loadScaledTransform(
+							n5Path,
 							priorTransformDatasetName);
 					final long[] gridOffset = Grid.gridCell(
 							t._1(),
@@ -245,7 +374,7 @@ public class SparkPairAlignFlow {
 
 		final JavaRDD<long[]> mappedGridCells = gridCells.map(
 				cell -> {
-					final N5Writer n5 = N5.openFSWriter(n5Path);
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
 					final long[] gridOffset = Grid.gridCell(
 							cell,
 							Grid.floorScaled(boundsMin, transformScale),
@@ -261,22 +390,22 @@ public class SparkPairAlignFlow {
 
 					final IntervalView<DoubleType> t00 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1)),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1)),
 									intervalMin,
 									intervalMax);
 					final IntervalView<DoubleType> t01 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + gridOffset[1]),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + gridOffset[1]),
 									intervalMin,
 									intervalMax);
 					final IntervalView<DoubleType> t10 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + Math.max(0, gridOffset[1] - 1)),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + Math.max(0, gridOffset[1] - 1)),
 									intervalMin,
 									intervalMax);
 					final IntervalView<DoubleType> t11 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]),
 									intervalMin,
 									intervalMax);
 
@@ -301,12 +430,7 @@ public class SparkPairAlignFlow {
 						v.set((d1 - d0) * lambdaY + d0);
 					}
 
-					final DatasetAttributes targetAttributes = new DatasetAttributes(
-							dimensions,
-							new int[]{stepSize, stepSize, 2},
-							DataType.FLOAT64,
-							CompressionType.GZIP);
-					N5Utils.saveBlock(tt, n5, transformDatasetBaseName, targetAttributes, Arrays.copyOf(gridOffset, 3));
+					Transform.savePositionFieldBlock(n5, transformDatasetBaseName, tt, Arrays.copyOf(gridOffset, 3));
 
 					return cell;
 				});
@@ -326,7 +450,7 @@ public class SparkPairAlignFlow {
 
 		gridCells.foreach(
 				cell -> {
-					final N5Writer n5 = N5.openFSWriter(n5Path);
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
 					final long[] gridOffset = Grid.gridCell(
 							cell,
 							Grid.floorScaled(boundsMin, transformScale),
@@ -336,7 +460,12 @@ public class SparkPairAlignFlow {
 	}
 
 
-	static public JavaRDD<long[]> alignAndSaveAccumulatedGridCells(
+	/**
+	 * Aligns and saves all grid cells.
+	 *
+	 * @return grid cell offsets with their {@link GridCellFlowStatistics}
+	 */
+	static public JavaPairRDD<long[], GridCellFlowStatistics> alignAndSaveAccumulatedGridCells(
 			final JavaSparkContext sc,
 			final String n5Path,
 			final String datasetA,
@@ -353,55 +482,119 @@ public class SparkPairAlignFlow {
 			final List<long[]> gridOffsets,
 			final short radius,
 			final double sigma,
-			final int numIterations) throws IOException {
+			final int numIterations,
+			final PMCCScaleSpaceBlockFlow.Param flowParam,
+			final int pyramidLevels,
+			final short pyramidRadius,
+			final double maxTransformError) throws IOException {
 
 		final double scale = 1.0 / (1 << scaleIndex);
 		final long gridCellWidth = stepSize * 2;
 
 		final JavaRDD<long[]> offsets = sc.parallelize(gridOffsets);
 
-		final JavaRDD<long[]> gridCells =
-				offsets.map(offset -> {
+		final JavaPairRDD<long[], GridCellFlowStatistics> gridCells =
+				offsets.mapToPair(offset -> {
 
-					final N5Reader n5Reader = N5.openFSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
-					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
+					final N5Reader n5Reader = N5Cache.openFSReader(n5Path);
 
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
+					final RealTransform transformA = N5Cache.loadScaledTransform(
+							n5Path,
 							inTransformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
+					final RealTransform transformB = N5Cache.loadScaledTransform(
+							n5Path,
 							inTransformBDataset);
 
-					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
-							a,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformA, scaleIndex),
-							new FloatType(0));
-
-					final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
-							b,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformB, scaleIndex),
-							new FloatType(0));
-
-					/* TODO pad by radius plus something ? */
-					final FinalInterval gridBlockInterval =
-							new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
-
-					final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
-					final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
-
-					/* TODO consider padding if padding */
-					final RealTransform transform = Align.alignFlow(
-							gridBlockB,
-							gridBlockA,
-							radius,
-							sigma,
-							numIterations);
-
-					final N5Writer n5 = N5.openFSWriter(n5Path);
+					/* coarse to fine, level 0 is scaleIndex */
+					int numLevels = pyramidLevels;
+					while (numLevels > 0 && !(
+							n5Reader.exists(datasetA + "/s" + (scaleIndex + numLevels)) &&
+							n5Reader.exists(datasetB + "/s" + (scaleIndex + numLevels))))
+						--numLevels;
+
+					RealTransform transform = null;
+					final GridCellFlowStatistics flowStatistics = new GridCellFlowStatistics(offset);
+					for (int level = numLevels; level >= 0; --level) {
+
+						final int levelScaleIndex = scaleIndex + level;
+						final long levelScaleFactor = 1L << level;
+
+						final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + levelScaleIndex);
+						final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + levelScaleIndex);
+
+						/* TODO pad by radius plus something ? */
+						final long[] levelOffset = new long[]{
+								Math.floorDiv(offset[0], levelScaleFactor),
+								Math.floorDiv(offset[1], levelScaleFactor)};
+						final long levelGridCellWidth = (gridCellWidth + levelScaleFactor - 1) / levelScaleFactor;
+						final FinalInterval gridBlockInterval =
+								new FinalInterval(
+										levelOffset,
+										new long[]{levelOffset[0] + levelGridCellWidth - 1, levelOffset[1] + levelGridCellWidth - 1});
+
+						/* only the grid block is rendered, approximate the transforms there */
+						final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
+								a,
+								new FinalInterval(
+										Grid.floorScaled(boundsMin, scale / levelScaleFactor),
+										Grid.ceilScaled(boundsMax, scale / levelScaleFactor)),
+								GridApproximatedTransform.approximate(
+										Transform.createScaledRealTransform(transformA, levelScaleIndex),
+										gridBlockInterval,
+										maxTransformError),
+								new FloatType(0));
+
+						final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
+								b,
+								new FinalInterval(
+										Grid.floorScaled(boundsMin, scale / levelScaleFactor),
+										Grid.ceilScaled(boundsMax, scale / levelScaleFactor)),
+								GridApproximatedTransform.approximate(
+										Transform.createScaledRealTransform(transformB, levelScaleIndex),
+										gridBlockInterval,
+										maxTransformError),
+								new FloatType(0));
+
+						final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
+						final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
+
+						/* full search radius at the coarsest level, residual radius at all finer levels */
+						final short levelRadius;
+						if (numLevels == 0)
+							levelRadius = radius;
+						else if (level == numLevels)
+							levelRadius = (short)Math.max(pyramidRadius, (radius + levelScaleFactor - 1) / levelScaleFactor);
+						else
+							levelRadius = pyramidRadius;
+
+						/* upsample the flow of the coarser level */
+						final RealTransform initialTransform;
+						if (transform == null)
+							initialTransform = null;
+						else {
+							final RealTransformSequence upsampledTransform = new RealTransformSequence();
+							upsampledTransform.add(new Scale2D(0.5, 0.5));
+							upsampledTransform.add(transform);
+							upsampledTransform.add(new Scale2D(2, 2));
+							initialTransform = upsampledTransform;
+						}
+
+						/* TODO consider padding if padding */
+						final PMCCScaleSpaceBlockFlow.Statistics statistics = new PMCCScaleSpaceBlockFlow.Statistics();
+						transform = Align.alignFlow(
+								gridBlockB,
+								gridBlockA,
+								levelRadius,
+								sigma / levelScaleFactor,
+								numIterations,
+								flowParam,
+								initialTransform,
+								statistics);
+
+						flowStatistics.add(level, statistics);
+					}
+
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
 					final long[] gridOffset = Grid.gridCell(
 							offset,
 							Grid.floorScaled(boundsMin, scale),
@@ -424,13 +617,60 @@ public class SparkPairAlignFlow {
 							gridOffset,
 							new int[] {stepSize, stepSize});
 
-					return offset;
+					return new Tuple2<>(offset, flowStatistics);
 				});
 
 		return gridCells;
 	}
 
 
+	/**
+	 * Prints the flow statistics of each grid cell, ordered by offset, and
+	 * per pyramid level the number of cells that used all iterations and the
+	 * mean and maximum final residual.
+	 *
+	 * @param cellStatistics
+	 * @param numIterations
+	 */
+	public static void reportFlowStatistics(
+			final List<GridCellFlowStatistics> cellStatistics,
+			final int numIterations) {
+
+		final ArrayList<GridCellFlowStatistics> sorted = new ArrayList<>(cellStatistics);
+		sorted.sort(
+				(a, b) -> a.offset[1] == b.offset[1] ?
+						Long.compare(a.offset[0], b.offset[0]) :
+						Long.compare(a.offset[1], b.offset[1]));
+
+		final TreeMap<Integer, double[]> levelSums = new TreeMap<>(Collections.reverseOrder());
+		for (final GridCellFlowStatistics statistics : sorted) {
+			System.out.println(statistics);
+			for (int i = 0; i < statistics.levels.size(); ++i) {
+				/* number of cells, cells that used all iterations, sum and max of residuals */
+				final double[] sums = levelSums.computeIfAbsent(statistics.levels.get(i), level -> new double[4]);
+				final double residual = statistics.residuals.get(i);
+				sums[0] += 1;
+				if (statistics.iterations.get(i) >= numIterations)
+					sums[1] += 1;
+				sums[2] += residual;
+				sums[3] = Math.max(sums[3], residual);
+			}
+		}
+
+		for (final Map.Entry<Integer, double[]> entry : levelSums.entrySet()) {
+			final double[] sums = entry.getValue();
+			System.out.printf(
+					"Flow refinement level %d : %d of %d grid cells used all %d iterations, final residual mean %.4fpx, max %.4fpx",
+					entry.getKey(),
+					(long)sums[1],
+					(long)sums[0],
+					numIterations,
+					sums[2] / sums[0],
+					sums[3]);
+			System.out.println();
+		}
+	}
+
 	/**
 	 * Align a pair of transformed N5 sections using optic flow over a scale
 	 * space of block sizes on a grid of 50% overlapping cells.  The resulting
@@ -456,6 +696,15 @@ public class SparkPairAlignFlow {
 	 * @param radius
 	 * @param sigma
 	 * @param numIterations
+	 * @param flowParam
+	 * @param pyramidLevels number of coarser scale levels to estimate and
+	 * 		upsample the flow from before searching at transformScaleIndex,
+	 * 		0 for a single level search
+	 * @param pyramidRadius residual search radius at all but the coarsest
+	 * 		pyramid level
+	 * @param maxTransformError if > 0, approximate the transforms for
+	 * 		rendering grid cells on a coarse lattice with at most this error,
+	 * 		see {@link GridApproximatedTransform}
 	 * @throws IOException
 	 */
 	public static void alignPairFlow(
@@ -474,14 +723,18 @@ public class SparkPairAlignFlow {
 			final List<long[]> gridOffsets,
 			final short radius,
 			final double sigma,
-			final int numIterations) throws IOException {
+			final int numIterations,
+			final PMCCScaleSpaceBlockFlow.Param flowParam,
+			final int pyramidLevels,
+			final short pyramidRadius,
+			final double maxTransformError) throws IOException {
 
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
 		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, scale);
 
-		final JavaRDD<long[]> gridCells = alignAndSaveAccumulatedGridCells(
+		final JavaPairRDD<long[], GridCellFlowStatistics> alignedGridCells = alignAndSaveAccumulatedGridCells(
 				sc,
 				n5Path,
 				datasetNameA,
@@ -498,10 +751,18 @@ public class SparkPairAlignFlow {
 				gridOffsets,
 				radius,
 				sigma,
-				numIterations);
+				numIterations,
+				flowParam,
+				pyramidLevels,
+				pyramidRadius,
+				maxTransformError);
+
+		alignedGridCells.cache();
 
-		gridCells.cache();
-		gridCells.count();
+		/* collected in an action such that retried or recomputed tasks are not counted twice */
+		reportFlowStatistics(alignedGridCells.values().collect(), numIterations);
+
+		final JavaRDD<long[]> gridCells = alignedGridCells.keys();
 
 		final JavaRDD<long[]> composedGridCells = composeOverlappingTransformGridCells(
 				gridCells,
@@ -577,6 +838,14 @@ public class SparkPairAlignFlow {
 				inPriorTransformDatasetNames,
 				outPriorTransformDatasetNames);
 
+		final PMCCScaleSpaceBlockFlow.Param flowParam = new PMCCScaleSpaceBlockFlow.Param(options.getNumThreads());
+		flowParam.voteCandidates = options.getVoteCandidates();
+		flowParam.materializeFlow = options.getMaterializeFlow();
+		flowParam.fftDistanceThreshold = options.getFftDistanceThreshold();
+		flowParam.foregroundTileSize = options.getForegroundTileSize();
+		flowParam.flowTileSize = options.getFlowTileSize();
+		flowParam.convergenceTolerance = options.getConvergenceTolerance();
+
 		for (int i = 1; i < datasetNames.length - 2; i += 2) {
 
 			System.out.printf(
@@ -604,7 +873,11 @@ public class SparkPairAlignFlow {
 					gridOffsets,
 					(short)Math.ceil(Math.abs(options.getMaxFilterEpsilon())),
 					options.getSigma(),
-					3);
+					options.getNumIterations(),
+					flowParam,
+					options.getPyramidLevels(),
+					(short)options.getPyramidRadius(),
+					options.getMaxTransformError());
 		}
 
 		sc.close();
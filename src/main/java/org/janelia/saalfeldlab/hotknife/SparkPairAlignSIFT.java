@@ -29,10 +29,11 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.FeatureStore;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.N5Cache;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
-import org.janelia.saalfeldlab.n5.CompressionType;
-import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.hotknife.util.Util;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -42,6 +43,8 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.InterpolatedAffineModel2D;
 import mpicbg.models.RigidModel2D;
@@ -94,6 +97,27 @@ public class SparkPairAlignSIFT {
 		@Option(name = "--maxEpsilon", required = true, usage = "residual threshold for filter in world pixels")
 		private double maxFilterEpsilon = 50.0;
 
+		@Option(name = "--storeFeatures", required = false, usage = "store extracted grid cell features in the face groups and reuse them in later runs")
+		private boolean storeFeatures = false;
+
+		@Option(name = "--matchRadius", required = false, usage = "match features only within this radius around their prior location in world pixels, 0 for global matching")
+		private double matchRadius = 0;
+
+		@Option(name = "--numThreads", required = false, usage = "number of threads per Spark task for feature preprocessing")
+		private int numThreads = 1;
+
+		@Option(name = "--ransacThreads", required = false, usage = "number of threads testing RANSAC hypotheses per grid cell")
+		private int ransacThreads = 1;
+
+		@Option(name = "--ransacConfidence", required = false, usage = "stop RANSAC once an all inlier sample was drawn with this confidence, e.g. 0.999, 1 (default) to always test all hypotheses")
+		private double ransacConfidence = 1.0;
+
+		@Option(name = "--tiledFeatures", required = false, usage = "extract features once per face tile of stepSize instead of once per overlapping grid cell")
+		private boolean tiledFeatures = false;
+
+		@Option(name = "--featureHalo", required = false, usage = "halo around face tiles for tiled feature extraction in scaled pixels, increased to the descriptor support of the coarse SIFT octave if smaller")
+		private int featureHalo = 64;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -163,6 +187,41 @@ public class SparkPairAlignSIFT {
 
 			return maxFilterEpsilon;
 		}
+
+		public boolean getStoreFeatures() {
+
+			return storeFeatures;
+		}
+
+		public double getMatchRadius() {
+
+			return matchRadius;
+		}
+
+		public int getNumThreads() {
+
+			return numThreads;
+		}
+
+		public int getRansacThreads() {
+
+			return ransacThreads;
+		}
+
+		public double getRansacConfidence() {
+
+			return ransacConfidence;
+		}
+
+		public boolean getTiledFeatures() {
+
+			return tiledFeatures;
+		}
+
+		public int getFeatureHalo() {
+
+			return featureHalo;
+		}
 	}
 
 	/**
@@ -183,6 +242,15 @@ public class SparkPairAlignSIFT {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
+	 * @param storeFeatures store grid cell features in a {@link FeatureStore}
+	 *     below datasetA and datasetB and reuse them while the source and
+	 *     transform datasets are unchanged
+	 * @param numThreads threads for feature preprocessing per grid cell
+	 * @param matchRadius match features only within matchRadius world
+	 *     pixels from their location in the prior transformed faces, 0 for
+	 *     global matching
+	 * @param ransacThreads
+	 * @param ransacConfidence
 	 * @return
 	 * @throws IOException
 	 */
@@ -202,24 +270,34 @@ public class SparkPairAlignSIFT {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final boolean storeFeatures,
+			final int numThreads,
+			final double matchRadius,
+			final int ransacThreads,
+			final double ransacConfidence) throws IOException {
 
 		final double scale = 1.0 / (1 << scaleIndex);
 
+		/* grid cell features depend on the source and the prior transform */
+		final String fingerprintA = storeFeatures ? FeatureStore.fingerprint(n5Path, datasetA + "/s" + scaleIndex, transformADataset) : null;
+		final String fingerprintB = storeFeatures ? FeatureStore.fingerprint(n5Path, datasetB + "/s" + scaleIndex, transformBDataset) : null;
+		final String featureSetName = FeatureStore.featureSetName(scaleIndex, 1.0, 0.5, 4);
+
 		final JavaRDD<long[]> offsets = sc.parallelize(gridOffsets);
 
 		final JavaPairRDD<long[], double[]> affines =
 				offsets.mapToPair(offset -> {
 
-					final N5Reader n5Reader = N5.openFSReader(n5Path);
+					final N5Reader n5Reader = N5Cache.openFSReader(n5Path);
 					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
 					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
 
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
+					final RealTransform transformA = N5Cache.loadScaledTransform(
+							n5Path,
 							transformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
+					final RealTransform transformB = N5Cache.loadScaledTransform(
+							n5Path,
 							transformBDataset);
 
 					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
@@ -240,36 +318,34 @@ public class SparkPairAlignSIFT {
 					final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
 					final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
 
-					final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> modelSupplier =
-							new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
-								(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
-								(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
-								lambdaModel);
-
-					final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> filterModelSupplier =
-							new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
-								(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
-								(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
-								lambdaFilter);
-
-					final MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>> filter = new MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>>(
-							filterModelSupplier,
-							10000,
+					final String gridCellName = offset[0] + "_" + offset[1] + "_" + gridCellWidth;
+					final long seedA = Preprocessing.seed(datasetA, scaleIndex, transformADataset, gridCellName);
+					final long seedB = Preprocessing.seed(datasetB, scaleIndex, transformBDataset, gridCellName);
+					final ArrayList<Feature> featuresA = storeFeatures ?
+							FeatureStore.loadOrExtract(
+									n5Path,
+									datasetA + "/" + FeatureStore.FEATURES_GROUP + "/" + Util.flattenGroupName(transformADataset) + "/" + featureSetName + "/" + gridCellName,
+									fingerprintA,
+									() -> Align.extractFeatures(gridBlockA, 1.0, 0.5, 4, seedA, numThreads)) :
+							Align.extractFeatures(gridBlockA, 1.0, 0.5, 4, seedA, numThreads);
+					final ArrayList<Feature> featuresB = storeFeatures ?
+							FeatureStore.loadOrExtract(
+									n5Path,
+									datasetB + "/" + FeatureStore.FEATURES_GROUP + "/" + Util.flattenGroupName(transformBDataset) + "/" + featureSetName + "/" + gridCellName,
+									fingerprintB,
+									() -> Align.extractFeatures(gridBlockB, 1.0, 0.5, 4, seedB, numThreads)) :
+							Align.extractFeatures(gridBlockB, 1.0, 0.5, 4, seedB, numThreads);
+
+					final AffineTransform2D transform = alignGridCell(
+							featuresA,
+							featuresB,
+							scale,
+							lambdaModel,
+							lambdaFilter,
 							maxFilterEpsilon,
-							0.0,
-							7);
-
-					final AffineTransform2D transform = Align.<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, AffineTransform2D>alignSIFT(
-							gridBlockB,
-							gridBlockA,
-							1.0,
-							0.5,
-							4,
-							0.92,
-							1.0 / scale,
-							filter,
-							modelSupplier,
-							Transform::convertAndInvertAffine2DtoAffineTransform2D);
+							matchRadius,
+							ransacThreads,
+							ransacConfidence);
 
 					return new Tuple2<long[], double[]>(offset, transform == null ? null : transform.getRowPackedCopy());
 				});
@@ -277,6 +353,292 @@ public class SparkPairAlignSIFT {
 		return affines;
 	}
 
+	/**
+	 * Align the features of one grid cell.
+	 *
+	 * @return the transform of B into A or null if no model was found
+	 */
+	private static AffineTransform2D alignGridCell(
+			final ArrayList<Feature> featuresA,
+			final ArrayList<Feature> featuresB,
+			final double scale,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final double matchRadius,
+			final int ransacThreads,
+			final double ransacConfidence) {
+
+		final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> modelSupplier =
+				new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
+					(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
+					(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
+					lambdaModel);
+
+		final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> filterModelSupplier =
+				new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
+					(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
+					(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
+					lambdaFilter);
+
+		final MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>> filter = new MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>>(
+				filterModelSupplier,
+				10000,
+				maxFilterEpsilon,
+				0.0,
+				7,
+				ransacThreads,
+				ransacConfidence);
+
+		return Align.<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, AffineTransform2D>alignSIFT(
+				featuresB,
+				featuresA,
+				0.92,
+				matchRadius,
+				1.0 / scale,
+				filter,
+				modelSupplier,
+				Transform::convertAndInvertAffine2DtoAffineTransform2D);
+	}
+
+	/**
+	 * Halo in full resolution pixels that contains the descriptor support of
+	 * features in the second, half resolution octave: a descriptor samples
+	 * 4 &times; fdSize octave pixels per side at the octave's base scale,
+	 * up to twice that at the top of the octave, rotated by up to 45&deg;.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static long minFeatureHalo(final FloatArray2DSIFT.Param p) {
+
+		final double octaveRadius = Math.sqrt(2) * 4 * p.fdSize * 2 / 2;
+		return (long)Math.ceil(2 * octaveRadius);
+	}
+
+	/**
+	 * Extract the features of a prior transformed face once per tile of
+	 * stepSize and assign them to the grid cells of 2 &times; stepSize
+	 * that contain them.  Tiles are extracted with a halo such that
+	 * features near tile borders are not lost, and keep only the features
+	 * in their core.  Every face pixel is processed once instead of four
+	 * times.
+	 *
+	 * SIFT octave sizes are derived from the tile size like they are from the
+	 * grid cell size when extracting per grid cell, i.e. the largest octave
+	 * is the tile at full resolution and the smallest half of it, such that
+	 * both paths extract features from the same two octaves.  The halo is
+	 * increased to at least {@link #minFeatureHalo(FloatArray2DSIFT.Param)}
+	 * such that descriptors of core features in the coarse octave are
+	 * complete.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param dataset
+	 * @param scaleIndex
+	 * @param transformDataset
+	 * @param scaledFloorMin
+	 * @param scaledCeilMax
+	 * @param stepSize
+	 * @param minHalo in scaled pixels
+	 * @param gridOffsets
+	 * @param storeFeatures
+	 * @param numThreads threads for feature preprocessing per tile
+	 * @return features per grid cell keyed by grid cell offset
+	 * @throws IOException
+	 */
+	public static JavaPairRDD<Tuple2<Long, Long>, ArrayList<Feature>> extractGridCellFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String dataset,
+			final int scaleIndex,
+			final String transformDataset,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long stepSize,
+			final long minHalo,
+			final List<long[]> gridOffsets,
+			final boolean storeFeatures,
+			final int numThreads) throws IOException {
+
+		final long halo = Math.max(minHalo, minFeatureHalo(new FloatArray2DSIFT.Param()));
+
+		final String fingerprint = storeFeatures ? FeatureStore.fingerprint(n5Path, dataset + "/s" + scaleIndex, transformDataset) : null;
+		final String featureSetName = FeatureStore.featureSetName(scaleIndex, 1.0, 0.5, 4);
+
+		final JavaPairRDD<Tuple2<Long, Long>, ArrayList<Feature>> tileFeatures = sc.parallelize(gridOffsets).flatMapToPair(
+				offset -> {
+
+					final N5Reader n5Reader = N5Cache.openFSReader(n5Path);
+					final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5Reader, dataset + "/s" + scaleIndex);
+
+					final RealTransform transform = N5Cache.loadScaledTransform(
+							n5Path,
+							transformDataset);
+
+					final RandomAccessibleInterval<FloatType> transformed = Transform.createTransformedInterval(
+							source,
+							new FinalInterval(scaledFloorMin, scaledCeilMax),
+							Transform.createScaledRealTransform(transform, scaleIndex),
+							new FloatType(0));
+
+					final long[] haloMin = new long[2];
+					final long[] haloMax = new long[2];
+					for (int d = 0; d < 2; ++d) {
+						haloMin[d] = Math.max(scaledFloorMin[d], offset[d] - halo);
+						haloMax[d] = Math.min(scaledCeilMax[d], offset[d] + stepSize - 1 + halo);
+					}
+					final IntervalView<FloatType> tile = Views.interval(transformed, new FinalInterval(haloMin, haloMax));
+
+					final long seed = Preprocessing.seed(dataset, scaleIndex, transformDataset, "tile_" + offset[0] + "_" + offset[1] + "_" + stepSize + "_" + halo);
+
+					/* like Align.extractFeatures(ip, 1.0, 0.5, 4, ...) for a grid cell */
+					final FloatArray2DSIFT.Param p = new FloatArray2DSIFT.Param();
+					p.maxOctaveSize = (int)Math.max(tile.dimension(0), tile.dimension(1));
+					p.minOctaveSize = (int)(Math.min(tile.dimension(0), tile.dimension(1)) * 0.5);
+
+					final ArrayList<Feature> features = storeFeatures ?
+							FeatureStore.loadOrExtract(
+									n5Path,
+									dataset + "/" + FeatureStore.FEATURES_GROUP + "/" + Util.flattenGroupName(transformDataset) + "/" + featureSetName + "/tile_" + offset[0] + "_" + offset[1] + "_" + stepSize + "_" + halo,
+									fingerprint,
+									() -> Align.extractFeatures(tile, p, seed, numThreads)) :
+							Align.extractFeatures(tile, p, seed, numThreads);
+
+					/* keep features in the tile core */
+					final ArrayList<Feature> coreFeatures = new ArrayList<>();
+					for (final Feature feature : features) {
+						final double x = feature.location[0];
+						final double y = feature.location[1];
+						if (x >= offset[0] && x < offset[0] + stepSize && y >= offset[1] && y < offset[1] + stepSize)
+							coreFeatures.add(feature);
+					}
+
+					System.out.println(dataset + " tile " + Arrays.toString(offset) + " : " + coreFeatures.size() + " features extracted.");
+
+					/* grid cells at offset and offset - stepSize contain this tile,
+					 * each gets its own copy of the locations which are scaled in place
+					 * when aligning */
+					final ArrayList<Tuple2<Tuple2<Long, Long>, ArrayList<Feature>>> cells = new ArrayList<>();
+					for (long y = offset[1]; y >= Math.max(scaledFloorMin[1], offset[1] - stepSize); y -= stepSize) {
+						for (long x = offset[0]; x >= Math.max(scaledFloorMin[0], offset[0] - stepSize); x -= stepSize) {
+							final ArrayList<Feature> cellFeatures = new ArrayList<>(coreFeatures.size());
+							for (final Feature f : coreFeatures)
+								cellFeatures.add(new Feature(f.scale, f.orientation, f.location.clone(), f.descriptor));
+							cells.add(new Tuple2<>(new Tuple2<>(x, y), cellFeatures));
+						}
+					}
+
+					return cells.iterator();
+				});
+
+		return tileFeatures.reduceByKey(
+				(a, b) -> {
+					final ArrayList<Feature> features = new ArrayList<>(a.size() + b.size());
+					features.addAll(a);
+					features.addAll(b);
+					return features;
+				});
+	}
+
+	/**
+	 * Like {@link #alignSIFT}, but features are extracted once per face tile
+	 * with {@link #extractGridCellFeatures}.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param datasetA
+	 * @param datasetB
+	 * @param scaleIndex
+	 * @param transformADataset
+	 * @param transformBDataset
+	 * @param scaledFloorMin
+	 * @param scaledCeilMax
+	 * @param stepSize
+	 * @param featureHalo
+	 * @param gridOffsets
+	 * @param lambdaModel
+	 * @param lambdaFilter
+	 * @param maxFilterEpsilon
+	 * @param storeFeatures
+	 * @param numThreads
+	 * @param matchRadius
+	 * @param ransacThreads
+	 * @param ransacConfidence
+	 * @return
+	 * @throws IOException
+	 */
+	public static JavaPairRDD<long[], double[]> alignSIFTTiled(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String datasetA,
+			final String datasetB,
+			final int scaleIndex,
+			final String transformADataset,
+			final String transformBDataset,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long stepSize,
+			final long featureHalo,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final boolean storeFeatures,
+			final int numThreads,
+			final double matchRadius,
+			final int ransacThreads,
+			final double ransacConfidence) throws IOException {
+
+		final double scale = 1.0 / (1 << scaleIndex);
+
+		final JavaPairRDD<Tuple2<Long, Long>, ArrayList<Feature>> featuresA = extractGridCellFeatures(
+				sc,
+				n5Path,
+				datasetA,
+				scaleIndex,
+				transformADataset,
+				scaledFloorMin,
+				scaledCeilMax,
+				stepSize,
+				featureHalo,
+				gridOffsets,
+				storeFeatures,
+				numThreads);
+
+		final JavaPairRDD<Tuple2<Long, Long>, ArrayList<Feature>> featuresB = extractGridCellFeatures(
+				sc,
+				n5Path,
+				datasetB,
+				scaleIndex,
+				transformBDataset,
+				scaledFloorMin,
+				scaledCeilMax,
+				stepSize,
+				featureHalo,
+				gridOffsets,
+				storeFeatures,
+				numThreads);
+
+		return featuresA.join(featuresB).mapToPair(
+				tuple -> {
+					final AffineTransform2D transform = alignGridCell(
+							tuple._2()._1(),
+							tuple._2()._2(),
+							scale,
+							lambdaModel,
+							lambdaFilter,
+							maxFilterEpsilon,
+							matchRadius,
+							ransacThreads,
+							ransacConfidence);
+
+					return new Tuple2<long[], double[]>(
+							new long[]{tuple._1()._1(), tuple._1()._2()},
+							transform == null ? null : transform.getRowPackedCopy());
+				});
+	}
+
 	/**
 	 * This is for 2D affine transforms only.
 	 *
@@ -302,9 +664,9 @@ public class SparkPairAlignSIFT {
 
 		final JavaRDD<long[]> gridCells = affines.map(
 				t -> {
-					final N5Writer n5 = N5.openFSWriter(n5Path);
-					final RealTransform priorTransform = Transform.loadScaledTransform(
-							n5,
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
+					final RealTransform priorTransform = N5Cache.loadScaledTransform(
+							n5Path,
 							priorTransformDatasetName);
 					final long[] gridOffset = Grid.gridCell(
 							t._1(),
@@ -368,7 +730,7 @@ public class SparkPairAlignSIFT {
 
 		final JavaRDD<long[]> mappedGridCells = gridCells.map(
 				cell -> {
-					final N5Writer n5 = N5.openFSWriter(n5Path);
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
 					final long[] gridOffset = Grid.gridCell(
 							cell,
 							Grid.floorScaled(boundsMin, transformScale),
@@ -384,22 +746,22 @@ public class SparkPairAlignSIFT {
 
 					final IntervalView<DoubleType> t00 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1)),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1)),
 									intervalMin,
 									intervalMax);
 					final IntervalView<DoubleType> t01 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + gridOffset[1]),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + gridOffset[1]),
 									intervalMin,
 									intervalMax);
 					final IntervalView<DoubleType> t10 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + Math.max(0, gridOffset[1] - 1)),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + Math.max(0, gridOffset[1] - 1)),
 									intervalMin,
 									intervalMax);
 					final IntervalView<DoubleType> t11 =
 							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]),
+									Transform.openPositionField(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]),
 									intervalMin,
 									intervalMax);
 
@@ -424,12 +786,7 @@ public class SparkPairAlignSIFT {
 						v.set((d1 - d0) * lambdaY + d0);
 					}
 
-					final DatasetAttributes targetAttributes = new DatasetAttributes(
-							dimensions,
-							new int[]{stepSize, stepSize, 2},
-							DataType.FLOAT64,
-							CompressionType.GZIP);
-					N5Utils.saveBlock(tt, n5, transformDatasetBaseName, targetAttributes, Arrays.copyOf(gridOffset, 3));
+					Transform.savePositionFieldBlock(n5, transformDatasetBaseName, tt, Arrays.copyOf(gridOffset, 3));
 
 					return cell;
 				});
@@ -449,7 +806,7 @@ public class SparkPairAlignSIFT {
 
 		gridCells.foreach(
 				cell -> {
-					final N5Writer n5 = N5.openFSWriter(n5Path);
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
 					final long[] gridOffset = Grid.gridCell(
 							cell,
 							Grid.floorScaled(boundsMin, transformScale),
@@ -473,8 +830,8 @@ public class SparkPairAlignSIFT {
 
 		rddDatasetNames.foreach(
 				tuple -> {
-					final N5Writer n5 = N5.openFSWriter(n5Path);
-					final RealTransform transform = Transform.loadScaledTransform(n5, tuple._1());
+					final N5Writer n5 = N5Cache.openFSWriter(n5Path);
+					final RealTransform transform = N5Cache.loadScaledTransform(n5Path, tuple._1());
 					final double[] boundsMin = n5.getAttribute(tuple._1(), "boundsMin", double[].class);
 					final double[] boundsMax = n5.getAttribute(tuple._1(), "boundsMax", double[].class);
 					final double scale = n5.getAttribute(tuple._1(), "scale", double.class);
@@ -511,6 +868,13 @@ public class SparkPairAlignSIFT {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
+	 * @param storeFeatures
+	 * @param numThreads
+	 * @param matchRadius
+	 * @param ransacThreads
+	 * @param ransacConfidence
+	 * @param tiledFeatures extract features once per face tile
+	 * @param featureHalo halo around face tiles in scaled pixels
 	 * @throws IOException
 	 */
 	public static void alignPairSIFT(
@@ -529,30 +893,64 @@ public class SparkPairAlignSIFT {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final boolean storeFeatures,
+			final int numThreads,
+			final double matchRadius,
+			final int ransacThreads,
+			final double ransacConfidence,
+			final boolean tiledFeatures,
+			final int featureHalo) throws IOException {
 
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
 		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, scale);
 
-		final JavaPairRDD<long[], double[]> affines = alignSIFT(
-				sc,
-				n5Path,
-				datasetNameA,
-				datasetNameB,
-				transformScaleIndex,
-				inGroupName + "/" + transformDatasetNameA,
-				inGroupName + "/" + transformDatasetNameB,
-				boundsMin,
-				boundsMax,
-				floorScaledMin,
-				ceilScaledMax,
-				stepSize * 2,
-				gridOffsets,
-				lambdaModel,
-				lambdaFilter,
-				maxFilterEpsilon);
+		final JavaPairRDD<long[], double[]> affines = tiledFeatures ?
+				alignSIFTTiled(
+						sc,
+						n5Path,
+						datasetNameA,
+						datasetNameB,
+						transformScaleIndex,
+						inGroupName + "/" + transformDatasetNameA,
+						inGroupName + "/" + transformDatasetNameB,
+						floorScaledMin,
+						ceilScaledMax,
+						stepSize,
+						featureHalo,
+						gridOffsets,
+						lambdaModel,
+						lambdaFilter,
+						maxFilterEpsilon,
+						storeFeatures,
+						numThreads,
+						matchRadius,
+						ransacThreads,
+						ransacConfidence) :
+				alignSIFT(
+						sc,
+						n5Path,
+						datasetNameA,
+						datasetNameB,
+						transformScaleIndex,
+						inGroupName + "/" + transformDatasetNameA,
+						inGroupName + "/" + transformDatasetNameB,
+						boundsMin,
+						boundsMax,
+						floorScaledMin,
+						ceilScaledMax,
+						stepSize * 2,
+						gridOffsets,
+						lambdaModel,
+						lambdaFilter,
+						maxFilterEpsilon,
+						storeFeatures,
+						numThreads,
+						matchRadius,
+						ransacThreads,
+						ransacConfidence);
 
 		affines.cache();
 		affines.count();
@@ -675,7 +1073,14 @@ public class SparkPairAlignSIFT {
 					gridOffsets,
 					options.getLambdaModel(),
 					options.getLambdaFilter(),
-					options.getMaxFilterEpsilon());
+					options.getMaxFilterEpsilon(),
+					options.getStoreFeatures(),
+					options.getNumThreads(),
+					options.getMatchRadius(),
+					options.getRansacThreads(),
+					options.getRansacConfidence(),
+					options.getTiledFeatures(),
+					options.getFeatureHalo());
 		}
 
 		sc.close();
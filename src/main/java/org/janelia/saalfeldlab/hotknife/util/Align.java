@@ -25,9 +25,11 @@ import java.util.function.Function;
 import java.util.function.Supplier;
 
 import org.janelia.saalfeldlab.hotknife.ConsensusFilter;
-import org.janelia.saalfeldlab.hotknife.NormalizeLocalContrast;
+import org.janelia.saalfeldlab.hotknife.FeatureGrid;
+import org.janelia.saalfeldlab.hotknife.FeatureKDTree;
+import org.janelia.saalfeldlab.hotknife.PackedPointMatches;
 import org.janelia.saalfeldlab.hotknife.PMCCScaleSpaceBlockFlow;
-import org.janelia.saalfeldlab.hotknife.ValueToNoise;
+import org.janelia.saalfeldlab.hotknife.Preprocessing;
 
 import ij.process.FloatProcessor;
 import mpicbg.ij.FeatureTransform;
@@ -72,18 +74,46 @@ public class Align {
 				});
 	}
 
-	public static FloatProcessor addNoise(FloatProcessor ip) {
-
-		final ValueToNoise filter1 = new ValueToNoise(0, 0, 255);
-		final ValueToNoise filter2 = new ValueToNoise(255, 0, 255);
-		final NormalizeLocalContrast filter3 = new NormalizeLocalContrast(256, 256, 3, true, true);
+	static public void unScalePointMatches(
+			final PackedPointMatches matches,
+			final int scaleIndex) {
 
-		ip = filter1.process(ip).convertToFloatProcessor();
-		ip = filter2.process(ip).convertToFloatProcessor();
-		ip.setMinAndMax(0, 255);
-		ip = filter3.process(ip).convertToFloatProcessor();
+		matches.scale(1 << scaleIndex);
+	}
 
-		return ip;
+	/**
+	 * Replace 0 and 255 pixels by seeded noise and normalize local contrast
+	 * over 513x513 blocks to mean &plusmn; 3 standard deviations in [0, 255].
+	 *
+	 * @param ip
+	 * @param seed e.g. from {@link Preprocessing#seed(Object...)}, images
+	 *     that are matched against each other must not share a seed or they
+	 *     get identical noise at identical saturated pixels
+	 * @param numThreads
+	 * @return a new {@link FloatProcessor}, ip is not modified
+	 */
+	public static FloatProcessor addNoise(
+			final FloatProcessor ip,
+			final long seed,
+			final int numThreads) {
+
+		final FloatProcessor filtered = new FloatProcessor(
+				ip.getWidth(),
+				ip.getHeight(),
+				Preprocessing.noiseAndNormalizeLocalContrast(
+						(float[])ip.getPixels(),
+						ip.getWidth(),
+						ip.getHeight(),
+						256,
+						256,
+						3,
+						0,
+						255,
+						seed,
+						numThreads));
+		filtered.setMinAndMax(0, 255);
+
+		return filtered;
 	}
 
 	/**
@@ -95,20 +125,44 @@ public class Align {
 	 * @param maxScale
 	 * @param minScale
 	 * @param fdSize
+	 * @param seed noise seed, see {@link #addNoise(FloatProcessor, long, int)}
+	 * @param numThreads
 	 * @return
 	 */
 	public static ArrayList<Feature> extractFeatures(
 			FloatProcessor ip,
 			final double maxScale,
 			final double minScale,
-			final int fdSize) {
+			final int fdSize,
+			final long seed,
+			final int numThreads) {
 
 		final FloatArray2DSIFT.Param p = new FloatArray2DSIFT.Param();
 
 		p.maxOctaveSize = (int)Math.round(Math.max(ip.getWidth(), ip.getHeight()) * maxScale);
 		p.minOctaveSize = (int)(Math.min(ip.getWidth(), ip.getHeight()) * minScale);
 
-		ip = addNoise(ip);
+		return extractFeatures(ip, p, seed, numThreads);
+	}
+
+	/**
+	 * Extract features from a {@link FloatProcessor} with explicit SIFT
+	 * parameters, e.g. octave sizes that do not depend on the size of ip.
+	 * Also adds noise to 0 and 255 pixels.
+	 *
+	 * @param ip
+	 * @param p
+	 * @param seed noise seed, see {@link #addNoise(FloatProcessor, long, int)}
+	 * @param numThreads
+	 * @return
+	 */
+	public static ArrayList<Feature> extractFeatures(
+			FloatProcessor ip,
+			final FloatArray2DSIFT.Param p,
+			final long seed,
+			final int numThreads) {
+
+		ip = addNoise(ip, seed, numThreads);
 
 		final FloatArray2DSIFT sift = new FloatArray2DSIFT(p);
 		final SIFT ijSIFT = new SIFT(sift);
@@ -126,15 +180,43 @@ public class Align {
 	 * @param maxScale
 	 * @param minScale
 	 * @param fdSize
+	 * @param seed noise seed, see {@link #addNoise(FloatProcessor, long, int)}
+	 * @param numThreads
 	 * @return
 	 */
 	public static ArrayList<Feature> extractFeatures(
 			final RandomAccessibleInterval<FloatType> source,
 			final double maxScale,
 			final double minScale,
-			final int fdSize) {
+			final int fdSize,
+			final long seed,
+			final int numThreads) {
+
+		final ArrayList<Feature> fs = extractFeatures(Util.materialize(source), maxScale, minScale, fdSize, seed, numThreads);
+		fs.forEach(
+				feature -> {
+					feature.location[0] += source.realMin(0);
+					feature.location[1] += source.realMin(1);
+				});
+		return fs;
+	}
+
+	/**
+	 * Extract SIFT features from a 2D source with explicit SIFT parameters.
+	 *
+	 * @param source
+	 * @param p
+	 * @param seed noise seed, see {@link #addNoise(FloatProcessor, long, int)}
+	 * @param numThreads
+	 * @return
+	 */
+	public static ArrayList<Feature> extractFeatures(
+			final RandomAccessibleInterval<FloatType> source,
+			final FloatArray2DSIFT.Param p,
+			final long seed,
+			final int numThreads) {
 
-		final ArrayList<Feature> fs = extractFeatures(Util.materialize(source), maxScale, minScale, fdSize);
+		final ArrayList<Feature> fs = extractFeatures(Util.materialize(source), p, seed, numThreads);
 		fs.forEach(
 				feature -> {
 					feature.location[0] += source.realMin(0);
@@ -157,6 +239,34 @@ public class Align {
 		return candidates;
 	}
 
+	/**
+	 * Match features with the same ratio of distances test as
+	 * {@link #matchFeatures(List, List, double)} but search the nearest
+	 * neighbors in a {@link FeatureKDTree} forest over fs2.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param numTrees number of randomized trees, exhaustive search if 0
+	 * @param epsilon approximation bound, 0 for exact
+	 * @param maxChecks maximum number of compared descriptors per feature,
+	 *     0 for unlimited
+	 * @return
+	 */
+	public static ArrayList<PointMatch> matchFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final int numTrees,
+			final double epsilon,
+			final int maxChecks) {
+
+		if (numTrees < 1)
+			return matchFeatures(fs1, fs2, rod);
+
+		return new FeatureKDTree(fs2, numTrees).matchFeatures(fs1, rod, epsilon, maxChecks);
+	}
+
 	/**
 	 * Align two images with SIFT features.  Returns the inverse transform
 	 * of mapping a into b which is, well, the forward transform for mapping
@@ -186,8 +296,67 @@ public class Align {
 			final Supplier<M> modelSupplier,
 			final Function<M, R> modelTransformConverter) {
 
-		final ArrayList<Feature> fs1 = extractFeatures(a, maxScale, minScale, fdSize);
-		final ArrayList<Feature> fs2 = extractFeatures(b, maxScale, minScale, fdSize);
+		return alignSIFT(
+				extractFeatures(a, maxScale, minScale, fdSize, Preprocessing.seed("a"), 1),
+				extractFeatures(b, maxScale, minScale, fdSize, Preprocessing.seed("b"), 1),
+				rod,
+				scale,
+				filter,
+				modelSupplier,
+				modelTransformConverter);
+	}
+
+	/**
+	 * Align two sets of SIFT features, e.g. loaded from a
+	 * {@link FeatureStore}.  Feature locations are scaled in place.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @param modelSupplier
+	 * @param modelTransformConverter
+	 * @return
+	 */
+	static public <M extends Model<M>, R extends RealTransform> R alignSIFT(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter) {
+
+		return alignSIFT(fs1, fs2, rod, 0, scale, filter, modelSupplier, modelTransformConverter);
+	}
+
+	/**
+	 * Align two sets of SIFT features that are already roughly aligned, e.g.
+	 * extracted from images warped by a prior transform.  If matchRadius
+	 * &gt; 0, features are only matched to features within matchRadius
+	 * (after scaling) from their own location.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param matchRadius
+	 * @param scale
+	 * @param filter
+	 * @param modelSupplier
+	 * @param modelTransformConverter
+	 * @return
+	 */
+	static public <M extends Model<M>, R extends RealTransform> R alignSIFT(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final double matchRadius,
+			final double scale,
+			final ConsensusFilter filter,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter) {
+
 		fs1.forEach(
 				feature -> {
 					feature.location[0] *= scale;
@@ -199,7 +368,9 @@ public class Align {
 					feature.location[1] *= scale;
 				});
 
-		final ArrayList<PointMatch> candidates = matchFeatures(fs1, fs2, rod);
+		final ArrayList<PointMatch> candidates = matchRadius > 0 ?
+				new FeatureGrid(fs2, matchRadius).matchFeatures(fs1, rod, null) :
+				matchFeatures(fs1, fs2, rod);
 		final ArrayList<PointMatch> matches = filter.filter(candidates);
 
 		System.out.printf("%d and %d features extracted.  %d of %d matches found.", fs1.size(), fs2.size(), matches.size(), candidates.size());
@@ -242,6 +413,43 @@ public class Align {
 		return tiles;
 	}
 
+	/**
+	 * Connects a stack of tiles, one per block, by the packed matches of
+	 * adjacent block faces.  Matches are looked up by the name of the bottom
+	 * face of the upper block.  {@link PointMatch PointMatches} are created
+	 * here only because {@link Tile} requires them.
+	 *
+	 * @param datasetNames
+	 * @param matches
+	 * @param modelSupplier
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <S extends Supplier<? extends Model<?>>> ArrayList<Tile<?>> connectStackTiles(
+			final List<String> datasetNames,
+			final Function<String, PackedPointMatches> matches,
+			final S modelSupplier) {
+
+		final ArrayList<Tile<?>> tiles = new ArrayList<>();
+		@SuppressWarnings("rawtypes")
+		Tile a = new Tile(modelSupplier.get());
+		tiles.add(a);
+		for (int i = 1; i < datasetNames.size() - 1; i += 2) {
+			@SuppressWarnings("rawtypes")
+			final Tile b = new Tile(modelSupplier.get());
+			tiles.add(b);
+			final PackedPointMatches match = matches.apply(datasetNames.get(i));
+			if (match != null) {
+				match.connect(a, b);
+				System.out.printf("[%s, %s] : connected by %d matches.", datasetNames.get(i), datasetNames.get(i + 1), match.size());
+				System.out.println();
+			}
+			a = b;
+		}
+
+		return tiles;
+	}
+
 	/**
 	 * Align two images with block matching.  Returns the inverse transform
 	 * of mapping a into b which is, well, the forward transform for mapping
@@ -260,16 +468,110 @@ public class Align {
 			final double sigma,
 			final int numIterations) {
 
+		return alignFlow(a, b, radius, sigma, numIterations, new PMCCScaleSpaceBlockFlow.Param());
+	}
+
+	/**
+	 * Align two images with block matching.  Returns the inverse transform
+	 * of mapping a into b which is, well, the forward transform for mapping
+	 * b into a.
+	 *
+	 * @param a
+	 * @param b
+	 * @param radius
+	 * @param sigma
+	 * @param numIterations
+	 * @param param tuning parameters of the block flow engine
+	 * @return
+	 */
+	static public RealTransform alignFlow(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final PMCCScaleSpaceBlockFlow.Param param) {
+
+		return alignFlow(a, b, radius, sigma, numIterations, param, null);
+	}
+
+	/**
+	 * Align two images with block matching starting from an initial
+	 * transform, e.g. the upsampled result of a coarser scale level.
+	 * Returns the inverse transform of mapping a into b which is, well, the
+	 * forward transform for mapping b into a.
+	 *
+	 * @param a
+	 * @param b
+	 * @param radius
+	 * @param sigma
+	 * @param numIterations
+	 * @param param tuning parameters of the block flow engine
+	 * @param initialTransform in the same coordinates and direction as the
+	 * 		returned transform, identity if null
+	 * @return
+	 */
+	static public RealTransform alignFlow(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final PMCCScaleSpaceBlockFlow.Param param,
+			final RealTransform initialTransform) {
+
+		return alignFlow(a, b, radius, sigma, numIterations, param, initialTransform, null);
+	}
+
+	/**
+	 * Align two images with block matching starting from an initial
+	 * transform and report convergence.  Iterations stop early once the
+	 * flow update falls below {@link PMCCScaleSpaceBlockFlow.Param#convergenceTolerance}.
+	 *
+	 * @param a
+	 * @param b
+	 * @param radius
+	 * @param sigma
+	 * @param numIterations maximum number of iterations
+	 * @param param tuning parameters of the block flow engine
+	 * @param initialTransform in the same coordinates and direction as the
+	 * 		returned transform, identity if null
+	 * @param statistics receives iterations and final residual, can be null
+	 * @return
+	 */
+	static public RealTransform alignFlow(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final PMCCScaleSpaceBlockFlow.Param param,
+			final RealTransform initialTransform,
+			final PMCCScaleSpaceBlockFlow.Statistics statistics) {
+
+		final double[] offset = Intervals.minAsDoubleArray(a);
+		final double[] inverseOffset = new double[offset.length];
+		Arrays.setAll(inverseOffset, i -> -offset[i]);
+
+		final RealTransformSequence localInitialTransform;
+		if (initialTransform == null)
+			localInitialTransform = null;
+		else {
+			localInitialTransform = new RealTransformSequence();
+			localInitialTransform.add(new Translation2D(offset));
+			localInitialTransform.add(initialTransform);
+			localInitialTransform.add(new Translation2D(inverseOffset));
+		}
+
 		final Pair<PositionFieldTransform<DoubleType>, FloatProcessor> transformAndWeights = PMCCScaleSpaceBlockFlow.scaleSpaceOpticFlow(
 				Util.materialize(b),
 				Util.materialize(a),
 				radius,
 				sigma,
-				numIterations);
-
-		final double[] offset = Intervals.minAsDoubleArray(a);
-		final double[] inverseOffset = new double[offset.length];
-		Arrays.setAll(inverseOffset, i -> -offset[i]);
+				numIterations,
+				param,
+				localInitialTransform,
+				statistics);
 
 		final RealTransformSequence transform = new RealTransformSequence();
 		transform.add(new Translation2D(inverseOffset));
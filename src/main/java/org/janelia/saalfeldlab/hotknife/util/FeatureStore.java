@@ -0,0 +1,257 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.CompressionType;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import mpicbg.imagefeatures.Feature;
+
+/**
+ * Persistent store for extracted SIFT {@link Feature Features} in an N5
+ * container.  A feature set is a group with two datasets, "locations"
+ * (FLOAT64, x, y, scale, orientation per feature) and "descriptors"
+ * (FLOAT32, one descriptor per feature).  The group carries a fingerprint
+ * of the sources it was extracted from and is considered stale and
+ * re-extracted when the fingerprint does not match.  The fingerprint is
+ * written last so that an interrupted write is never loaded.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class FeatureStore {
+
+	/**
+	 * Group below a face dataset that holds its feature sets.
+	 */
+	public static final String FEATURES_GROUP = "features";
+
+	private static final int BLOCK_SIZE = 4096;
+
+	private FeatureStore() {}
+
+	/**
+	 * Name of a feature set, composed of the scale index and the extraction
+	 * parameters.
+	 *
+	 * @param scaleIndex
+	 * @param maxScale
+	 * @param minScale
+	 * @param fdSize
+	 * @return
+	 */
+	public static String featureSetName(
+			final int scaleIndex,
+			final double maxScale,
+			final double minScale,
+			final int fdSize) {
+
+		return String.format("s%d_%s_%s_%d", scaleIndex, Double.toString(maxScale), Double.toString(minScale), fdSize);
+	}
+
+	/**
+	 * Fingerprint of a list of N5 groups or datasets in a filesystem N5
+	 * container.  Changes whenever a file in any of them is added, removed,
+	 * resized or modified.
+	 *
+	 * @param n5Path
+	 * @param groupNames
+	 * @return
+	 * @throws IOException
+	 */
+	public static String fingerprint(final String n5Path, final String... groupNames) throws IOException {
+
+		final StringBuilder fingerprint = new StringBuilder();
+		for (final String groupName : groupNames) {
+			long numFiles = 0, size = 0, lastModified = 0;
+			final Path path = Paths.get(n5Path, groupName);
+			if (Files.exists(path)) {
+				try (final Stream<Path> paths = Files.walk(path)) {
+					for (final Iterator<Path> i = paths.iterator(); i.hasNext();) {
+						final File file = i.next().toFile();
+						if (file.isFile()) {
+							++numFiles;
+							size += file.length();
+							lastModified = Math.max(lastModified, file.lastModified());
+						}
+					}
+				}
+			}
+			fingerprint.append(String.format("%s:%d:%d:%d;", groupName, numFiles, size, lastModified));
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Load a feature set.
+	 *
+	 * @param n5
+	 * @param groupName
+	 * @param fingerprint
+	 * @return the features or null if the feature set does not exist or is
+	 *     stale
+	 * @throws IOException
+	 */
+	public static ArrayList<Feature> load(
+			final N5Reader n5,
+			final String groupName,
+			final String fingerprint) throws IOException {
+
+		if (!n5.exists(groupName) || !fingerprint.equals(n5.getAttribute(groupName, "fingerprint", String.class)))
+			return null;
+
+		final int numFeatures = n5.getAttribute(groupName, "numFeatures", int.class);
+		final ArrayList<Feature> features = new ArrayList<>(numFeatures);
+		if (numFeatures == 0)
+			return features;
+
+		final String locationsName = groupName + "/locations";
+		final String descriptorsName = groupName + "/descriptors";
+		final DatasetAttributes locationsAttributes = n5.getDatasetAttributes(locationsName);
+		final DatasetAttributes descriptorsAttributes = n5.getDatasetAttributes(descriptorsName);
+		final int descriptorLength = (int)descriptorsAttributes.getDimensions()[0];
+
+		for (long j = 0; j * BLOCK_SIZE < numFeatures; ++j) {
+			final double[] locations = (double[])n5.readBlock(locationsName, locationsAttributes, new long[]{0, j}).getData();
+			final float[] descriptors = (float[])n5.readBlock(descriptorsName, descriptorsAttributes, new long[]{0, j}).getData();
+			final int n = (int)Math.min(BLOCK_SIZE, numFeatures - j * BLOCK_SIZE);
+			for (int i = 0; i < n; ++i) {
+				final float[] descriptor = new float[descriptorLength];
+				System.arraycopy(descriptors, i * descriptorLength, descriptor, 0, descriptorLength);
+				final int k = i * 4;
+				features.add(
+						new Feature(
+								locations[k + 2],
+								locations[k + 3],
+								new double[]{locations[k], locations[k + 1]},
+								descriptor));
+			}
+		}
+
+		return features;
+	}
+
+	/**
+	 * Save a feature set, replacing an existing one.
+	 *
+	 * @param n5
+	 * @param groupName
+	 * @param fingerprint
+	 * @param features
+	 * @throws IOException
+	 */
+	public static void save(
+			final N5Writer n5,
+			final String groupName,
+			final String fingerprint,
+			final List<Feature> features) throws IOException {
+
+		if (n5.exists(groupName))
+			n5.remove(groupName);
+		n5.createGroup(groupName);
+
+		final int numFeatures = features.size();
+		if (numFeatures > 0) {
+			final int descriptorLength = features.get(0).descriptor.length;
+			final String locationsName = groupName + "/locations";
+			final String descriptorsName = groupName + "/descriptors";
+			final DatasetAttributes locationsAttributes = new DatasetAttributes(
+					new long[]{4, numFeatures},
+					new int[]{4, BLOCK_SIZE},
+					DataType.FLOAT64,
+					CompressionType.GZIP);
+			final DatasetAttributes descriptorsAttributes = new DatasetAttributes(
+					new long[]{descriptorLength, numFeatures},
+					new int[]{descriptorLength, BLOCK_SIZE},
+					DataType.FLOAT32,
+					CompressionType.GZIP);
+			n5.createDataset(locationsName, locationsAttributes);
+			n5.createDataset(descriptorsName, descriptorsAttributes);
+
+			for (int j = 0; j * BLOCK_SIZE < numFeatures; ++j) {
+				final int offset = j * BLOCK_SIZE;
+				final int n = Math.min(BLOCK_SIZE, numFeatures - offset);
+				final double[] locations = new double[n * 4];
+				final float[] descriptors = new float[n * descriptorLength];
+				for (int i = 0; i < n; ++i) {
+					final Feature feature = features.get(offset + i);
+					final int k = i * 4;
+					locations[k] = feature.location[0];
+					locations[k + 1] = feature.location[1];
+					locations[k + 2] = feature.scale;
+					locations[k + 3] = feature.orientation;
+					System.arraycopy(feature.descriptor, 0, descriptors, i * descriptorLength, descriptorLength);
+				}
+				n5.writeBlock(
+						locationsName,
+						locationsAttributes,
+						new DoubleArrayDataBlock(new int[]{4, n}, new long[]{0, j}, locations));
+				n5.writeBlock(
+						descriptorsName,
+						descriptorsAttributes,
+						new FloatArrayDataBlock(new int[]{descriptorLength, n}, new long[]{0, j}, descriptors));
+			}
+		}
+
+		n5.setAttribute(groupName, "numFeatures", numFeatures);
+		n5.setAttribute(groupName, "fingerprint", fingerprint);
+	}
+
+	/**
+	 * Load a feature set from a filesystem N5 container or, if it does not
+	 * exist or is stale, extract and save it.
+	 *
+	 * @param n5Path
+	 * @param groupName
+	 * @param fingerprint
+	 * @param extractor
+	 * @return
+	 * @throws IOException
+	 */
+	public static ArrayList<Feature> loadOrExtract(
+			final String n5Path,
+			final String groupName,
+			final String fingerprint,
+			final Supplier<ArrayList<Feature>> extractor) throws IOException {
+
+		final N5Writer n5 = N5.openFSWriter(n5Path);
+		ArrayList<Feature> features = load(n5, groupName, fingerprint);
+		if (features == null) {
+			features = extractor.get();
+			save(n5, groupName, fingerprint, features);
+		} else
+			System.out.println(groupName + " : " + features.size() + " features loaded.");
+
+		return features;
+	}
+}
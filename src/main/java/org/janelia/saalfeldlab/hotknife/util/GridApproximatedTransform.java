@@ -0,0 +1,311 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import net.imglib2.Interval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Approximates a {@link RealTransform} over an interval by evaluating it
+ * exactly on a coarse lattice and interpolating multi-linearly in between.
+ * Used for resampling when the transform (e.g. a chain of position fields,
+ * flow fields and transitions) is much more expensive than the pixel
+ * lookups.
+ *
+ * The approximation error is measured at construction by comparing with
+ * the exact transform at the centers of all lattice cells and their edges.
+ * {@link #approximate(RealTransform, Interval, int, double)} picks the
+ * coarsest lattice that stays within a given error bound.  Outside of the
+ * interval, the transform is extrapolated linearly from the border cells.
+ *
+ * Lookups do not allocate, instances are not thread safe, use
+ * {@link #copy()} for each thread, copies share the lattice.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class GridApproximatedTransform implements RealTransform {
+
+	public static final int DEFAULT_MAX_STEP = 64;
+
+	/**
+	 * Below this step size, validating and sampling the lattice costs
+	 * about as much as evaluating the exact transform.
+	 */
+	public static final int MIN_STEP = 4;
+
+	private final int n;
+	private final int m;
+	private final double[] min;
+	private final int step;
+	private final int[] size;
+	private final int[] strides;
+	private final double[] lattice;
+	private final double maxError;
+
+	private final double[] weights;
+	private final double[] tmp;
+
+	private GridApproximatedTransform(final GridApproximatedTransform other) {
+
+		n = other.n;
+		m = other.m;
+		min = other.min;
+		step = other.step;
+		size = other.size;
+		strides = other.strides;
+		lattice = other.lattice;
+		maxError = other.maxError;
+		weights = new double[n];
+		tmp = new double[Math.max(n, m)];
+	}
+
+	/**
+	 * Samples a transform on a lattice over an interval and measures the
+	 * approximation error.
+	 *
+	 * @param transform
+	 * @param interval
+	 * @param step lattice spacing in source pixels
+	 */
+	public GridApproximatedTransform(
+			final RealTransform transform,
+			final Interval interval,
+			final int step) {
+
+		n = interval.numDimensions();
+		m = transform.numTargetDimensions();
+		if (transform.numSourceDimensions() != n)
+			throw new IllegalArgumentException("Transform and interval dimensions do not match.");
+		if (step < 1)
+			throw new IllegalArgumentException("Step must be positive.");
+
+		this.step = step;
+		min = new double[n];
+		size = new int[n];
+		strides = new int[n];
+		long numPoints = 1;
+		for (int d = 0; d < n; ++d) {
+			min[d] = interval.min(d);
+			size[d] = (int)((interval.dimension(d) - 1 + step - 1) / step) + 1;
+			strides[d] = (int)numPoints;
+			numPoints *= size[d];
+		}
+		if (numPoints * m > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Lattice with step " + step + " is too large.");
+
+		weights = new double[n];
+		tmp = new double[Math.max(n, m)];
+		lattice = new double[(int)numPoints * m];
+
+		final RealTransform exact = transform.copy();
+		final int[] k = new int[n];
+		final double[] source = new double[n];
+		final double[] target = new double[m];
+		for (int i = 0; i < numPoints; ++i) {
+			for (int d = 0; d < n; ++d)
+				source[d] = min[d] + (double)k[d] * step;
+			exact.apply(source, target);
+			System.arraycopy(target, 0, lattice, i * m, m);
+			for (int d = 0; d < n && ++k[d] == size[d]; ++d)
+				k[d] = 0;
+		}
+
+		maxError = validate(exact, interval);
+	}
+
+	/**
+	 * Maximum Euclidean distance between the exact and the approximated
+	 * transform at the centers of all lattice cells and their edges.
+	 */
+	private double validate(final RealTransform exact, final Interval interval) {
+
+		final int[] k = new int[n];
+		final double[] source = new double[n];
+		final double[] expected = new double[m];
+		final double[] approximated = new double[m];
+		double error = 0;
+		for (int i = 0; i < lattice.length / m; ++i) {
+			boolean isCell = true;
+			for (int d = 0; d < n; ++d)
+				isCell &= size[d] == 1 || k[d] < size[d] - 1;
+			if (isCell) {
+				for (int corner = 1; corner < 1 << n; ++corner) {
+					boolean isOnLattice = true;
+					for (int d = 0; d < n; ++d) {
+						final boolean isHalf = (corner & (1 << d)) != 0 && size[d] > 1;
+						source[d] = Math.min(interval.max(d), min[d] + (k[d] + (isHalf ? 0.5 : 0.0)) * step);
+						isOnLattice &= !isHalf;
+					}
+					if (isOnLattice)
+						continue;
+					exact.apply(source, expected);
+					apply(source, approximated);
+					double sumSquares = 0;
+					for (int e = 0; e < m; ++e) {
+						final double diff = expected[e] - approximated[e];
+						sumSquares += diff * diff;
+					}
+					error = Math.max(error, sumSquares);
+				}
+			}
+			for (int d = 0; d < n && ++k[d] == size[d]; ++d)
+				k[d] = 0;
+		}
+		return Math.sqrt(error);
+	}
+
+	/**
+	 * Approximates a transform over an interval with the coarsest lattice
+	 * (halving the step from maxStep down to {@link #MIN_STEP}) whose
+	 * measured error does not exceed maxError.  If no lattice is good enough
+	 * or maxError is not positive, the exact transform is returned.
+	 *
+	 * @param transform
+	 * @param interval
+	 * @param maxStep
+	 * @param maxError in target units
+	 * @return
+	 */
+	public static RealTransform approximate(
+			final RealTransform transform,
+			final Interval interval,
+			final int maxStep,
+			final double maxError) {
+
+		if (maxError > 0) {
+			for (int step = maxStep; step >= MIN_STEP; step /= 2) {
+				final GridApproximatedTransform approximation = new GridApproximatedTransform(transform, interval, step);
+				if (approximation.getMaxError() <= maxError)
+					return approximation;
+			}
+		}
+		return transform;
+	}
+
+	public static RealTransform approximate(
+			final RealTransform transform,
+			final Interval interval,
+			final double maxError) {
+
+		return approximate(transform, interval, DEFAULT_MAX_STEP, maxError);
+	}
+
+	/**
+	 * @return the measured approximation error
+	 */
+	public double getMaxError() {
+
+		return maxError;
+	}
+
+	/**
+	 * @return the lattice spacing
+	 */
+	public int getStep() {
+
+		return step;
+	}
+
+	@Override
+	public int numSourceDimensions() {
+
+		return n;
+	}
+
+	@Override
+	public int numTargetDimensions() {
+
+		return m;
+	}
+
+	/**
+	 * Finds the lattice cell for source and stores the interpolation weights.
+	 *
+	 * @return index of the first corner of the cell
+	 */
+	private int locate(final double[] source) {
+
+		int index = 0;
+		for (int d = 0; d < n; ++d) {
+			if (size[d] == 1) {
+				weights[d] = 0;
+				continue;
+			}
+			final double f = (source[d] - min[d]) / step;
+			final int k = Math.max(0, Math.min(size[d] - 2, (int)Math.floor(f)));
+			weights[d] = f - k;
+			index += k * strides[d];
+		}
+		return index;
+	}
+
+	private void interpolate(final int index, final double[] target) {
+
+		for (int e = 0; e < m; ++e)
+			target[e] = 0;
+		for (int corner = 0; corner < 1 << n; ++corner) {
+			double weight = 1;
+			int i = index;
+			for (int d = 0; d < n; ++d) {
+				if ((corner & (1 << d)) == 0)
+					weight *= 1.0 - weights[d];
+				else {
+					weight *= weights[d];
+					i += strides[d];
+				}
+			}
+			if (weight == 0)
+				continue;
+			i *= m;
+			for (int e = 0; e < m; ++e)
+				target[e] += weight * lattice[i + e];
+		}
+	}
+
+	@Override
+	public void apply(final double[] source, final double[] target) {
+
+		interpolate(locate(source), target);
+	}
+
+	@Override
+	public void apply(final float[] source, final float[] target) {
+
+		for (int d = 0; d < n; ++d)
+			tmp[d] = source[d];
+		apply(tmp, tmp);
+		for (int e = 0; e < m; ++e)
+			target[e] = (float)tmp[e];
+	}
+
+	@Override
+	public void apply(final RealLocalizable source, final RealPositionable target) {
+
+		source.localize(tmp);
+		apply(tmp, tmp);
+		for (int e = 0; e < m; ++e)
+			target.setPosition(tmp[e], e);
+	}
+
+	@Override
+	public GridApproximatedTransform copy() {
+
+		return new GridApproximatedTransform(this);
+	}
+}
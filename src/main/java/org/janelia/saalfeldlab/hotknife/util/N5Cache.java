@@ -0,0 +1,383 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * JVM-wide, size-bounded caches for N5 filesystem readers and writers,
+ * dataset attributes, and loaded transforms.  Meant to be used in Spark
+ * tasks where the same containers, datasets and transforms are opened
+ * thousands of times per executor.
+ *
+ * Dataset attributes and transforms are validated against the
+ * {@link Transform#GENERATION_KEY generation} attribute that all
+ * {@link Transform} save methods set, or, for datasets saved before it was
+ * introduced, against the modification time of the dataset's
+ * attributes.json.  The generation is read from attributes.json only when
+ * the file's modification time or size changed since it was last read,
+ * otherwise a cache hit costs one file stat.  The save methods also
+ * {@link #invalidate(String) invalidate} the entries of this JVM directly,
+ * including block writes that do not touch the attributes.  Transforms are
+ * not thread safe, every call returns a {@link RealTransform#copy() copy}
+ * of the cached instance that shares the loaded and decoded data blocks.
+ *
+ * Readers, writers and attributes are bounded by number of entries, set
+ * with the system property {@value #MAX_SIZE_PROPERTY}.  Transforms are
+ * bounded by the estimated size of their loaded fields in bytes, set with
+ * {@value #MAX_BYTES_PROPERTY}, by default a quarter of the maximum heap.
+ * Both can be passed e.g. through spark.executor.extraJavaOptions.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class N5Cache {
+
+	public static final String MAX_SIZE_PROPERTY = "hotknife.n5cache.maxSize";
+
+	public static final String MAX_BYTES_PROPERTY = "hotknife.n5cache.maxBytes";
+
+	private static final int maxSize = Integer.getInteger(MAX_SIZE_PROPERTY, 256);
+
+	private static final long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, Runtime.getRuntime().maxMemory() / 4);
+
+	/**
+	 * Estimated size of transforms that are not loaded into memory, e.g.
+	 * affines or lazily read fields.
+	 */
+	private static final long SMALL_ENTRY_BYTES = 1024;
+
+	@FunctionalInterface
+	private static interface Loader<V> {
+
+		public V load() throws IOException;
+	}
+
+	private static class Versioned<V> {
+
+		private final String datasetName;
+		private final long version;
+		private final long bytes;
+		private final V value;
+
+		private Versioned(final String datasetName, final long version, final long bytes, final V value) {
+
+			this.datasetName = datasetName;
+			this.version = version;
+			this.bytes = bytes;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Thread safe LRU cache with hit and miss counters, bounded by number
+	 * of entries and by the sum of their estimated sizes.  Values are loaded
+	 * outside of the lock, concurrent misses of the same key may load
+	 * more than once.
+	 */
+	private static class Cache<V> {
+
+		private final String name;
+
+		private final int maxEntries;
+
+		private final long maxTotalBytes;
+
+		private final AtomicLong hits = new AtomicLong();
+
+		private final AtomicLong misses = new AtomicLong();
+
+		private final LinkedHashMap<String, Versioned<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+		private long bytes = 0;
+
+		private Cache(final String name, final int maxEntries, final long maxTotalBytes) {
+
+			this.name = name;
+			this.maxEntries = maxEntries;
+			this.maxTotalBytes = maxTotalBytes;
+		}
+
+		private V get(
+				final String key,
+				final String datasetName,
+				final long version,
+				final Loader<Long> weigher,
+				final Loader<V> loader) throws IOException {
+
+			synchronized (map) {
+				final Versioned<V> entry = map.get(key);
+				if (entry != null && entry.version == version) {
+					hits.incrementAndGet();
+					return entry.value;
+				}
+			}
+			misses.incrementAndGet();
+			final V value = loader.load();
+			final long entryBytes = weigher.load();
+
+			/* do not cache what would evict everything else */
+			if (entryBytes > maxTotalBytes)
+				return value;
+
+			synchronized (map) {
+				final Versioned<V> replaced = map.put(key, new Versioned<>(datasetName, version, entryBytes, value));
+				if (replaced != null)
+					bytes -= replaced.bytes;
+				bytes += entryBytes;
+				for (final Iterator<Versioned<V>> i = map.values().iterator(); i.hasNext() && (map.size() > maxEntries || bytes > maxTotalBytes);) {
+					bytes -= i.next().bytes;
+					i.remove();
+				}
+			}
+			return value;
+		}
+
+		private void invalidate(final String datasetName) {
+
+			synchronized (map) {
+				for (final Iterator<Versioned<V>> i = map.values().iterator(); i.hasNext();) {
+					final Versioned<V> entry = i.next();
+					if (datasetName.equals(entry.datasetName)) {
+						bytes -= entry.bytes;
+						i.remove();
+					}
+				}
+			}
+		}
+
+		private void clear() {
+
+			synchronized (map) {
+				map.clear();
+				bytes = 0;
+			}
+			hits.set(0);
+			misses.set(0);
+		}
+
+		@Override
+		public String toString() {
+
+			final int size;
+			final long currentBytes;
+			synchronized (map) {
+				size = map.size();
+				currentBytes = bytes;
+			}
+			return name + " : " + size + " entries, " + currentBytes + " bytes, " + hits.get() + " hits, " + misses.get() + " misses";
+		}
+	}
+
+	private static final Cache<N5Reader> readers = new Cache<>("readers", maxSize, Long.MAX_VALUE);
+
+	private static final Cache<N5Writer> writers = new Cache<>("writers", maxSize, Long.MAX_VALUE);
+
+	private static final Cache<DatasetAttributes> attributes = new Cache<>("dataset attributes", maxSize, Long.MAX_VALUE);
+
+	private static final Cache<RealTransform> transforms = new Cache<>("transforms", Integer.MAX_VALUE, maxBytes);
+
+	private static final Cache<Long> versions = new Cache<>("versions", maxSize, Long.MAX_VALUE);
+
+	private N5Cache() {}
+
+	/**
+	 * Dataset names with and without leading slash name the same dataset.
+	 */
+	private static String normalize(final String datasetName) {
+
+		int i = 0;
+		while (i < datasetName.length() && datasetName.charAt(i) == '/')
+			++i;
+		return datasetName.substring(i);
+	}
+
+	/**
+	 * The {@link Transform#GENERATION_KEY generation} of a dataset, or the
+	 * modification time of its attributes.json if it has none, or -1 if it
+	 * does not exist.  Cached for the modification time and size of
+	 * attributes.json such that it is parsed only after it changed.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @return
+	 */
+	private static long version(final String n5Path, final String datasetName) {
+
+		final Path path = Paths.get(n5Path, datasetName, "attributes.json");
+		try {
+			final BasicFileAttributes fileAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+			final long modified = fileAttributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+			final long stamp = 31 * modified + fileAttributes.size();
+			return versions.get(
+					path.toString(),
+					normalize(datasetName),
+					stamp,
+					() -> 0L,
+					() -> {
+						final Long generation = openFSReader(n5Path).getAttribute(datasetName, Transform.GENERATION_KEY, Long.class);
+						return generation == null ? TimeUnit.NANOSECONDS.toMillis(modified) : generation;
+					});
+		} catch (final IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Estimated size of a transform loaded by
+	 * {@link Transform#loadScaledTransform}: the float displacements of
+	 * dense position fields, or {@link #SMALL_ENTRY_BYTES} for affines and
+	 * {@link Transform#SPARSE_KEY sparse} fields that are read lazily.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	private static long transformBytes(
+			final String n5Path,
+			final String datasetName) throws IOException {
+
+		final N5Reader n5 = openFSReader(n5Path);
+		if (Transform.AFFINE_TYPE.equals(Transform.getTransformType(n5, datasetName)) ||
+				Boolean.TRUE.equals(n5.getAttribute(datasetName, Transform.SPARSE_KEY, Boolean.class)))
+			return SMALL_ENTRY_BYTES;
+
+		long size = Float.BYTES;
+		for (final long d : getDatasetAttributes(n5Path, datasetName).getDimensions())
+			size *= d;
+		return size + SMALL_ENTRY_BYTES;
+	}
+
+	public static N5Reader openFSReader(final String n5Path) throws IOException {
+
+		return readers.get(n5Path, null, 0, () -> 0L, () -> N5.openFSReader(n5Path));
+	}
+
+	public static N5Writer openFSWriter(final String n5Path) throws IOException {
+
+		return writers.get(n5Path, null, 0, () -> 0L, () -> N5.openFSWriter(n5Path));
+	}
+
+	public static DatasetAttributes getDatasetAttributes(
+			final String n5Path,
+			final String datasetName) throws IOException {
+
+		return attributes.get(
+				n5Path + ":" + datasetName,
+				normalize(datasetName),
+				version(n5Path, datasetName),
+				() -> 0L,
+				() -> openFSReader(n5Path).getDatasetAttributes(datasetName));
+	}
+
+	/**
+	 * Loads a transform in world coordinates, see
+	 * {@link Transform#loadScaledTransform(N5Reader, String)}.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @return a copy of the cached transform
+	 * @throws IOException
+	 */
+	public static RealTransform loadScaledTransform(
+			final String n5Path,
+			final String datasetName) throws IOException {
+
+		return transforms.get(
+				n5Path + ":" + datasetName,
+				normalize(datasetName),
+				version(n5Path, datasetName),
+				() -> transformBytes(n5Path, datasetName),
+				() -> Transform.loadScaledTransform(openFSReader(n5Path), datasetName)).copy();
+	}
+
+	/**
+	 * Loads a transform in scaled coordinates, see
+	 * {@link Transform#loadScaledTransform(N5Reader, String, double, double[])}.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @param transformScale
+	 * @param boundsMin
+	 * @return a copy of the cached transform
+	 * @throws IOException
+	 */
+	public static RealTransform loadScaledTransform(
+			final String n5Path,
+			final String datasetName,
+			final double transformScale,
+			final double[] boundsMin) throws IOException {
+
+		return transforms.get(
+				n5Path + ":" + datasetName + ":" + transformScale + ":" + Arrays.toString(boundsMin),
+				normalize(datasetName),
+				version(n5Path, datasetName),
+				() -> transformBytes(n5Path, datasetName),
+				() -> Transform.loadScaledTransform(openFSReader(n5Path), datasetName, transformScale, boundsMin)).copy();
+	}
+
+	/**
+	 * Drops the cached attributes and transforms of a dataset in all
+	 * containers.  Called by the {@link Transform} save methods.
+	 *
+	 * @param datasetName
+	 */
+	public static void invalidate(final String datasetName) {
+
+		final String normalized = normalize(datasetName);
+		versions.invalidate(normalized);
+		attributes.invalidate(normalized);
+		transforms.invalidate(normalized);
+	}
+
+	/**
+	 * Drops all cached entries and resets the statistics.
+	 */
+	public static void clear() {
+
+		readers.clear();
+		writers.clear();
+		attributes.clear();
+		transforms.clear();
+		versions.clear();
+	}
+
+	/**
+	 * @return hit and miss statistics of all caches
+	 */
+	public static String stats() {
+
+		return "N5Cache " + readers + "; " + writers + "; " + attributes + "; " + transforms + "; " + versions;
+	}
+}
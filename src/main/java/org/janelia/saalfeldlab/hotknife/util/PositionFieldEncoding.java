@@ -0,0 +1,276 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * How a transform is stored in an N5 dataset whose last dimension
+ * enumerates the coordinates.  {@link #FLOAT64} stores absolute positions
+ * and is what datasets without {@link #ENCODING_KEY} contain.
+ * {@link #FLOAT32} and {@link #INT16} store the displacement from the
+ * identity, i.e. position - (index + min) with min the scaled lower bound
+ * of the dataset, which compresses much better than absolute positions.
+ * INT16 stores fixed point displacements offset[d] + scale &times; q.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class PositionFieldEncoding implements Serializable {
+
+	private static final long serialVersionUID = -3395440914327154025L;
+
+	final static public String ENCODING_KEY = "encoding";
+	final static public String DISPLACEMENT_SCALE_KEY = "displacementScale";
+	final static public String DISPLACEMENT_OFFSET_KEY = "displacementOffset";
+
+	/**
+	 * Maximum absolute error introduced by encoding, set by
+	 * {@link Transform#saveScaledTransform} for the whole field.
+	 */
+	final static public String MAX_ENCODING_ERROR_KEY = "maxEncodingError";
+
+	final static public String FLOAT64 = "float64";
+	final static public String FLOAT32 = "float32";
+	final static public String INT16 = "int16";
+
+	/**
+	 * Default INT16 step in scaled pixels, covers displacements of
+	 * &plusmn;256 scaled pixels.
+	 */
+	final static public double DEFAULT_INT16_SCALE = 1.0 / 128.0;
+
+	final static public PositionFieldEncoding DEFAULT = float32();
+
+	final private String type;
+	final private double scale;
+	final private double[] offset;
+
+	private PositionFieldEncoding(final String type, final double scale, final double[] offset) {
+
+		if (!(FLOAT64.equals(type) || FLOAT32.equals(type) || INT16.equals(type)))
+			throw new IllegalArgumentException("Unknown position field encoding '" + type + "'.");
+		if (!(scale > 0))
+			throw new IllegalArgumentException("Displacement scale must be positive but is " + scale + ".");
+
+		this.type = type;
+		this.scale = scale;
+		this.offset = offset;
+	}
+
+	public static PositionFieldEncoding float64() {
+
+		return new PositionFieldEncoding(FLOAT64, 1, null);
+	}
+
+	public static PositionFieldEncoding float32() {
+
+		return new PositionFieldEncoding(FLOAT32, 1, null);
+	}
+
+	/**
+	 * @param scale quantization step in scaled pixels
+	 * @param offset per coordinate, zero if null
+	 * @return
+	 */
+	public static PositionFieldEncoding int16(final double scale, final double[] offset) {
+
+		return new PositionFieldEncoding(INT16, scale, offset == null ? null : offset.clone());
+	}
+
+	public static PositionFieldEncoding int16(final double scale) {
+
+		return int16(scale, null);
+	}
+
+	/**
+	 * Parse "float64", "float32", "int16" or "int16:scale".
+	 *
+	 * @param encoding
+	 * @return
+	 */
+	public static PositionFieldEncoding parse(final String encoding) {
+
+		if (encoding.startsWith(INT16 + ":"))
+			return int16(Double.parseDouble(encoding.substring(INT16.length() + 1)));
+		else if (INT16.equals(encoding))
+			return int16(DEFAULT_INT16_SCALE);
+		else
+			return new PositionFieldEncoding(encoding, 1, null);
+	}
+
+	/**
+	 * Reads the encoding of an existing dataset, {@link #FLOAT64} if it was
+	 * saved before encodings were introduced.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static PositionFieldEncoding read(final N5Reader n5, final String datasetName) throws IOException {
+
+		final String type = n5.getAttribute(datasetName, ENCODING_KEY, String.class);
+		if (type == null || FLOAT64.equals(type))
+			return float64();
+		else if (FLOAT32.equals(type))
+			return float32();
+		else
+			return int16(
+					n5.getAttribute(datasetName, DISPLACEMENT_SCALE_KEY, double.class),
+					n5.getAttribute(datasetName, DISPLACEMENT_OFFSET_KEY, double[].class));
+	}
+
+	public void setAttributes(final N5Writer n5, final String datasetName) throws IOException {
+
+		n5.setAttribute(datasetName, ENCODING_KEY, type);
+		if (INT16.equals(type)) {
+			n5.setAttribute(datasetName, DISPLACEMENT_SCALE_KEY, scale);
+			n5.setAttribute(datasetName, DISPLACEMENT_OFFSET_KEY, offset == null ? new double[0] : offset);
+		}
+	}
+
+	public String getType() {
+
+		return type;
+	}
+
+	public boolean isDisplacement() {
+
+		return !FLOAT64.equals(type);
+	}
+
+	public DataType getDataType() {
+
+		return FLOAT64.equals(type) ? DataType.FLOAT64 : FLOAT32.equals(type) ? DataType.FLOAT32 : DataType.INT16;
+	}
+
+	/**
+	 * @return the worst case error of a displacement within the INT16 range,
+	 *     0 for FLOAT64 and NaN for FLOAT32 whose error depends on the
+	 *     magnitude
+	 */
+	public double getPrecision() {
+
+		return FLOAT64.equals(type) ? 0 : FLOAT32.equals(type) ? Double.NaN : 0.5 * scale;
+	}
+
+	private double offset(final int d) {
+
+		return offset == null || d >= offset.length ? 0 : offset[d];
+	}
+
+	/**
+	 * Encode a block of a position field.
+	 *
+	 * @param positions block of positions, last dimension enumerates the
+	 *     coordinates
+	 * @param identityOffset added to the position of each pixel in
+	 *     positions to get its identity position
+	 * @param gridPosition of the block
+	 * @param maxError receives the maximum absolute encoding error in
+	 *     [0], positions outside of the INT16 range are clamped
+	 * @return
+	 */
+	public DataBlock<?> encodeBlock(
+			final RandomAccessibleInterval<DoubleType> positions,
+			final long[] identityOffset,
+			final long[] gridPosition,
+			final double[] maxError) {
+
+		final int n = positions.numDimensions() - 1;
+		final int[] size = new int[n + 1];
+		Arrays.setAll(size, d -> (int)positions.dimension(d));
+		final int numElements = Arrays.stream(size).reduce(1, (a, b) -> a * b);
+
+		final double[] doubles = FLOAT64.equals(type) ? new double[numElements] : null;
+		final float[] floats = FLOAT32.equals(type) ? new float[numElements] : null;
+		final short[] shorts = INT16.equals(type) ? new short[numElements] : null;
+
+		double error = maxError[0];
+		final Cursor<DoubleType> cursor = Views.flatIterable(positions).localizingCursor();
+		for (int i = 0; cursor.hasNext(); ++i) {
+			final double position = cursor.next().get();
+			if (doubles != null) {
+				doubles[i] = position;
+				continue;
+			}
+			final int d = cursor.getIntPosition(n);
+			final double displacement = position - (cursor.getLongPosition(d) + identityOffset[d]);
+			if (floats != null) {
+				floats[i] = (float)displacement;
+				error = Math.max(error, Math.abs(displacement - floats[i]));
+			} else {
+				final double q = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round((displacement - offset(d)) / scale)));
+				shorts[i] = (short)q;
+				error = Math.max(error, Math.abs(displacement - (offset(d) + scale * q)));
+			}
+		}
+		maxError[0] = error;
+
+		if (doubles != null)
+			return new DoubleArrayDataBlock(size, gridPosition, doubles);
+		else if (floats != null)
+			return new FloatArrayDataBlock(size, gridPosition, floats);
+		else
+			return new ShortArrayDataBlock(size, gridPosition, shorts);
+	}
+
+	/**
+	 * Decode the stored values of a displacement encoded dataset into
+	 * displacements.
+	 *
+	 * @param stored
+	 * @return
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval<DoubleType> decodeDisplacements(final RandomAccessibleInterval<T> stored) {
+
+		if (!isDisplacement())
+			throw new IllegalArgumentException("'" + type + "' stores positions, not displacements.");
+
+		final int n = stored.numDimensions() - 1;
+		final ArrayList<RandomAccessibleInterval<DoubleType>> components = new ArrayList<>();
+		for (int d = 0; d < stored.dimension(n); ++d) {
+			final double o = INT16.equals(type) ? offset(d) : 0;
+			final double s = INT16.equals(type) ? scale : 1;
+			components.add(
+					Converters.convert(
+							Views.hyperSlice(stored, n, stored.min(n) + d),
+							(a, b) -> b.set(o + s * a.getRealDouble()),
+							new DoubleType()));
+		}
+
+		return Views.stack(components);
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A 2D position field transform with bilinear interpolation directly over
+ * primitive displacement arrays.  Equivalent to
+ * {@link Transform#createPositionFieldTransform(RandomAccessibleInterval)}
+ * and
+ * {@link Transform#createDeformationFieldTransform(RandomAccessibleInterval)}
+ * but without the interpolator, out-of-bounds and view layers on each
+ * lookup.
+ *
+ * The field is stored as float displacements from the identity at integer
+ * coordinates starting at (minX, minY).  Outside of the field, either the
+ * border displacement or the border position is used.
+ *
+ * Lookups do not allocate.  Like other {@link RealTransform RealTransforms},
+ * instances are not thread safe, use {@link #copy()} for each thread, copies
+ * share the displacements.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class PositionFieldTransform2D implements RealTransform {
+
+	private final int width;
+	private final int height;
+	private final float[] dx;
+	private final float[] dy;
+	private final double minX;
+	private final double minY;
+	private final boolean extendPositions;
+
+	private final double[] tmp = new double[2];
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param dx x displacements, row major
+	 * @param dy y displacements, row major
+	 * @param minX x coordinate of the first sample
+	 * @param minY y coordinate of the first sample
+	 * @param extendPositions extend the field by the border positions
+	 *     instead of the border displacements
+	 */
+	public PositionFieldTransform2D(
+			final int width,
+			final int height,
+			final float[] dx,
+			final float[] dy,
+			final double minX,
+			final double minY,
+			final boolean extendPositions) {
+
+		if (width < 1 || height < 1 || dx.length != width * height || dy.length != width * height)
+			throw new IllegalArgumentException("Displacement arrays do not match " + width + "x" + height + ".");
+
+		this.width = width;
+		this.height = height;
+		this.dx = dx;
+		this.dy = dy;
+		this.minX = minX;
+		this.minY = minY;
+		this.extendPositions = extendPositions;
+	}
+
+	/**
+	 * Checks whether a field with the coordinates in the last dimension can
+	 * be loaded into a {@link PositionFieldTransform2D}.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public static boolean fits(final RandomAccessibleInterval<?> field) {
+
+		return
+				field.numDimensions() == 3 &&
+				field.dimension(2) == 2 &&
+				field.dimension(0) * field.dimension(1) <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Loads a displacement field with the displacement vectors in the last
+	 * dimension and extends it by the border displacements.
+	 *
+	 * @param displacements
+	 * @param minX x coordinate of the first sample
+	 * @param minY y coordinate of the first sample
+	 * @return
+	 */
+	public static <T extends RealType<T>> PositionFieldTransform2D fromDisplacements(
+			final RandomAccessibleInterval<T> displacements,
+			final double minX,
+			final double minY) {
+
+		return load(displacements, minX, minY, false);
+	}
+
+	/**
+	 * Loads a position field with the position vectors in the last
+	 * dimension and extends it by the border positions.
+	 *
+	 * @param positions
+	 * @param minX x coordinate of the first sample
+	 * @param minY y coordinate of the first sample
+	 * @return
+	 */
+	public static <T extends RealType<T>> PositionFieldTransform2D fromPositions(
+			final RandomAccessibleInterval<T> positions,
+			final double minX,
+			final double minY) {
+
+		return load(positions, minX, minY, true);
+	}
+
+	private static <T extends RealType<T>> PositionFieldTransform2D load(
+			final RandomAccessibleInterval<T> field,
+			final double minX,
+			final double minY,
+			final boolean isPositions) {
+
+		if (!fits(field))
+			throw new IllegalArgumentException("Field is not a 2D field of 2D vectors with less than 2^31 samples.");
+
+		final int width = (int)field.dimension(0);
+		final int height = (int)field.dimension(1);
+		final float[] dx = new float[width * height];
+		final float[] dy = new float[width * height];
+
+		final Cursor<T> cx = Views.flatIterable(Views.hyperSlice(field, 2, field.min(2))).cursor();
+		final Cursor<T> cy = Views.flatIterable(Views.hyperSlice(field, 2, field.min(2) + 1)).cursor();
+		for (int y = 0, i = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x, ++i) {
+				if (isPositions) {
+					dx[i] = (float)(cx.next().getRealDouble() - x - minX);
+					dy[i] = (float)(cy.next().getRealDouble() - y - minY);
+				} else {
+					dx[i] = cx.next().getRealFloat();
+					dy[i] = cy.next().getRealFloat();
+				}
+			}
+		}
+
+		return new PositionFieldTransform2D(width, height, dx, dy, minX, minY, isPositions);
+	}
+
+	private void apply(final double x, final double y, final double[] target) {
+
+		final double fx = Math.max(0, Math.min(width - 1, x - minX));
+		final double fy = Math.max(0, Math.min(height - 1, y - minY));
+		final int x0 = (int)fx;
+		final int y0 = (int)fy;
+		final double wx = fx - x0;
+		final double wy = fy - y0;
+		final int i00 = y0 * width + x0;
+		final int i01 = x0 < width - 1 ? i00 + 1 : i00;
+		final int i10 = y0 < height - 1 ? i00 + width : i00;
+		final int i11 = x0 < width - 1 ? i10 + 1 : i10;
+
+		final double dx0 = dx[i00] + (dx[i01] - dx[i00]) * wx;
+		final double dx1 = dx[i10] + (dx[i11] - dx[i10]) * wx;
+		final double dy0 = dy[i00] + (dy[i01] - dy[i00]) * wx;
+		final double dy1 = dy[i10] + (dy[i11] - dy[i10]) * wx;
+
+		if (extendPositions) {
+			target[0] = fx + minX + dx0 + (dx1 - dx0) * wy;
+			target[1] = fy + minY + dy0 + (dy1 - dy0) * wy;
+		} else {
+			target[0] = x + dx0 + (dx1 - dx0) * wy;
+			target[1] = y + dy0 + (dy1 - dy0) * wy;
+		}
+	}
+
+	@Override
+	public int numSourceDimensions() {
+
+		return 2;
+	}
+
+	@Override
+	public int numTargetDimensions() {
+
+		return 2;
+	}
+
+	@Override
+	public void apply(final double[] source, final double[] target) {
+
+		apply(source[0], source[1], target);
+	}
+
+	@Override
+	public void apply(final float[] source, final float[] target) {
+
+		apply(source[0], source[1], tmp);
+		target[0] = (float)tmp[0];
+		target[1] = (float)tmp[1];
+	}
+
+	@Override
+	public void apply(final RealLocalizable source, final RealPositionable target) {
+
+		apply(source.getDoublePosition(0), source.getDoublePosition(1), tmp);
+		target.setPosition(tmp[0], 0);
+		target.setPosition(tmp[1], 1);
+	}
+
+	@Override
+	public PositionFieldTransform2D copy() {
+
+		return new PositionFieldTransform2D(width, height, dx, dy, minX, minY, extendPositions);
+	}
+}
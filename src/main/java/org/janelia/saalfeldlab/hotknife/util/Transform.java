@@ -21,10 +21,10 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Supplier;
 
 import org.janelia.saalfeldlab.n5.CompressionType;
-import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -44,6 +44,7 @@ import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.position.RealPositionRealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.DeformationFieldTransform;
 import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.PositionFieldTransform;
 import net.imglib2.realtransform.RealTransform;
@@ -52,6 +53,7 @@ import net.imglib2.realtransform.RealTransformRealRandomAccessible;
 import net.imglib2.realtransform.RealTransformSequence;
 import net.imglib2.realtransform.Scale;
 import net.imglib2.realtransform.Scale2D;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
@@ -65,6 +67,40 @@ import net.imglib2.view.Views;
  */
 public class Transform {
 
+	/**
+	 * Attribute that tells how a saved transform is stored, missing for
+	 * transforms saved as position fields before it was introduced.
+	 */
+	final static public String TRANSFORM_TYPE_KEY = "transformType";
+
+	/**
+	 * Transform stored as an N5 dataset of positions.
+	 */
+	final static public String POSITION_FIELD_TYPE = "positionField";
+
+	/**
+	 * 2D affine stored as its row packed parameters in the
+	 * {@link #AFFINE_KEY} attribute of an N5 group.
+	 */
+	final static public String AFFINE_TYPE = "affine";
+
+	final static public String AFFINE_KEY = "affine";
+
+	/**
+	 * Attribute set on position fields of which only some blocks are
+	 * written, see
+	 * {@link #saveScaledTransformBlock(N5Writer, String, RealTransform, double, double[], double[], long[], int[], PositionFieldEncoding)}.
+	 * Those are not loaded into memory at full extent.
+	 */
+	final static public String SPARSE_KEY = "sparse";
+
+	/**
+	 * Attribute that is set to a new random value whenever a transform is
+	 * saved, such that {@link N5Cache caches} in other JVMs can tell that
+	 * it changed.
+	 */
+	final static public String GENERATION_KEY = "generation";
+
 	private Transform() {}
 
 	@SuppressWarnings("serial")
@@ -294,6 +330,30 @@ public class Transform {
 		return new PositionFieldTransform<>(positionAccesses);
 	}
 
+	/**
+	 * Create a {@link DeformationFieldTransform} from a displacement field
+	 * with the displacement vectors in the last dimension.  The displacements
+	 * are extended by their border values.
+	 *
+	 * @param displacementField
+	 * @return
+	 */
+	public static <T extends RealType<T>> DeformationFieldTransform<T> createDeformationFieldTransform(final RandomAccessibleInterval<T> displacementField) {
+
+		final int n = displacementField.numDimensions() - 1;
+
+		@SuppressWarnings("unchecked")
+		final RealRandomAccess<T>[] displacementAccesses = (RealRandomAccess<T>[])new RealRandomAccess[(int)displacementField.dimension(n)];
+		Arrays.setAll(
+				displacementAccesses,
+				d -> Views.interpolate(
+						Views.extendBorder(
+								Views.hyperSlice(displacementField, n, d)),
+						new NLinearInterpolatorFactory<>()).realRandomAccess());
+
+		return new DeformationFieldTransform<>(displacementAccesses);
+	}
+
 	/**
 	 * 2D boundaries approximated by only testing transformed corner coordinates.
 	 *
@@ -377,17 +437,203 @@ public class Transform {
 		return new double[][]{min, max};
 	}
 
-	public static RealTransform loadScaledTransform(
+	/**
+	 * @param n5
+	 * @param datasetName
+	 * @return the {@link #TRANSFORM_TYPE_KEY transform type} of a saved
+	 *     transform, {@link #POSITION_FIELD_TYPE} if not set
+	 * @throws IOException
+	 */
+	public static String getTransformType(
+			final N5Reader n5,
+			final String datasetName) throws IOException {
+
+		final String type = n5.getAttribute(datasetName, TRANSFORM_TYPE_KEY, String.class);
+		return type == null ? POSITION_FIELD_TYPE : type;
+	}
+
+	/**
+	 * Load an affine saved by
+	 * {@link #saveAffineTransform(N5Writer, String, AffineTransform2D, double, double[], double[])}.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static AffineTransform2D loadAffineTransform(
 			final N5Reader n5,
+			final String datasetName) throws IOException {
+
+		final double[] parameters = n5.getAttribute(datasetName, AFFINE_KEY, double[].class);
+		if (parameters == null || parameters.length != 6)
+			throw new IllegalArgumentException("'" + datasetName + "' does not contain an affine.");
+
+		final AffineTransform2D affine = new AffineTransform2D();
+		affine.set(parameters);
+		return affine;
+	}
+
+	/**
+	 * Saves an affine as its parameters instead of a position field.
+	 * Bounds and scale are stored like for position fields such that
+	 * consumers of the group attributes do not need to distinguish.
+	 * A position field previously saved under the same name is removed.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param affine
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @throws IOException
+	 */
+	public static void saveAffineTransform(
+			final N5Writer n5,
 			final String datasetName,
+			final AffineTransform2D affine,
 			final double transformScale,
-			final double[] boundsMin) throws IOException {
+			final double[] boundsMin,
+			final double[] boundsMax) throws IOException {
+
+		if (n5.exists(datasetName))
+			n5.remove(datasetName);
+		n5.createGroup(datasetName);
+		n5.setAttribute(datasetName, TRANSFORM_TYPE_KEY, AFFINE_TYPE);
+		n5.setAttribute(datasetName, AFFINE_KEY, affine.getRowPackedCopy());
+		n5.setAttribute(datasetName, "boundsMin", boundsMin);
+		n5.setAttribute(datasetName, "boundsMax", boundsMax);
+		n5.setAttribute(datasetName, "scale", transformScale);
+		newGeneration(n5, datasetName);
+	}
+
+	/**
+	 * Sets a new {@link #GENERATION_KEY generation} and drops the transform
+	 * from the {@link N5Cache} of this JVM.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @throws IOException
+	 */
+	private static void newGeneration(
+			final N5Writer n5,
+			final String datasetName) throws IOException {
+
+		n5.setAttribute(datasetName, GENERATION_KEY, ThreadLocalRandom.current().nextLong());
+		N5Cache.invalidate(datasetName);
+	}
+
+	/**
+	 * Opens a saved transform as a position field in scaled space.  Affines
+	 * are rastered virtually over the interval that a position field with
+	 * the same bounds and scale would cover, displacement encoded fields
+	 * are decoded virtually.  Blocks are read on demand, so only the blocks
+	 * of the requested interval are loaded.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static RandomAccessibleInterval<DoubleType> openPositionField(
+			final N5Reader n5,
+			final String datasetName) throws IOException {
+
+		final boolean isAffine = AFFINE_TYPE.equals(getTransformType(n5, datasetName));
+		if (!isAffine && !PositionFieldEncoding.read(n5, datasetName).isDisplacement())
+			return N5Utils.open(n5, datasetName);
+
+		final double[] boundsMin = n5.getAttribute(datasetName, "boundsMin", double[].class);
+		final double[] boundsMax = n5.getAttribute(datasetName, "boundsMax", double[].class);
+		final double transformScale = n5.getAttribute(datasetName, "scale", double.class);
+		final long[] floorScaledMin = Grid.floorScaled(boundsMin, transformScale);
+		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, transformScale);
+
+		final RealTransform scaledTransform = isAffine ?
+				createScaledRealTransform(loadAffineTransform(n5, datasetName), 1.0 / transformScale) :
+				openFieldTransform(n5, datasetName, floorScaledMin, false);
+
+		return Views.zeroMin(
+				createPositionField(
+						scaledTransform,
+						new FinalInterval(floorScaledMin, ceilScaledMax)));
+	}
+
+	/**
+	 * Opens a position field or displacement field dataset as a transform
+	 * in scaled space.  If dense, 2D fields are loaded into a
+	 * {@link PositionFieldTransform2D}, otherwise and for other fields, N5
+	 * blocks are read on demand.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param floorScaledMin scaled lower bound of the dataset
+	 * @param dense load 2D fields at full extent
+	 * @return
+	 * @throws IOException
+	 */
+	private static RealTransform openFieldTransform(
+			final N5Reader n5,
+			final String datasetName,
+			final long[] floorScaledMin,
+			final boolean dense) throws IOException {
+
+		final PositionFieldEncoding encoding = PositionFieldEncoding.read(n5, datasetName);
+		final long[] translation = Arrays.copyOf(floorScaledMin, floorScaledMin.length + 1);
+		if (encoding.isDisplacement()) {
+			final RandomAccessibleInterval<DoubleType> displacements = openDisplacements(n5, datasetName, encoding);
+			if (dense && PositionFieldTransform2D.fits(displacements))
+				return PositionFieldTransform2D.fromDisplacements(displacements, floorScaledMin[0], floorScaledMin[1]);
+			return Transform.createDeformationFieldTransform(
+					Views.translate(displacements, translation));
+		}
 
 		final RandomAccessibleInterval<DoubleType> positionField = N5Utils.open(n5, datasetName);
-		final int n = positionField.numDimensions() - 1;
-		final long[] translation = Arrays.copyOf(Grid.floorScaled(boundsMin, transformScale), n + 1);
-		final PositionFieldTransform<DoubleType> transform = Transform.createPositionFieldTransform(
+		if (dense && PositionFieldTransform2D.fits(positionField))
+			return PositionFieldTransform2D.fromPositions(positionField, floorScaledMin[0], floorScaledMin[1]);
+		return Transform.createPositionFieldTransform(
 				Views.translate(positionField, translation));
+	}
+
+	private static <T extends NativeType<T> & RealType<T>> RandomAccessibleInterval<DoubleType> openDisplacements(
+			final N5Reader n5,
+			final String datasetName,
+			final PositionFieldEncoding encoding) throws IOException {
+
+		final RandomAccessibleInterval<T> stored = N5Utils.open(n5, datasetName);
+		return encoding.decodeDisplacements(stored);
+	}
+
+	/**
+	 * Loads a saved transform.  Affines are returned as
+	 * {@link AffineTransform2D} independent of transformScale and boundsMin.
+	 * Displacement encoded fields are decoded transparently, see
+	 * {@link PositionFieldEncoding}.  2D fields are loaded into a
+	 * {@link PositionFieldTransform2D} unless they are {@link #SPARSE_KEY
+	 * sparse}.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param transformScale
+	 * @param boundsMin
+	 * @return
+	 * @throws IOException
+	 */
+	public static RealTransform loadScaledTransform(
+			final N5Reader n5,
+			final String datasetName,
+			final double transformScale,
+			final double[] boundsMin) throws IOException {
+
+		if (AFFINE_TYPE.equals(getTransformType(n5, datasetName)))
+			return loadAffineTransform(n5, datasetName);
+
+		final Boolean sparse = n5.getAttribute(datasetName, SPARSE_KEY, Boolean.class);
+		final RealTransform transform = openFieldTransform(
+				n5,
+				datasetName,
+				Grid.floorScaled(boundsMin, transformScale),
+				!Boolean.TRUE.equals(sparse));
 		return createScaledRealTransform(transform, transformScale);
 	}
 
@@ -395,6 +641,9 @@ public class Transform {
 			final N5Reader n5,
 			final String datasetName) throws IOException {
 
+		if (AFFINE_TYPE.equals(getTransformType(n5, datasetName)))
+			return loadAffineTransform(n5, datasetName);
+
 		final double[] boundsMin = n5.getAttribute(datasetName, "boundsMin", double[].class);
 		final double transformScale = n5.getAttribute(datasetName, "scale", double.class);
 		return loadScaledTransform(n5, datasetName, transformScale, boundsMin);
@@ -402,7 +651,10 @@ public class Transform {
 
 
 	/**
-	 * Saves a transform as a position field in an N5 dataset
+	 * Saves a transform as a position field in an N5 dataset, or as the
+	 * parameters of an {@link AffineTransform2D} if it is one.  Position
+	 * fields are stored with the {@link PositionFieldEncoding#DEFAULT default
+	 * encoding}.
 	 *
 	 * @param n5
 	 * @param datasetName
@@ -420,21 +672,129 @@ public class Transform {
 			final double[] boundsMin,
 			final double[] boundsMax) throws IOException {
 
+		saveScaledTransform(n5, datasetName, transform, transformScale, boundsMin, boundsMax, PositionFieldEncoding.DEFAULT);
+	}
+
+	/**
+	 * Saves a transform as a position field in an N5 dataset with the given
+	 * encoding, or as the parameters of an {@link AffineTransform2D} if it
+	 * is one.  The maximum encoding error is reported and stored in the
+	 * {@link PositionFieldEncoding#MAX_ENCODING_ERROR_KEY} attribute.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param transform
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param encoding
+	 * @throws IOException
+	 */
+	public static void saveScaledTransform(
+			final N5Writer n5,
+			final String datasetName,
+			final RealTransform transform,
+			final double transformScale,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final PositionFieldEncoding encoding) throws IOException {
+
+		if (AffineTransform2D.class.isInstance(transform)) {
+			saveAffineTransform(n5, datasetName, (AffineTransform2D)transform, transformScale, boundsMin, boundsMax);
+			return;
+		}
+
 		final int n = transform.numSourceDimensions();
+		final int[] gridSize = new int[n];
+		Arrays.fill(gridSize, 1024);
+		final DatasetAttributes attributes = createScaledTransformDataset(n5, datasetName, boundsMin, boundsMax, transformScale, gridSize, encoding);
+
+		final long[] floorScaledMin = Grid.floorScaled(boundsMin, transformScale);
 		final RealTransform scaledTransform = Transform.createScaledRealTransform(transform, 1.0 / transformScale);
 		final RandomAccessibleInterval<DoubleType> positionField =
 				Transform.createPositionField(
 						scaledTransform,
 						new FinalInterval(
-								Grid.floorScaled(boundsMin, transformScale),
+								floorScaledMin,
 								Grid.ceilScaled(boundsMax, transformScale)));
-		final int[] blockSize = new int[n + 1];
-		Arrays.fill(blockSize, 1024);
-		blockSize[n] = n;
-		N5Utils.save(positionField, n5, datasetName, blockSize, CompressionType.GZIP);
-		n5.setAttribute(datasetName, "boundsMin", boundsMin);
-		n5.setAttribute(datasetName, "boundsMax", boundsMax);
-		n5.setAttribute(datasetName, "scale", transformScale);
+
+		final double maxError = saveEncodedBlocks(n5, datasetName, attributes, encoding, positionField, floorScaledMin);
+		n5.setAttribute(datasetName, PositionFieldEncoding.MAX_ENCODING_ERROR_KEY, maxError);
+
+		System.out.println(datasetName + " : saved as " + encoding.getType() + ", max encoding error " + maxError + " px.");
+	}
+
+	/**
+	 * Encodes and writes all blocks of a position field.  The interval of
+	 * positions must start and end at block boundaries or at the end of
+	 * the dataset.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param attributes
+	 * @param encoding
+	 * @param positions positions in scaled space, the last dimension
+	 *     enumerates the coordinates
+	 * @param floorScaledMin scaled lower bound of the dataset
+	 * @return the maximum encoding error
+	 * @throws IOException
+	 */
+	private static double saveEncodedBlocks(
+			final N5Writer n5,
+			final String datasetName,
+			final DatasetAttributes attributes,
+			final PositionFieldEncoding encoding,
+			final RandomAccessibleInterval<DoubleType> positions,
+			final long[] floorScaledMin) throws IOException {
+
+		final int n = positions.numDimensions() - 1;
+		final int[] blockSize = attributes.getBlockSize();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		final long[] gridMin = new long[n];
+		final long[] gridMax = new long[n];
+		for (int d = 0; d < n; ++d) {
+			min[d] = positions.min(d) - floorScaledMin[d];
+			max[d] = positions.max(d) - floorScaledMin[d];
+			gridMin[d] = min[d] / blockSize[d];
+			gridMax[d] = max[d] / blockSize[d];
+		}
+
+		final double[] maxError = new double[1];
+		final long[] gridPosition = new long[n + 1];
+		System.arraycopy(gridMin, 0, gridPosition, 0, n);
+		final long[] cellMin = new long[n + 1];
+		final long[] cellMax = new long[n + 1];
+		cellMin[n] = positions.min(n);
+		cellMax[n] = positions.max(n);
+		for (int d = 0; d < n;) {
+			for (int e = 0; e < n; ++e) {
+				cellMin[e] = Math.max(min[e], gridPosition[e] * blockSize[e]) + floorScaledMin[e];
+				cellMax[e] = Math.min(max[e], (gridPosition[e] + 1) * blockSize[e] - 1) + floorScaledMin[e];
+			}
+			n5.writeBlock(
+					datasetName,
+					attributes,
+					encoding.encodeBlock(
+							Views.interval(positions, cellMin, cellMax),
+							new long[n + 1],
+							gridPosition.clone(),
+							maxError));
+
+			for (d = 0; d < n; ++d) {
+				if (++gridPosition[d] <= gridMax[d])
+					break;
+				else
+					gridPosition[d] = gridMin[d];
+			}
+		}
+
+		/* block writes do not change the generation, datasets that are
+		 * written block by block must be complete before other JVMs read
+		 * them */
+		N5Cache.invalidate(datasetName);
+
+		return maxError[0];
 	}
 
 	public static DatasetAttributes createScaledTransformDataset(
@@ -445,6 +805,18 @@ public class Transform {
 			final double transformScale,
 			final int[] gridSize) throws IOException {
 
+		return createScaledTransformDataset(n5, datasetName, boundsMin, boundsMax, transformScale, gridSize, PositionFieldEncoding.DEFAULT);
+	}
+
+	public static DatasetAttributes createScaledTransformDataset(
+			final N5Writer n5,
+			final String datasetName,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final double transformScale,
+			final int[] gridSize,
+			final PositionFieldEncoding encoding) throws IOException {
+
 		final int n = boundsMin.length;
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, transformScale);
@@ -459,15 +831,56 @@ public class Transform {
 		final DatasetAttributes attributes = new DatasetAttributes(
 				dimensions,
 				blockSize,
-				DataType.FLOAT64,
+				encoding.getDataType(),
 				CompressionType.GZIP);
 		n5.createDataset(datasetName, attributes);
+		n5.setAttribute(datasetName, TRANSFORM_TYPE_KEY, POSITION_FIELD_TYPE);
+		n5.setAttribute(datasetName, SPARSE_KEY, false);
+		encoding.setAttributes(n5, datasetName);
 		n5.setAttribute(datasetName, "boundsMin", boundsMin);
 		n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		n5.setAttribute(datasetName, "scale", transformScale);
+		newGeneration(n5, datasetName);
 		return attributes;
 	}
 
+	/**
+	 * Encodes and saves one block of positions into a dataset created by
+	 * {@link #createScaledTransformDataset}, with the dataset's encoding.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param positions zero-min positions of the block, the last dimension
+	 *     enumerates the coordinates
+	 * @param gridOffset grid position of the block
+	 * @return the maximum encoding error
+	 * @throws IOException
+	 */
+	public static double savePositionFieldBlock(
+			final N5Writer n5,
+			final String datasetName,
+			final RandomAccessibleInterval<DoubleType> positions,
+			final long[] gridOffset) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(datasetName);
+		final double[] boundsMin = n5.getAttribute(datasetName, "boundsMin", double[].class);
+		final double transformScale = n5.getAttribute(datasetName, "scale", double.class);
+		final long[] floorScaledMin = Grid.floorScaled(boundsMin, transformScale);
+		final int n = floorScaledMin.length;
+		final int[] blockSize = attributes.getBlockSize();
+		final long[] translation = new long[n + 1];
+		for (int d = 0; d < n; ++d)
+			translation[d] = gridOffset[d] * blockSize[d] + floorScaledMin[d];
+
+		return saveEncodedBlocks(
+				n5,
+				datasetName,
+				attributes,
+				PositionFieldEncoding.read(n5, datasetName),
+				Views.translate(positions, translation),
+				floorScaledMin);
+	}
+
 	/**
 	 * Saves a single 2x2x... gridSize block of a transform as a position field
 	 * in an N5 dataset.  The N5 dataset's size is the full expected range, but
@@ -493,26 +906,41 @@ public class Transform {
 			final long[] gridOffset,
 			final int[] gridSize) throws IOException {
 
-		final int n = transform.numSourceDimensions();
+		saveScaledTransformBlock(n5, datasetName, transform, transformScale, boundsMin, boundsMax, gridOffset, gridSize, PositionFieldEncoding.DEFAULT);
+	}
+
+	/**
+	 * Saves a single 2x2x... gridSize block of a transform as a position field
+	 * with the given encoding, and reports the maximum encoding error.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param transform
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param gridOffset
+	 * @param gridSize
+	 * @param encoding
+	 * @throws IOException
+	 */
+	public static void saveScaledTransformBlock(
+			final N5Writer n5,
+			final String datasetName,
+			final RealTransform transform,
+			final double transformScale,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final long[] gridOffset,
+			final int[] gridSize,
+			final PositionFieldEncoding encoding) throws IOException {
+
+		final DatasetAttributes attributes = createScaledTransformDataset(n5, datasetName, boundsMin, boundsMax, transformScale, gridSize, encoding);
+		n5.setAttribute(datasetName, SPARSE_KEY, true);
+		final long[] dimensions = attributes.getDimensions();
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, transformScale);
 		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, transformScale);
-		final long[] dimensions = new long[n + 1];
-		for (int d = 0; d < n; ++d)
-			dimensions[d] = ceilScaledMax[d] - floorScaledMin[d] + 1;
-		dimensions[n] = n;
-		final int[] blockSize = Arrays.copyOf(gridSize, n + 1);
-		blockSize[n] = n;
-
-		final DatasetAttributes attributes = new DatasetAttributes(
-				dimensions,
-				blockSize,
-				DataType.FLOAT64,
-				CompressionType.GZIP);
-		n5.createDataset(datasetName, attributes);
-		n5.setAttribute(datasetName, "boundsMin", boundsMin);
-		n5.setAttribute(datasetName, "boundsMax", boundsMax);
-		n5.setAttribute(datasetName, "scale", transformScale);
 
 		final RealTransform scaledTransform = Transform.createScaledRealTransform(transform, 1.0 / transformScale);
 
@@ -528,7 +956,9 @@ public class Transform {
 								intervalMin,
 								intervalMax));
 
-		N5Utils.saveBlock(positionField, n5, datasetName, attributes, Arrays.copyOf(gridOffset, n + 1));
+		final double maxError = saveEncodedBlocks(n5, datasetName, attributes, encoding, positionField, floorScaledMin);
+		if (maxError > 0)
+			System.out.println(datasetName + " " + Arrays.toString(gridOffset) + " : max encoding error " + maxError + " px.");
 	}
 
 	/**
@@ -0,0 +1,152 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FlowKernel} using the incubating Vector API of Java 17+.  Packaged
+ * into META-INF/versions/17 of the multi-release jar and loaded by
+ * {@link FlowKernels} only if the jdk.incubator.vector module is present.
+ * Results are bit-identical to {@link ScalarFlowKernel}, remainders are
+ * processed by it.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public class VectorFlowKernel extends ScalarFlowKernel {
+
+	final static private VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+	final static private VectorSpecies<Short> SHORT_SPECIES = VectorSpecies.of(
+			short.class,
+			VectorShape.forBitSize(FLOAT_SPECIES.length() * Short.SIZE));
+
+	final static private VectorSpecies<Long> LONG_SPECIES = LongVector.SPECIES_PREFERRED;
+	final static private VectorSpecies<Double> DOUBLE_SPECIES = VectorSpecies.of(
+			double.class,
+			LONG_SPECIES.vectorShape());
+	final static private VectorSpecies<Float> HALF_FLOAT_SPECIES = VectorSpecies.of(
+			float.class,
+			VectorShape.forBitSize(DOUBLE_SPECIES.length() * Float.SIZE));
+
+	@Override
+	public void updateMaxima(
+			final float[] r,
+			final float[] rMax,
+			final short[] xShift,
+			final short[] yShift,
+			final int fromIndex,
+			final int toIndex,
+			final short xo,
+			final short yo) {
+
+		final int upperBound = fromIndex + FLOAT_SPECIES.loopBound(toIndex - fromIndex);
+		int i = fromIndex;
+		for (; i < upperBound; i += FLOAT_SPECIES.length()) {
+			final FloatVector ri = FloatVector.fromArray(FLOAT_SPECIES, r, i);
+			final FloatVector rMaxi = FloatVector.fromArray(FLOAT_SPECIES, rMax, i);
+			final VectorMask<Float> greater = ri.compare(VectorOperators.GT, rMaxi);
+			if (!greater.anyTrue())
+				continue;
+			rMaxi.blend(ri, greater).intoArray(rMax, i);
+			final VectorMask<Short> shortGreater = greater.cast(SHORT_SPECIES);
+			ShortVector.fromArray(SHORT_SPECIES, xShift, i).blend(xo, shortGreater).intoArray(xShift, i);
+			ShortVector.fromArray(SHORT_SPECIES, yShift, i).blend(yo, shortGreater).intoArray(yShift, i);
+		}
+		super.updateMaxima(r, rMax, xShift, yShift, i, toIndex, xo, yo);
+	}
+
+	static private LongVector blockSums(
+			final long[] sums,
+			final int a,
+			final int b,
+			final int k,
+			final int blockWidth) {
+
+		return LongVector.fromArray(LONG_SPECIES, sums, b + k + blockWidth)
+				.sub(LongVector.fromArray(LONG_SPECIES, sums, b + k))
+				.sub(LongVector.fromArray(LONG_SPECIES, sums, a + k + blockWidth))
+				.add(LongVector.fromArray(LONG_SPECIES, sums, a + k));
+	}
+
+	static private DoubleVector toDouble(final LongVector v) {
+
+		return (DoubleVector)v.convertShape(VectorOperators.L2D, DOUBLE_SPECIES, 0);
+	}
+
+	@Override
+	public void rSignedSquare(
+			final long[] sumsX,
+			final long[] sumsXX,
+			final int aX,
+			final int bX,
+			final long[] sumsY,
+			final long[] sumsYY,
+			final int aY,
+			final int bY,
+			final long[] sumsXY,
+			final int aXY,
+			final int bXY,
+			final int blockWidth,
+			final double n,
+			final float[] r,
+			final int rOffset,
+			final int length) {
+
+		final int upperBound = DOUBLE_SPECIES.loopBound(length);
+		int k = 0;
+		for (; k < upperBound; k += DOUBLE_SPECIES.length()) {
+			final DoubleVector sumX = toDouble(blockSums(sumsX, aX, bX, k, blockWidth));
+			final DoubleVector sumXX = toDouble(blockSums(sumsXX, aX, bX, k, blockWidth));
+			final DoubleVector sumY = toDouble(blockSums(sumsY, aY, bY, k, blockWidth));
+			final DoubleVector sumYY = toDouble(blockSums(sumsYY, aY, bY, k, blockWidth));
+			final DoubleVector sumXY = toDouble(blockSums(sumsXY, aXY, bXY, k, blockWidth));
+
+			final DoubleVector a = sumXY.mul(n).sub(sumX.mul(sumY));
+			final DoubleVector b = sumXX.mul(n).sub(sumX.mul(sumX));
+			final DoubleVector c = sumYY.mul(n).sub(sumY.mul(sumY));
+
+			final VectorMask<Double> valid = b.compare(VectorOperators.GT, 0).and(c.compare(VectorOperators.GT, 0));
+			final DoubleVector rs = a.mul(a.abs()).div(b.mul(c)).blend(Double.NaN, valid.not());
+
+			((FloatVector)rs.convertShape(VectorOperators.D2F, HALF_FLOAT_SPECIES, 0)).intoArray(r, rOffset + k);
+		}
+		super.rSignedSquare(
+				sumsX,
+				sumsXX,
+				aX + k,
+				bX + k,
+				sumsY,
+				sumsYY,
+				aY + k,
+				bY + k,
+				sumsXY,
+				aXY + k,
+				bXY + k,
+				blockWidth,
+				n,
+				r,
+				rOffset + k,
+				length - k);
+	}
+}